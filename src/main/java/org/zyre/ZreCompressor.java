@@ -0,0 +1,261 @@
+/*  =========================================================================
+    ZreCompressor - content compression between peers
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+package org.zyre;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.zeromq.ZFrame;
+
+//  Every node announces in its HELLO headers that it can inflate content.
+//  A node compresses WHISPER and SHOUT content only once compression is
+//  enabled with a size threshold, and only towards peers that announced
+//  they can inflate it. Compression and decompression run on the agent
+//  thread; the statistics may be read from any thread.
+
+public class ZreCompressor
+{
+    public static final String HEADER = "X-ZRE-COMPRESS";
+    public static final String DEFLATE = "deflate";
+    public static final int ENCODING_DEFLATE = 1;
+    public static final int MAX_RAWSIZE = 64 * 1024 * 1024;    //  Largest content we inflate
+    private static final int MAX_RATIO = 1032;  //  Most that deflate can shrink by
+
+    private int threshold;                  //  Smallest content we compress, 0 = off
+    private final Deflater deflater;
+    private final Inflater inflater;
+
+    private final AtomicLong messages;      //  Messages sent compressed
+    private final AtomicLong rawBytes;      //  Bytes before compression
+    private final AtomicLong packedBytes;   //  Bytes after compression
+    private final AtomicLong deflateNanos;  //  Time spent compressing
+    private final AtomicLong inflateNanos;  //  Time spent decompressing
+    private final Stats stats;              //  Read-only view of the above
+
+    //  Statistics of a compressor, safe to hand to any thread
+    public static class Stats
+    {
+        private final ZreCompressor compressor;
+
+        private Stats (ZreCompressor compressor)
+        {
+            this.compressor = compressor;
+        }
+
+        public long messages ()
+        {
+            return compressor.messages ();
+        }
+
+        public long rawBytes ()
+        {
+            return compressor.rawBytes ();
+        }
+
+        public long packedBytes ()
+        {
+            return compressor.packedBytes ();
+        }
+
+        public double ratio ()
+        {
+            return compressor.ratio ();
+        }
+
+        public long deflateTime ()
+        {
+            return compressor.deflateTime ();
+        }
+
+        public long inflateTime ()
+        {
+            return compressor.inflateTime ();
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Constructor
+    public ZreCompressor ()
+    {
+        deflater = new Deflater (Deflater.BEST_SPEED);
+        inflater = new Inflater ();
+        messages = new AtomicLong ();
+        rawBytes = new AtomicLong ();
+        packedBytes = new AtomicLong ();
+        deflateNanos = new AtomicLong ();
+        inflateNanos = new AtomicLong ();
+        stats = new Stats (this);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Destructor
+    public void destroy ()
+    {
+        deflater.end ();
+        inflater.end ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Set smallest content size worth compressing, 0 disables compression
+    public void setThreshold (int threshold)
+    {
+        this.threshold = threshold;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if content should be compressed for a capable peer;
+    //  we don't compress what peers would refuse to inflate
+    public boolean wants (ZFrame content)
+    {
+        return threshold > 0 && content != null && content.size () >= threshold
+            && content.size () <= MAX_RAWSIZE;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if peer headers say the peer can inflate our content
+    public static boolean accepted (ZrePeer peer)
+    {
+        return DEFLATE.equals (peer.header (HEADER, null));
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Compress content, returns null if it doesn't get any smaller
+    public ZFrame deflate (ZFrame content)
+    {
+        long start = System.nanoTime ();
+        byte [] data = content.getData ();
+        byte [] packed = new byte [data.length];
+
+        deflater.reset ();
+        deflater.setInput (data);
+        deflater.finish ();
+        int size = deflater.deflate (packed);
+        boolean smaller = deflater.finished () && size < data.length;
+        deflateNanos.addAndGet (System.nanoTime () - start);
+        if (!smaller)
+            return null;
+
+        messages.incrementAndGet ();
+        rawBytes.addAndGet (data.length);
+        packedBytes.addAndGet (size);
+        return new ZFrame (Arrays.copyOf (packed, size));
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Build COMPRESSED message carrying already compressed content; group
+    //  is null when we whisper. Takes ownership of the frame.
+    public static ZreMsg compressed (String group, int rawsize, ZFrame packed)
+    {
+        ZreMsg msg = new ZreMsg (ZreMsg.COMPRESSED);
+        msg.setGroup (group != null ? group : "");
+        msg.setEncoding (ENCODING_DEFLATE);
+        msg.setRawsize (rawsize);
+        msg.setContent (packed);
+        return msg;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Decompress content of a COMPRESSED message, returns null if the
+    //  content is not valid
+    public ZFrame inflate (ZreMsg msg)
+    {
+        if (msg.encoding () != ENCODING_DEFLATE || msg.content () == null)
+            return null;
+        //  Don't let a peer make us allocate what it could never send
+        long rawsize = msg.rawsize ();
+        if (rawsize <= 0 || rawsize > MAX_RAWSIZE
+        ||  rawsize > (long) msg.content ().size () * MAX_RATIO)
+            return null;
+
+        long start = System.nanoTime ();
+        byte [] data = new byte [(int) rawsize];
+        int size = -1;
+        inflater.reset ();
+        inflater.setInput (msg.content ().getData ());
+        try {
+            size = inflater.inflate (data);
+            if (!inflater.finished ())
+                size = -1;
+        } catch (DataFormatException e) {
+        }
+        inflateNanos.addAndGet (System.nanoTime () - start);
+
+        return size == data.length ? new ZFrame (data) : null;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return statistics, for threads other than the agent's
+    public Stats stats ()
+    {
+        return stats;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return number of messages sent compressed
+    public long messages ()
+    {
+        return messages.get ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return bytes of content before compression
+    public long rawBytes ()
+    {
+        return rawBytes.get ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return bytes of content after compression
+    public long packedBytes ()
+    {
+        return packedBytes.get ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return compression ratio so far (raw / packed), 1 if none
+    public double ratio ()
+    {
+        long packed = packedBytes.get ();
+        return packed > 0 ? (double) rawBytes.get () / packed : 1.0;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return nanoseconds spent compressing
+    public long deflateTime ()
+    {
+        return deflateNanos.get ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return nanoseconds spent decompressing
+    public long inflateTime ()
+    {
+        return inflateNanos.get ();
+    }
+}
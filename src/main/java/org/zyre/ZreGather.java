@@ -0,0 +1,231 @@
+/*  =========================================================================
+    ZreGather - replies to a request sent to a group
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+package org.zyre;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.zeromq.ZFrame;
+
+//  The application creates a gather when it scatters a request over a
+//  group; the agent then tells it which members the request went to and
+//  hands it each reply. The gather is done when enough members replied,
+//  or when its deadline passes, and then holds replies by peer identity.
+//  It fails at once if members go away so that too few are left to reply.
+//  When cancelled, it tells the agent through a queue they share, so the
+//  agent stops tracking it and frees its place in the request window.
+
+public class ZreGather implements Future <Map <String, ZFrame>>
+{
+    public static final int ALL = -1;           //  Wait for every member
+    public static final int QUORUM = -2;        //  Wait for a majority
+
+    private final long correlation;     //  Matches replies to request
+    private final int wanted;           //  ALL, QUORUM or number of replies
+    private final long deadline;        //  When we stop waiting, msecs
+    private Set <String> pending;       //  Members yet to reply
+    private int needed;                 //  Replies still needed
+    private final Map <String, ZFrame> replies;
+    private final CountDownLatch done;
+    private final Queue <ZreGather> cancels;    //  Agent's cancelled gathers, or null
+    private volatile boolean cancelled;
+    private volatile boolean expired;
+    private volatile boolean failed;
+
+    //  ---------------------------------------------------------------------
+    //  Constructor
+    public ZreGather (long correlation, int wanted, long timeout)
+    {
+        this (correlation, wanted, timeout, null);
+    }
+
+    public ZreGather (long correlation, int wanted, long timeout,
+                      Queue <ZreGather> cancels)
+    {
+        this.correlation = correlation;
+        this.wanted = wanted;
+        this.cancels = cancels;
+        deadline = System.currentTimeMillis () + timeout;
+        replies = new LinkedHashMap <String, ZFrame> ();
+        done = new CountDownLatch (1);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return correlation ID of request
+    public long correlation ()
+    {
+        return correlation;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return time by which we stop waiting for replies
+    public long deadline ()
+    {
+        return deadline;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Set members the request went to, which decides how many replies
+    //  we need. Completes at once if there are none.
+    public synchronized void expect (Collection <String> members)
+    {
+        pending = new HashSet <String> (members);
+        if (wanted == ALL)
+            needed = members.size ();
+        else
+        if (wanted == QUORUM)
+            needed = members.size () / 2 + 1;
+        else
+            needed = Math.min (wanted, members.size ());
+        if (needed == 0)
+            finish ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Take reply from a member. Returns true if the gather is done now;
+    //  we destroy replies we don't want.
+    public synchronized boolean reply (String identity, ZFrame content)
+    {
+        if (done.getCount () == 0 || pending == null || !pending.remove (identity)) {
+            content.destroy ();
+            return done.getCount () == 0;
+        }
+        replies.put (identity, content);
+        if (--needed == 0)
+            finish ();
+        return done.getCount () == 0;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Forget a member that has gone away. Returns true if the gather is
+    //  done now, which it is when too few members are left to reply.
+    public synchronized boolean lost (String identity)
+    {
+        if (done.getCount () > 0 && pending != null
+        &&  pending.remove (identity) && pending.size () < needed) {
+            failed = true;
+            finish ();
+        }
+        return done.getCount () == 0;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return members yet to reply
+    public synchronized Set <String> pending ()
+    {
+        if (pending == null)
+            return Collections.emptySet ();
+        return new HashSet <String> (pending);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Stop waiting, with whatever replies we have
+    public synchronized void expire ()
+    {
+        if (done.getCount () > 0) {
+            expired = true;
+            finish ();
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if we stopped waiting at the deadline
+    public boolean expired ()
+    {
+        return expired;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if we stopped waiting because members went away
+    public boolean failed ()
+    {
+        return failed;
+    }
+
+    private void finish ()
+    {
+        done.countDown ();
+    }
+
+    @Override
+    public synchronized boolean cancel (boolean mayInterruptIfRunning)
+    {
+        if (done.getCount () == 0)
+            return false;
+        cancelled = true;
+        finish ();
+        if (cancels != null)
+            cancels.add (this);
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled ()
+    {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone ()
+    {
+        return done.getCount () == 0;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Wait until done and return replies by peer identity
+    @Override
+    public Map <String, ZFrame> get () throws InterruptedException
+    {
+        done.await ();
+        return result ();
+    }
+
+    @Override
+    public Map <String, ZFrame> get (long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException
+    {
+        if (!done.await (timeout, unit))
+            throw new TimeoutException ();
+        return result ();
+    }
+
+    private synchronized Map <String, ZFrame> result ()
+    {
+        if (cancelled)
+            throw new CancellationException ();
+        return Collections.unmodifiableMap (replies);
+    }
+}
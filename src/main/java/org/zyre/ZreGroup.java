@@ -25,20 +25,50 @@
 */ 
 package org.zyre;
 
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.zeromq.ZFrame;
 
 public class ZreGroup
 {
+    //  Strategies to select one member for anycast
+    public static final int ROUND_ROBIN = 0;
+    public static final int RANDOM = 1;
+    public static final int LEAST_OUTSTANDING = 2;
+    public static final int LOWEST_RTT = 3;
 
     @SuppressWarnings ("unused")
     private final String name;
-    private final Map <String, ZrePeer> peers;
+    private final NavigableMap <String, ZrePeer> peers;     //  By identity, in order
+    private final List <ZrePeer> members;           //  Same peers, by position
+    private final Map <String, Integer> positions;  //  Position of each member
+    private int id;                     //  Our ID for group on the wire, -1 if none
+    private int next;                   //  Next member for round robin
+    private final Random random;
+    private ZreRing ring;               //  Routes keys to members, if any
     
     private ZreGroup (String name)
     {
         this.name = name;
-        peers = new HashMap <String, ZrePeer> ();
+        peers = new TreeMap <String, ZrePeer> ();
+        members = new ArrayList <ZrePeer> ();
+        positions = new HashMap <String, Integer> ();
+        id = -1;
+        random = new Random ();
     }
     
     //  ---------------------------------------------------------------------
@@ -63,6 +93,15 @@ public class ZreGroup
     public void join (ZrePeer peer)
     {
         peers.put (peer.identity (), peer);
+        Integer position = positions.get (peer.identity ());
+        if (position == null) {
+            positions.put (peer.identity (), members.size ());
+            members.add (peer);
+            if (ring != null)
+                ring.add (peer.identity ());
+        }
+        else
+            members.set (position, peer);
         peer.incStatus ();
     }
     
@@ -72,9 +111,99 @@ public class ZreGroup
     public void leave (ZrePeer peer)
     {
         peers.remove (peer.identity ());
+        Integer position = positions.remove (peer.identity ());
+        if (position != null) {
+            if (ring != null)
+                ring.remove (peer.identity ());
+            //  Move last member into the gap
+            ZrePeer last = members.remove (members.size () - 1);
+            if (position < members.size ()) {
+                members.set (position, last);
+                positions.put (last.identity (), position);
+            }
+        }
         peer.incStatus ();
     }
+
+    //  ---------------------------------------------------------------------
+    //  Keep ring up to date with members from now on
+    public void setRing (ZreRing ring)
+    {
+        this.ring = ring;
+        for (ZrePeer peer : members)
+            ring.add (peer.identity ());
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return ring of members, or null if none
+    public ZreRing ring ()
+    {
+        return ring;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Select one member for anycast, or null if group is empty. Takes
+    //  constant time whatever the group size. Least outstanding and lowest
+    //  RTT compare two members picked at random and take the better one,
+    //  which spreads load nearly as well as a full scan would.
+    public ZrePeer select (int strategy)
+    {
+        int size = members.size ();
+        if (size == 0)
+            return null;
+
+        if (strategy == ROUND_ROBIN) {
+            if (next >= size)
+                next = 0;
+            return members.get (next++);
+        }
+        int position = random.nextInt (size);
+        ZrePeer peer = members.get (position);
+        if (strategy == RANDOM || size == 1)
+            return peer;
+
+        //  Second pick is always a different member
+        ZrePeer other = members.get ((position + 1 + random.nextInt (size - 1)) % size);
+        if (strategy == LEAST_OUTSTANDING)
+            return other.outstanding () < peer.outstanding () ? other : peer;
+        else
+            return rttOf (other) < rttOf (peer) ? other : peer;
+    }
+
+    //  Peers we haven't measured yet come last
+    private static double rttOf (ZrePeer peer)
+    {
+        return peer.rtt () < 0 ? Double.MAX_VALUE : peer.rtt ();
+    }
     
+    //  ---------------------------------------------------------------------
+    //  Return true if peer is in group
+    public boolean has (ZrePeer peer)
+    {
+        return peers.containsKey (peer.identity ());
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Set our numeric ID for group, sent in SHOUT_ID commands
+    public void setId (int id)
+    {
+        this.id = id;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return our numeric ID for group, -1 if none
+    public int id ()
+    {
+        return id;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return peers in group
+    public Collection <ZrePeer> peers ()
+    {
+        return peers.values ();
+    }
+
     //  ---------------------------------------------------------------------
     //  Send message to all peers in group
     public void send (ZreMsg msg)
@@ -85,4 +214,130 @@ public class ZreGroup
         msg.destroy ();
     }
 
+    //  ---------------------------------------------------------------------
+    //  Send SHOUT to all peers in group, compressing content for peers
+    //  that accept it. Content is compressed once for the whole group.
+    //  Peers that resolve group IDs get the group's ID instead of name.
+    public void send (ZreMsg msg, ZreCompressor compressor)
+    {
+        ZFrame packed = null;
+        boolean tried = false;
+        for (ZrePeer peer: peers.values ()) {
+            if (compressor.wants (msg.content ()) && ZreCompressor.accepted (peer)) {
+                if (!tried) {
+                    packed = compressor.deflate (msg.content ());
+                    tried = true;
+                }
+                if (packed != null) {
+                    peer.send (ZreCompressor.compressed (
+                        msg.group (), msg.content ().size (), packed.duplicate ()));
+                    continue;
+                }
+            }
+            peer.shout (msg, id);
+        }
+        if (packed != null)
+            packed.destroy ();
+        msg.destroy ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send RELAY to members after identity after and before the message's
+    //  limit, or to the end if limit is empty, leaving out its origin. We
+    //  split them in identity order into as many ranges as the message's
+    //  fanout, and send to the first member of each range, with the start
+    //  of the next range as limit; that member relays to the rest of its
+    //  range in the same way. Every member thus forwards to at most fanout
+    //  others, whatever the size of the group, and since members each
+    //  split what they know, the tree follows members as they come and go.
+    //  Takes ownership of the message.
+    public void relay (ZreMsg msg, String after)
+    {
+        String limit = msg.limit ();
+        List <ZrePeer> range = new ArrayList <ZrePeer> ();
+        if (limit.isEmpty ())
+            range.addAll (peers.tailMap (after, false).values ());
+        else
+        if (after.compareTo (limit) < 0)
+            range.addAll (peers.subMap (after, false, limit, false).values ());
+        Iterator <ZrePeer> it = range.iterator ();
+        while (it.hasNext ())
+            if (it.next ().identity ().equals (msg.origin ()))
+                it.remove ();
+
+        int size = range.size ();
+        int ranges = Math.min (Math.max (msg.fanout (), 1), size);
+        for (int index = 0; index < ranges; index++) {
+            int end = (index + 1) * size / ranges;
+            ZreMsg copy = msg.dup ();
+            if (end < size)
+                copy.setLimit (range.get (end).identity ());
+            range.get (index * size / ranges).send (copy);
+        }
+        msg.destroy ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if group names fit in the 1-byte counts and lengths
+    //  of a HELLO command
+    public static boolean fits (Collection <String> names)
+    {
+        if (names.size () > ZreInterface.UBYTE_MAX)
+            return false;
+        for (String name : names)
+            if (ZreMsg.stringSize (name) > ZreInterface.UBYTE_MAX)
+                return false;
+        return true;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Pack group names into one frame, each with a 2-byte length, so
+    //  neither count nor names are limited as they are in HELLO
+    public static ZFrame pack (Collection <String> names)
+    {
+        List <byte []> encoded = new ArrayList <byte []> (names.size ());
+        int size = 0;
+        for (String name : names) {
+            byte [] data = name.getBytes (StandardCharsets.UTF_8);
+            encoded.add (data);
+            size += 2 + data.length;
+        }
+        ByteBuffer packed = ByteBuffer.allocate (size);
+        for (byte [] data : encoded) {
+            packed.putShort ((short) data.length);
+            packed.put (data);
+        }
+        return new ZFrame (packed.array ());
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Unpack group names packed by pack ()
+    public static List <String> unpack (ZFrame content)
+    {
+        List <String> names = new ArrayList <String> ();
+        ByteBuffer packed = ByteBuffer.wrap (content.getData ());
+        while (packed.remaining () >= 2) {
+            int size = packed.getShort () & 0xffff;
+            if (size > packed.remaining ())
+                break;              //  Malformed, drop the rest
+            names.add (new String (packed.array (), packed.position (), size,
+                                   StandardCharsets.UTF_8));
+            packed.position (packed.position () + size);
+        }
+        return names;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return SHA-1 digest of a set of group names as a hex string; the
+    //  digest does not depend on the order of names
+    public static String digest (Collection <String> names)
+    {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance ("SHA-1");
+            sha1.update (pack (new TreeSet <String> (names)).getData ());
+            return String.format ("%040x", new BigInteger (1, sha1.digest ()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException (e);
+        }
+    }
 }
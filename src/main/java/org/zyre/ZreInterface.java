@@ -26,35 +26,65 @@
 
 package org.zyre;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.zeromq.ZContext;
 import org.zeromq.ZFrame;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Poller;
 import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMQException;
 import org.zeromq.ZMsg;
 import org.zeromq.ZThread;
 
 public class ZreInterface
 {
     public static final int UBYTE_MAX = 0xff;
+    public static final int USHORT_MAX = 0xffff;
     //  Defined port numbers, pending IANA submission
     public static final int PING_PORT_NUMBER = 9991;
     public static final int LOG_PORT_NUMBER = 9992;
+    public static final int MULTICAST_PORT_NUMBER = 9993;
 
     //  Constants, to be configured/reviewed
     public static final int PING_INTERVAL   = 1000;   //  Once per second
     public static final int PEER_EVASIVE    = 5000;   //  Five seconds' silence is evasive
     public static final int PEER_EXPIRED   = 10000;   //  Ten seconds' silence is expired
+    public static final int STATS_INTERVAL  = 5000;   //  Between STATS reports to log
+    public static final int CONNECTIONS      = 128;   //  Peer connections we keep open
+    public static final int PEER_IDLE      = 30000;   //  Before we may close one
     
     private ZContext ctx;       //  Our context wrapper
     private Socket pipe;        //  Pipe through to agent
+    private ZreCompressor compressor;   //  Shared with agent, for statistics
+    private Map <String, ZrePeer> peers;    //  Shared with agent, for peer health
+    private Map <String, ZreRing> rings;    //  Shared with agent, for key owners
+    private Map <Long, ZreGather> gathers;  //  Shared with agent, requests by ID
+    private Queue <ZreGather> cancels;      //  Shared with agent, cancelled requests
+    private AtomicLong correlations;        //  Last request ID we used
+    private Map <String, String> leaders;   //  Shared with agent, leader by group
+    private Set <String> leading;           //  Shared with agent, groups we lead
+    private ZreTrace trace;                 //  Shared with agent, for latency
 
     //  ---------------------------------------------------------------------
     //  Constructor
@@ -62,7 +92,17 @@ public class ZreInterface
     public ZreInterface () 
     {
         ctx = new ZContext ();
-        pipe = ZThread.fork (ctx, new ZreInterfaceAgent ());
+        compressor = new ZreCompressor ();
+        peers = new ConcurrentHashMap <String, ZrePeer> ();
+        rings = new ConcurrentHashMap <String, ZreRing> ();
+        gathers = new ConcurrentHashMap <Long, ZreGather> ();
+        cancels = new ConcurrentLinkedQueue <ZreGather> ();
+        correlations = new AtomicLong ();
+        leaders = new ConcurrentHashMap <String, String> ();
+        leading = Collections.newSetFromMap (new ConcurrentHashMap <String, Boolean> ());
+        trace = new ZreTrace ();
+        pipe = ZThread.fork (ctx, new ZreInterfaceAgent (), compressor, peers, rings, gathers,
+                             leaders, leading, trace, cancels);
     }
     
     //  ---------------------------------------------------------------------
@@ -77,13 +117,27 @@ public class ZreInterface
     //  Returns ZMsg object, or NULL if interrupted
     public ZMsg recv ()
     {
-        return ZMsg.recvMsg (pipe);
+        ZMsg msg = ZMsg.recvMsg (pipe);
+        if (msg != null
+        && (msg.getFirst ().streq ("WHISPER") || msg.getFirst ().streq ("SHOUT")))
+            trace.delivered ();
+        return msg;
     }
     
+    //  ---------------------------------------------------------------------
+    //  Commands carry group names and headers as strings of at most 255
+    //  bytes; we refuse longer ones here, before they reach the agent
+    private static void checkString (String value)
+    {
+        if (ZreMsg.stringSize (value) > UBYTE_MAX)
+            throw new IllegalArgumentException ("Longer than 255 bytes: " + value);
+    }
+
     //  ---------------------------------------------------------------------
     //  Join a group
     public void join (String group) 
     {
+        checkString (group);
         pipe.sendMore ("JOIN");
         pipe.send (group);
     }
@@ -92,15 +146,43 @@ public class ZreInterface
     //  Leave a group
     public void leave (String group) 
     {
+        checkString (group);
         pipe.sendMore ("LEAVE");
         pipe.send (group);
     }
     
+    //  ---------------------------------------------------------------------
+    //  Join several groups; peers hear about them in one command
+    public void joinAll (Collection <String> groups) 
+    {
+        for (String group : groups)
+            checkString (group);
+        ZMsg msg = new ZMsg ();
+        msg.add ("JOIN");
+        for (String group : groups)
+            msg.add (group);
+        msg.send (pipe);
+    }
+    
+    //  ---------------------------------------------------------------------
+    //  Leave several groups; peers hear about them in one command
+    public void leaveAll (Collection <String> groups) 
+    {
+        for (String group : groups)
+            checkString (group);
+        ZMsg msg = new ZMsg ();
+        msg.add ("LEAVE");
+        for (String group : groups)
+            msg.add (group);
+        msg.send (pipe);
+    }
+    
     //  ---------------------------------------------------------------------
     //  Send message to single peer; peer ID is first frame in message
     //  Destroys message after sending
     public void whisper (ZMsg msg) 
     {
+        traced ();
         pipe.sendMore ("WHISPER");
         msg.send (pipe);
     }
@@ -109,10 +191,24 @@ public class ZreInterface
     //  Send message to a group of peers
     public void shout (ZMsg msg) 
     {
+        if (msg.peekFirst () != null && msg.peekFirst ().size () > UBYTE_MAX)
+            throw new IllegalArgumentException ("Group name longer than 255 bytes");
+        traced ();
         pipe.sendMore ("SHOUT");
         msg.send (pipe);
     }
     
+    //  ---------------------------------------------------------------------
+    //  If we sample this send, prefix the command with our timestamp; the
+    //  message's own frames are the caller's and we never read them
+    private void traced ()
+    {
+        if (trace.sample ()) {
+            pipe.sendMore ("TRACE");
+            pipe.sendMore (String.valueOf (ZreTrace.now ()));
+        }
+    }
+
     //  ---------------------------------------------------------------------
     //  Return interface handle, for polling
     public Socket handle ()
@@ -120,22 +216,355 @@ public class ZreInterface
         return pipe;
     }
     
+    //  ---------------------------------------------------------------------
+    //  Send message to one member of a group, selected round robin
+    //  Destroys message after sending
+    public void anycast (String group, ZMsg msg) 
+    {
+        anycast (group, ZreGroup.ROUND_ROBIN, msg);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send message to one member of a group, selected by the strategy,
+    //  one of the ZreGroup constants. The member gets a WHISPER.
+    //  Destroys message after sending
+    public void anycast (String group, int strategy, ZMsg msg) 
+    {
+        pipe.sendMore ("ANYCAST");
+        pipe.sendMore (group);
+        pipe.sendMore (String.valueOf (strategy));
+        msg.send (pipe);
+    }
+    
+    //  ---------------------------------------------------------------------
+    //  Send message to the member of a group that owns key on the group's
+    //  consistent-hash ring. The member gets a WHISPER; if we own the key
+    //  ourselves, we get it, from our own identity.
+    //  Destroys message after sending
+    public void whisperToOwner (String group, String key, ZMsg msg) 
+    {
+        pipe.sendMore ("OWNER");
+        pipe.sendMore (group);
+        pipe.sendMore (key);
+        msg.send (pipe);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return identity of the member that owns key within group, or null
+    //  if the group has no members. While we're in the group we're on its
+    //  ring too, so this may be our own identity, and every member agrees
+    //  on the owner. Reads the ring directly, so this doesn't wait for the
+    //  agent.
+    public String owner (String group, String key)
+    {
+        ZreRing ring = rings.get (group);
+        return ring != null ? ring.owner (key) : null;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send request to each member of a group and gather their replies.
+    //  Wanted is ZreGather.ALL, ZreGather.QUORUM, or a number of replies
+    //  to wait for; we stop waiting after timeout msecs in any case.
+    //  Members get a REQUEST event and answer with reply ().
+    //  Destroys message after sending
+    public ZreGather scatter (String group, ZMsg msg, int wanted, long timeout) 
+    {
+        ZreGather gather = new ZreGather (correlations.incrementAndGet (), wanted, timeout,
+                                          cancels);
+        gathers.put (gather.correlation (), gather);
+        pipe.sendMore ("SCATTER");
+        pipe.sendMore (group);
+        pipe.sendMore (String.valueOf (gather.correlation ()));
+        msg.send (pipe);
+        return gather;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send request to one peer and return a gather that holds its reply
+    //  by peer identity. Many requests may be in flight; past the peer's
+    //  request window they queue in the agent. The gather fails at once
+    //  if the peer exits, and expires after timeout msecs. The peer gets
+    //  a REQUEST event with an empty group.
+    //  Destroys message after sending
+    public ZreGather request (String peer, ZMsg msg, long timeout) 
+    {
+        ZreGather gather = new ZreGather (correlations.incrementAndGet (), 1, timeout, cancels);
+        gathers.put (gather.correlation (), gather);
+        pipe.sendMore ("REQUEST");
+        pipe.sendMore (peer);
+        pipe.sendMore (String.valueOf (gather.correlation ()));
+        msg.send (pipe);
+        return gather;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Answer a REQUEST event from peer
+    //  Destroys message after sending
+    public void reply (String peer, long correlation, ZMsg msg) 
+    {
+        pipe.sendMore ("REPLY");
+        pipe.sendMore (peer);
+        pipe.sendMore (String.valueOf (correlation));
+        msg.send (pipe);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Take jobs pushed to group, joining it as a worker. Each producer
+    //  may have up to credit jobs in flight to us; we get JOB events and
+    //  call done () as we finish each one. Calling again with more credit
+    //  raises the limit.
+    public void serve (String group, int credit) 
+    {
+        join (group);
+        pipe.sendMore ("SERVE");
+        pipe.sendMore (group);
+        pipe.send (String.valueOf (credit));
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Push job to one worker serving group that has credit; jobs wait in
+    //  the agent until some worker has credit
+    //  Destroys message after sending
+    public void push (String group, ZMsg msg) 
+    {
+        pipe.sendMore ("PUSH");
+        pipe.sendMore (group);
+        msg.send (pipe);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Tell producer we finished a JOB it pushed to us for group
+    public void done (String peer, String group) 
+    {
+        pipe.sendMore ("DONE");
+        pipe.sendMore (peer);
+        pipe.send (group);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Join group and elect a leader among its members, which should all
+    //  use elect () rather than join (). We get a LEADER event, with
+    //  leader identity and group name, now and whenever the leader
+    //  changes; leaving the group ends this.
+    public void elect (String group) 
+    {
+        join (group);
+        pipe.sendMore ("ELECT");
+        pipe.send (group);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return identity of leader of a group we elect in, or null if we
+    //  don't.
+    public String leader (String group)
+    {
+        return leaders.get (group);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if we lead group, so should run its periodic tasks
+    public boolean isLeader (String group)
+    {
+        return leading.contains (group);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Set number of points each member takes on group rings; more points
+    //  spread keys more evenly, at some cost in memory
+    public void setReplicas (int replicas)
+    {
+        if (replicas <= 0)
+            throw new IllegalArgumentException ("Replicas must be positive");
+        pipe.sendMore ("REPLICAS");
+        pipe.send (String.valueOf (replicas));
+    }
+    
     //  ---------------------------------------------------------------------
     //  Set node header value
     public void setHeader (String name, String format, Object ... args)
     {
+        String value = String.format (format, args);
+        if (ZreMsg.entrySize (name, value) > UBYTE_MAX)
+            throw new IllegalArgumentException ("Header longer than 255 bytes: " + name);
         pipe.sendMore ("SET");
         pipe.sendMore (name);
-        pipe.send (String.format (format, args));
+        pipe.send (value);
     }
     
     //  ---------------------------------------------------------------------
-    //  Publish file into virtual space
+    //  Compress WHISPER and SHOUT content of at least threshold bytes,
+    //  for peers that can decompress it; 0 disables compression
+    public void setCompression (int threshold)
+    {
+        pipe.sendMore ("COMPRESS");
+        pipe.send (String.valueOf (threshold));
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Log only one in so many events of level (ZreLogMsg.ZRE_LOG_MSG_LEVEL_*),
+    //  and at most perSecond of them each second, 0 for no limit
+    public void setLogLimits (int level, int oneIn, int perSecond)
+    {
+        if (level < ZreLogMsg.ZRE_LOG_MSG_LEVEL_ERROR
+        ||  level > ZreLogMsg.ZRE_LOG_MSG_LEVEL_INFO)
+            throw new IllegalArgumentException ("No such log level: " + level);
+        if (oneIn < 0 || perSecond < 0)
+            throw new IllegalArgumentException ("Log limits may not be negative");
+        pipe.sendMore ("LOGLIMITS");
+        pipe.sendMore (String.valueOf (level));
+        pipe.sendMore (String.valueOf (oneIn));
+        pipe.send (String.valueOf (perSecond));
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Shout to group along a relay tree when it has more than fanout
+    //  members: we send to fanout members, and each passes the shout on
+    //  to at most fanout more; 0 sends to every member ourselves again.
+    //  Members see the shout as coming from us either way.
+    public void setRelay (String group, int fanout)
+    {
+        pipe.sendMore ("RELAY");
+        pipe.sendMore (group);
+        pipe.send (String.valueOf (fanout));
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Shout small messages to group as one UDP multicast packet, instead
+    //  of a copy per member over TCP. Every member must enable this; each
+    //  tells the others when it listens, and we multicast only while all
+    //  members do. Shouts may then get lost or arrive out of order with
+    //  other commands.
+    public void setMulticast (String group, boolean enabled)
+    {
+        pipe.sendMore ("MULTICAST");
+        pipe.sendMore (group);
+        pipe.send (enabled ? "1" : "0");
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Hand commands to and from nodes in this process through memory
+    //  rather than TCP; on by default. Applies to peers we find from now.
+    public void setShortcut (boolean enabled)
+    {
+        pipe.sendMore ("SHORTCUT");
+        pipe.send (enabled ? "1" : "0");
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Hold whispers to a peer for up to delay microseconds, or until size
+    //  bytes are waiting, and send them as one BATCH command; 0 disables
+    public void setBatching (int delay, int size)
+    {
+        pipe.sendMore ("BATCH");
+        pipe.sendMore (String.valueOf (delay));
+        pipe.send (String.valueOf (size));
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return compression statistics; use setCompression to change the
+    //  threshold, as the agent owns the compressor
+    public ZreCompressor.Stats compression ()
+    {
+        return compressor.stats ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Keep at most budget connections to peers open, closing those we
+    //  exchanged nothing with for idle msecs, least recently used first.
+    //  We still know such peers and their groups, and connect again when
+    //  we next send them something.
+    public void setConnections (int budget, int idle)
+    {
+        pipe.sendMore ("CONNECTIONS");
+        pipe.sendMore (String.valueOf (budget));
+        pipe.send (String.valueOf (idle));
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if we hold a connection open to peer
+    public boolean connected (String peer)
+    {
+        ZrePeer known = peers.get (peer);
+        return known != null && known.connected () && !known.evicted ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if peer runs in this process and we reach it through
+    //  memory
+    public boolean shortcut (String peer)
+    {
+        ZrePeer known = peers.get (peer);
+        return known != null && known.local ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Trace one in so many whispers and shouts we send, 0 to stop. Peers
+    //  that get them keep latency histograms per stage; see ZreTrace.
+    public void setTracing (int oneIn)
+    {
+        trace.setSampling (oneIn);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return latency histograms of traced messages peers sent us
+    public ZreTrace tracing ()
+    {
+        return trace;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return peer's clock less ours in usecs, as measured by TIMED-PING
+    //  exchanges, or 0 if the peer is unknown or not measured yet
+    public long clockOffset (String peer)
+    {
+        ZrePeer known = peers.get (peer);
+        return known != null ? known.offset () : 0;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return smoothed round-trip time to peer in msecs, or -1 if the peer
+    //  is unknown or not measured yet
+    public double rtt (String peer)
+    {
+        ZrePeer known = peers.get (peer);
+        return known != null ? known.rtt () : -1;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return phi-accrual suspicion that peer has failed; peers become
+    //  evasive at ZrePeer.PHI_EVASIVE and expire at ZrePeer.PHI_EXPIRED.
+    //  Returns -1 if the peer is unknown.
+    public double phi (String peer)
+    {
+        ZrePeer known = peers.get (peer);
+        return known != null ? known.phi (System.currentTimeMillis ()) : -1;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Publish file into virtual space, offering it to all peers
     public void publish (String pathname, String virtual)
+    {
+        publish (pathname, virtual, "");
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Publish file into virtual space, offering it to members of a group.
+    //  Members fetch chunks from each other as well as from us, and each
+    //  gets a DELIVER event once it holds the whole file.
+    public void publish (String pathname, String virtual, String group)
     {
         pipe.sendMore ("PUBLISH");
         pipe.sendMore (pathname);
-        pipe.send (virtual);
+        pipe.sendMore (virtual);
+        pipe.send (group);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Set directory where files published to us are stored
+    public void setStorage (String path)
+    {
+        pipe.sendMore ("STORAGE");
+        pipe.send (path);
     }
     
     //  =====================================================================
@@ -197,6 +626,12 @@ public class ZreInterface
     
     private static final String OUTBOX = ".outbox";
     private static final String INBOX = ".inbox";
+
+    //  Header carrying digest of our groups, for compact HELLO
+    private static final String GROUPS_DIGEST = "X-ZRE-GROUPS";
+    private static final String EMPTY_DIGEST = ZreGroup.digest (new ArrayList <String> ());
+    //  How many peer group sets we remember by digest
+    private static final int GROUP_SETS_MAX = 64;
     
     protected static class Agent 
     {
@@ -204,54 +639,174 @@ public class ZreInterface
         private final Socket pipe;              //  Pipe back to application
         private final ZreUdp udp;               //  UDP object
         private final ZreLog log;               //  Log object
+        private final ZreRing collectors;       //  Log collectors among peers
+        private final Map <String, String> collectorEndpoints; //  Their endpoints
+        private String collector;               //  Endpoint our log goes to
+        private long msgsIn;                    //  Commands from peers
+        private long bytesIn;                   //  Their size, with content
+        private long lost;                      //  Commands peers sent that we missed
+        private long lag;                       //  Worst loop delay since last STATS
+        private long departedOut;               //  Counters of peers that exited
+        private long departedBytesOut;
+        private long departedDrops;
+        private long statsAt;                   //  When we send next STATS
+        private final ZreCompressor compressor; //  Content compression
         private final UUID uuid;                //  Our UUID as binary blob
         private final String identity;          //  Our UUID as hex string
         private final Socket inbox;             //  Our inbox socket (ROUTER)
+        private final Socket control;           //  Our control lane (ROUTER)
         private final String host;              //  Our host IP address
         private final int port;                 //  Our inbox port number
+        private final int controlPort;          //  Our control lane port number
         private final String endpoint;          //  ipaddress:port endpoint
         private int status;                     //  Our own change counter
         private final Map <String, ZrePeer> peers;            //  Hash of known peers, fast lookup
         private final Map <String, ZreGroup> peer_groups;     //  Groups that our peers are in
         private final Map <String, ZreGroup> own_groups;      //  Groups that we are in
         private final Map <String, String> headers;           //  Our header values
+        private final Map <String, ZreSwarm> swarms;          //  Files being distributed
+        private final Queue <ZreSwarm> seeded;                //  Files workers hashed for us
+        private final Map <String, ZreRing> rings;            //  Key owners in peer groups
+        private int replicas;                   //  Points per member on rings
+        private final Map <Long, ZreGather> gathers;          //  Requests awaiting replies
+        private final PriorityQueue <ZreGather> deadlines;    //  Same, by deadline
+        private final Queue <ZreGather> cancels;              //  Requests the caller cancelled
+        private final Map <String, ZreQueue> queues;          //  Jobs we push, by group
+        private final Map <String, Integer> serving;          //  Credit we give, by group
+        private final Map <String, Integer> relays;           //  Relay fan-out, by group
+        private final ZreMulticast multicast;   //  Small shouts, or null
+        private final ZreLocal local;           //  Commands from this process
+        private boolean shortcut;               //  Use peers' queues if local
+        private final Set <String> multicasting;              //  Groups we multicast
+        private final Set <String> listening;                 //  Own groups we multicast
+        private final Map <String, String> leaders;           //  Leader of each own group
+        private final Set <String> leading;                   //  Own groups we lead
+        private final Set <String> electing;                  //  Own groups with a leader
+        private final ZreTrace trace;                         //  Latency of traced messages
+        private long deliveries;                //  Whispers and shouts passed to caller
+        private int connections;                //  Peer connections we keep open
+        private long peerIdle;                  //  Msecs before we may close one
+        private String storage;                 //  Where we store files offered to us
+        private long batchDelay;                //  Nanoseconds to hold whispers, 0 = off
+        private int batchSize;                  //  Bytes that make a batch full
+        private long flushAt;                   //  When to send held whispers
+        private final Set <ZrePeer> batching;   //  Peers holding whispers
+        private ByteBuffer fullHello;           //  Encoded HELLO with our groups
+        private ByteBuffer compactHello;        //  Encoded HELLO with group digest
+        private final Map <String, List <String>> group_sets;   //  Peer group sets by digest
         
-        private Agent (ZContext ctx, Socket pipe, Socket inbox, 
-                                     ZreUdp udp, int port)
+        private Agent (ZContext ctx, Socket pipe, Socket inbox, Socket control,
+                                     ZreUdp udp, int port, int controlPort,
+                                     ZreCompressor compressor, Map <String, ZrePeer> peers,
+                                     Map <String, ZreRing> rings,
+                                     Map <Long, ZreGather> gathers,
+                                     Map <String, String> leaders,
+                                     Set <String> leading, ZreTrace trace,
+                                     Queue <ZreGather> cancels)
         {
             this.ctx = ctx;
             this.pipe = pipe;
             this.inbox = inbox;
+            this.control = control;
             this.udp = udp;
             this.port = port;
+            this.controlPort = controlPort;
+            this.compressor = compressor;
             
             host = udp.host ();
             uuid = UUID.randomUUID ();
             identity = uuidStr (uuid);
             endpoint = String.format ("%s:%d", host, port);
-            peers = new HashMap <String, ZrePeer> ();
+            this.peers = peers;
+            this.rings = rings;
+            this.gathers = gathers;
+            this.cancels = cancels;
+            this.leaders = leaders;
+            this.leading = leading;
+            this.trace = trace;
+            electing = new HashSet <String> ();
+            deadlines = new PriorityQueue <ZreGather> (16, new Comparator <ZreGather> () {
+                @Override
+                public int compare (ZreGather a, ZreGather b)
+                {
+                    return Long.compare (a.deadline (), b.deadline ());
+                }
+            });
+            replicas = ZreRing.REPLICAS;
             peer_groups = new HashMap <String, ZreGroup> ();
             own_groups = new HashMap <String, ZreGroup> ();
             headers = new HashMap <String, String> ();
+            swarms = new HashMap <String, ZreSwarm> ();
+            seeded = new ConcurrentLinkedQueue <ZreSwarm> ();
+            queues = new HashMap <String, ZreQueue> ();
+            serving = new HashMap <String, Integer> ();
+            relays = new HashMap <String, Integer> ();
+            multicast = newMulticast (identity, host);
+            local = new ZreLocal (identity);
+            local.register ();
+            shortcut = true;
+            multicasting = new HashSet <String> ();
+            listening = new HashSet <String> ();
+            batching = new LinkedHashSet <ZrePeer> ();
+            group_sets = new LinkedHashMap <String, List <String>> (16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry (Map.Entry <String, List <String>> eldest)
+                {
+                    return size () > GROUP_SETS_MAX;
+                }
+            };
+            storage = new File (System.getProperty ("java.io.tmpdir"),
+                                "zyre" + File.separator + identity).getPath ();
             
             log = new ZreLog (endpoint);
+            collectors = new ZreRing (ZreRing.REPLICAS);
+            collectorEndpoints = new HashMap <String, String> ();
+            statsAt = System.currentTimeMillis () + STATS_INTERVAL;
+            connections = CONNECTIONS;
+            peerIdle = PEER_IDLE;
         }
         
-        protected static Agent newAgent (ZContext ctx, Socket pipe) 
+        //  Without multicast on this host we shout over TCP only
+        private static ZreMulticast newMulticast (String identity, String host)
+        {
+            try {
+                return new ZreMulticast (identity, MULTICAST_PORT_NUMBER, host);
+            } catch (RuntimeException e) {
+                System.err.printf ("W: [%s] no multicast: %s\n", identity, e.getMessage ());
+                return null;
+            }
+        }
+
+        protected static Agent newAgent (ZContext ctx, Socket pipe, ZreCompressor compressor,
+                                         Map <String, ZrePeer> peers,
+                                         Map <String, ZreRing> rings,
+                                         Map <Long, ZreGather> gathers,
+                                         Map <String, String> leaders,
+                                         Set <String> leading, ZreTrace trace,
+                                         Queue <ZreGather> cancels) 
         {
             Socket inbox = ctx.createSocket (ZMQ.ROUTER);
             if (inbox == null)      //  Interrupted
                 return null;
+            Socket control = ctx.createSocket (ZMQ.ROUTER);
+            if (control == null)    //  Interrupted
+                return null;
+            //  Peers that evicted us connect again with the same identity
+            inbox.setRouterHandlover (true);
+            control.setRouterHandlover (true);
 
             ZreUdp udp = new ZreUdp (PING_PORT_NUMBER);
             int port = inbox.bindToRandomPort ("tcp://*", 0xc000, 0xffff);
-            if (port < 0) {          //  Interrupted
+            int controlPort = control.bindToRandomPort ("tcp://*", 0xc000, 0xffff);
+            if (port < 0 || controlPort < 0) {          //  Interrupted
                 System.err.println ("Failed to bind a random port");
                 udp.destroy ();
                 return null;
             }
             
-            return new Agent (ctx, pipe, inbox, udp, port);
+            return new Agent (ctx, pipe, inbox, control, udp, port, controlPort,
+                              compressor, peers, rings, gathers, leaders, leading, trace,
+                              cancels);
         }
         
         protected void destroy () 
@@ -262,9 +817,20 @@ public class ZreInterface
                 group.destroy ();
             for (ZreGroup group : own_groups.values ())
                 group.destroy ();
+            for (ZreSwarm swarm : swarms.values ())
+                swarm.destroy ();
+            swarms.clear ();
+            for (ZreSwarm swarm : seeded)
+                swarm.destroy ();
+            for (ZreQueue queue : queues.values ())
+                queue.destroy ();
             
             udp.destroy ();
+            local.destroy ();
+            if (multicast != null)
+                multicast.destroy ();
             log.destroy ();
+            compressor.destroy ();
             
         }
         
@@ -272,6 +838,8 @@ public class ZreInterface
         {
             if (++status > UBYTE_MAX)
                 status = 0;
+            fullHello = null;
+            compactHello = null;
             return status;
         }
         
@@ -285,8 +853,10 @@ public class ZreInterface
             }
         }
         
-        //  Find or create peer via its UUID string
-        private ZrePeer requirePeer (String identity, String address, int port)
+        //  Find or create peer via its UUID string. We send a compact HELLO
+        //  if we know the peer resolves group digests.
+        private ZrePeer requirePeer (String identity, String address, int port,
+                                     boolean compact)
         {
             ZrePeer peer = peers.get (identity);
             if (peer == null) {
@@ -296,16 +866,14 @@ public class ZreInterface
                 purgePeer ();
 
                 peer = ZrePeer.newPeer (identity, peers, ctx);
-                peer.connect (this.identity, endpoint);
+                peer.connect (this.identity, endpoint,
+                              shortcut ? ZreLocal.lookup (identity) : null);
 
                 //  Handshake discovery by sending HELLO as first message
-                ZreMsg msg = new ZreMsg (ZreMsg.HELLO);
-                msg.setIpaddress (this.udp.host ()); 
-                msg.setMailbox (this.port);
-                msg.setGroups (own_groups.keySet ());
-                msg.setStatus (status);
-                msg.setHeaders (new HashMap <String, String> (headers));
-                peer.send (msg);
+                if (peer.local ())
+                    peer.send (newHello (compact));
+                else
+                    peer.send (hello (compact));
 
                 log.info (ZreLogMsg.ZRE_LOG_MSG_EVENT_ENTER,
                               peer.endpoint (), endpoint);
@@ -317,12 +885,74 @@ public class ZreInterface
             return peer;
         }
         
+        //  Return our HELLO, encoded once until our status or headers
+        //  change. A compact HELLO carries only the digest of our groups;
+        //  we also send it when our groups don't fit into a full HELLO.
+        private ByteBuffer hello (boolean compact)
+        {
+            if (!compact && !ZreGroup.fits (own_groups.keySet ()))
+                compact = true;
+            ByteBuffer hello = compact ? compactHello : fullHello;
+            if (hello == null) {
+                ZreMsg msg = newHello (compact);
+                hello = ByteBuffer.allocate (msg.size ());
+                msg.encode (hello);
+                hello.flip ();
+                msg.destroy ();
+                if (compact)
+                    compactHello = hello;
+                else
+                    fullHello = hello;
+            }
+            return hello;
+        }
+
+        //  Return new HELLO command, for peers we don't send it encoded
+        private ZreMsg newHello (boolean compact)
+        {
+            if (!compact && !ZreGroup.fits (own_groups.keySet ()))
+                compact = true;
+            ZreMsg msg = new ZreMsg (ZreMsg.HELLO);
+            msg.setIpaddress (this.udp.host ()); 
+            msg.setMailbox (this.port);
+            //  Peers in this process read the list as we give it, not
+            //  as decoded, so a compact HELLO holds an empty one
+            msg.setGroups (compact ? Collections.<String> emptyList () : own_groups.keySet ());
+            msg.setStatus (status);
+            msg.setHeaders (helloHeaders ());
+            return msg;
+        }
+
+        //  Our headers plus the capabilities we announce to peers
+        private Map <String, String> helloHeaders ()
+        {
+            Map <String, String> values = new HashMap <String, String> (headers);
+            values.put (GROUPS_DIGEST, ZreGroup.digest (own_groups.keySet ()));
+            values.put (ZreCompressor.HEADER, ZreCompressor.DEFLATE);
+            values.put (ZrePeer.BATCH_HEADER, "1");
+            values.put (ZrePeer.GROUPS_HEADER, "1");
+            values.put (ZrePeer.CONTROL_HEADER, String.valueOf (controlPort));
+            values.put (ZrePeer.CLOCK_HEADER, "1");
+            if (multicast != null)
+                values.put (ZreMulticast.HEADER, String.valueOf (multicast.port ()));
+            return values;
+        }
+
         //  Find or create group via its name
         private ZreGroup requirePeerGroup (String name)
         {
             ZreGroup group = peer_groups.get (name);
-            if (group == null)
+            if (group == null) {
                 group = ZreGroup.newGroup (name, peer_groups);
+                ZreRing ring = new ZreRing (replicas);
+                group.setRing (ring);
+                if (own_groups.containsKey (name))
+                    ring.add (identity);
+                rings.put (name, ring);
+                //  Groups are never removed, so this numbers them in order
+                if (peer_groups.size () <= USHORT_MAX + 1)
+                    group.setId (peer_groups.size () - 1);
+            }
             return group;
 
         }
@@ -331,6 +961,10 @@ public class ZreInterface
         {
             ZreGroup group = requirePeerGroup (name);
             group.join (peer);
+            ZreQueue queue = queues.get (name);
+            if (queue != null)
+                queue.admit (peer);
+            elect (name);
             
             //  Now tell the caller about the peer joined a group
             pipe.sendMore ("JOIN");
@@ -344,6 +978,10 @@ public class ZreInterface
         {
             ZreGroup group = requirePeerGroup (name);
             group.leave (peer);
+            ZreQueue queue = queues.get (name);
+            if (queue != null)
+                queue.remove (peer);
+            elect (name);
             
             //  Now tell the caller about the peer joined a group
             pipe.sendMore ("LEAVE");
@@ -353,6 +991,199 @@ public class ZreInterface
             return group;
         }
 
+        //  Send content to peer as WHISPER, compressed or batched when that
+        //  is enabled and the peer supports it. Takes ownership of content.
+        private void whisper (ZrePeer peer, ZFrame content)
+        {
+            whisper (peer, content, true);
+        }
+
+        //  Traced whispers don't wait in a batch, so we can time them
+        private void whisper (ZrePeer peer, ZFrame content, boolean batchable)
+        {
+            ZFrame packed = null;
+            if (compressor.wants (content) && ZreCompressor.accepted (peer))
+                packed = compressor.deflate (content);
+            if (packed != null) {
+                peer.send (ZreCompressor.compressed (null, content.size (), packed));
+                content.destroy ();
+            }
+            else
+            if (batchable && batchDelay > 0 && content.size () < batchSize && peer.batches ()) {
+                if (batching.isEmpty ())
+                    flushAt = System.nanoTime () + batchDelay;
+                batching.add (peer);
+                if (peer.batch (content) >= batchSize) {
+                    peer.flush ();
+                    batching.remove (peer);
+                }
+            }
+            else {
+                ZreMsg msg = new ZreMsg (ZreMsg.WHISPER);
+                msg.setContent (content);
+                peer.send (msg);
+            }
+        }
+
+        //  Send peer stamps for the whisper or shout we send it next
+        private void trace (ZrePeer peer, long api, long dequeue)
+        {
+            ZreMsg msg = new ZreMsg (ZreMsg.TRACE);
+            msg.setApi (api);
+            msg.setDequeue (dequeue);
+            msg.setSent (ZreTrace.now ());
+            peer.send (msg);
+        }
+
+        //  Answer peer's PING; we answer a TIMED-PING with our clock as we
+        //  got it and replied
+        private void pong (ZrePeer peer, ZreMsg ping)
+        {
+            if (ping.id () == ZreMsg.TIMED_PING) {
+                long received = ZreTrace.now ();
+                ZreMsg pingOK = new ZreMsg (ZreMsg.TIMED_PING_OK);
+                pingOK.setStamp (ping.stamp ());
+                pingOK.setReceived (received);
+                pingOK.setSent (ZreTrace.now ());
+                peer.sendControl (pingOK);
+            }
+            else
+                peer.sendControl (new ZreMsg (ZreMsg.PING_OK));
+        }
+
+        //  Take peer's answer to our ping, and its clocks if it sent them
+        private void pongOk (ZrePeer peer, ZreMsg pingOK)
+        {
+            peer.pingOk ();
+            if (pingOK.id () == ZreMsg.TIMED_PING_OK)
+                peer.clock (pingOK.stamp (), pingOK.received (), pingOK.sent (),
+                            ZreTrace.now ());
+        }
+
+        //  Return true if command is a heartbeat, not traffic
+        private static boolean heartbeat (ZreMsg msg)
+        {
+            return msg.id () == ZreMsg.PING || msg.id () == ZreMsg.PING_OK
+                || msg.id () == ZreMsg.TIMED_PING || msg.id () == ZreMsg.TIMED_PING_OK;
+        }
+
+        //  Shout content to group by multicast if we can; we need every
+        //  member listening for the group on our port, and content that
+        //  fits a packet
+        private boolean multicast (ZreGroup group, String name, ZFrame content)
+        {
+            if (multicast == null || !multicasting.contains (name)
+                    || content.size () > ZreMulticast.MTU)
+                return false;
+            String port = String.valueOf (multicast.port ());
+            for (ZrePeer peer : group.peers ())
+                if (!port.equals (peer.header (ZreMulticast.HEADER, null))
+                        || !peer.listening (name))
+                    return false;
+            try {
+                return multicast.send (name, content.getData ());
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        //  Listen for multicast shouts to group while we're in it and have
+        //  enabled multicast for it, and tell peers when that changes
+        private void listen (String name)
+        {
+            if (multicast == null)
+                return;
+            boolean wanted = multicasting.contains (name) && own_groups.containsKey (name);
+            if (wanted && listening.add (name)) {
+                try {
+                    multicast.join (name);
+                    for (ZrePeer peer : peers.values ())
+                        sendListen (peer, name, true);
+                } catch (IOException e) {
+                    System.err.printf ("W: [%s] cannot multicast %s: %s\n",
+                                       identity, name, e.getMessage ());
+                    listening.remove (name);
+                }
+            }
+            else
+            if (!wanted && listening.remove (name)) {
+                multicast.leave (name);
+                for (ZrePeer peer : peers.values ())
+                    sendListen (peer, name, false);
+            }
+        }
+
+        //  Tell peer whether we listen for multicast shouts to group, if
+        //  it multicasts at all
+        private void sendListen (ZrePeer peer, String name, boolean enabled)
+        {
+            if (peer.ready () && peer.header (ZreMulticast.HEADER, null) != null) {
+                ZreMsg msg = new ZreMsg (ZreMsg.LISTEN);
+                msg.setGroup (name);
+                msg.setListening (enabled ? 1 : 0);
+                peer.send (msg);
+            }
+        }
+
+        //  Pass whisper or shout from peer up to caller; group is null for
+        //  a whisper. If peer traced the message, we time its arrival and
+        //  the caller's API times its delivery.
+        private void deliver (ZrePeer peer, String group, ZFrame content)
+        {
+            deliver (peer, peer.identity (), group, content);
+        }
+
+        //  Same, for message that sender passed on for another peer
+        private void deliver (ZrePeer peer, String sender, String group, ZFrame content)
+        {
+            deliveries++;
+            ZreTrace.Stamps stamps = peer.takeTraced ();
+            if (stamps != null)
+                trace.received (peer.identity (), stamps, deliveries,
+                                peer.synced (), peer.offset ());
+            pipe.sendMore (group == null ? "WHISPER" : "SHOUT");
+            pipe.sendMore (sender);
+            if (group != null)
+                pipe.sendMore (group);
+            content.send (pipe, 0);
+        }
+
+        //  Tell peers we joined or left groups. Each group moves our status
+        //  on by one. Peers that know packed group lists get one command
+        //  for several groups, others get one command per group.
+        private void sendMembership (int single, int many, List <String> names)
+        {
+            if (names.isEmpty ())
+                return;
+            int first = status;
+            for (int count = 0; count < names.size (); count++)
+                incStatus ();
+
+            ZreMsg bulk = null;
+            if (names.size () > 1) {
+                bulk = new ZreMsg (many);
+                bulk.setStatus (status);
+                bulk.setContent (ZreGroup.pack (names));
+            }
+            for (ZrePeer peer : peers.values ()) {
+                if (bulk != null && peer.header (GROUPS_DIGEST, null) != null) {
+                    peer.send (bulk.dup ());
+                    continue;
+                }
+                int next = first;
+                for (String name : names) {
+                    if (++next > UBYTE_MAX)
+                        next = 0;
+                    ZreMsg msg = new ZreMsg (single);
+                    msg.setGroup (name);
+                    msg.setStatus (next);
+                    peer.send (msg);
+                }
+            }
+            if (bulk != null)
+                bulk.destroy ();
+        }
+
         //  Here we handle the different control messages from the front-end
         protected boolean recvFromApi ()
         {
@@ -362,6 +1193,13 @@ public class ZreInterface
             if (command == null)
                 return false;                  //  Interrupted
 
+            //  A traced send carries its API timestamp in a prefix
+            String stamp = null;
+            if (command.equals ("TRACE")) {
+                stamp = request.popString ();
+                command = request.popString ();
+            }
+
             if (command.equals ("WHISPER")) {
                 //  Get peer to send message to
                 String identity = request.popString ();
@@ -370,10 +1208,143 @@ public class ZreInterface
                 //  Send frame on out to peer's mailbox, drop message
                 //  if peer doesn't exist (may have been destroyed)
                 if (peer != null) {
-                    ZreMsg msg = new ZreMsg (ZreMsg.WHISPER);
+                    ZFrame content = request.pop ();
+                    if (stamp != null)
+                        trace (peer, Long.parseLong (stamp), ZreTrace.now ());
+                    whisper (peer, content, stamp == null);
+                }
+            } else if (command.equals ("ANYCAST")) {
+                //  Get group to send message to, drop message if nobody
+                //  is in it
+                String name = request.popString ();
+                int strategy = Integer.parseInt (request.popString ());
+                ZreGroup group = peer_groups.get (name);
+                ZrePeer peer = group != null ? group.select (strategy) : null;
+                if (peer != null) {
+                    peer.anycast ();
+                    whisper (peer, request.pop ());
+                }
+            } else if (command.equals ("ELECT")) {
+                String name = request.popString ();
+                electing.add (name);
+                elect (name);
+            } else if (command.equals ("SERVE")) {
+                //  Join group as worker and give each peer credit
+                String name = request.popString ();
+                int credit = Integer.parseInt (request.popString ());
+                Integer previous = serving.put (name, credit);
+                int more = previous == null ? credit : credit - previous;
+                if (more > 0) {
+                    //  Peers not ready yet get credit with their HELLO
+                    for (ZrePeer peer : peers.values ())
+                        if (peer.ready ())
+                            credit (peer, name, more);
+                }
+            } else if (command.equals ("PUSH")) {
+                String name = request.popString ();
+                ZreQueue queue = queues.get (name);
+                if (queue == null) {
+                    queue = new ZreQueue (name);
+                    queues.put (name, queue);
+                }
+                queue.push (request.pop ());
+            } else if (command.equals ("DONE")) {
+                //  Worker finished a job, give producer credit for another
+                String identity = request.popString ();
+                String name = request.popString ();
+                ZrePeer peer = peers.get (identity);
+                if (peer != null && serving.containsKey (name))
+                    credit (peer, name, 1);
+            } else if (command.equals ("OWNER")) {
+                //  Get group and key, drop message if nobody owns the key
+                String name = request.popString ();
+                String key = request.popString ();
+                ZreRing ring = rings.get (name);
+                String owner = ring != null ? ring.owner (key) : null;
+                ZrePeer peer = owner != null ? peers.get (owner) : null;
+                if (peer != null)
+                    whisper (peer, request.pop ());
+                else
+                if (identity.equals (owner)) {
+                    //  We own the key, so the caller gets the whisper
+                    deliveries++;
+                    pipe.sendMore ("WHISPER");
+                    pipe.sendMore (identity);
+                    request.pop ().send (pipe, 0);
+                }
+            } else if (command.equals ("SCATTER")) {
+                //  Send request to members present now, and only wait
+                //  for their replies
+                String name = request.popString ();
+                long correlation = Long.parseLong (request.popString ());
+                ZFrame content = request.pop ();
+                ZreGather gather = gathers.get (correlation);
+                ZreGroup group = peer_groups.get (name);
+                if (gather != null) {
+                    List <String> members = new ArrayList <String> ();
+                    if (group != null) {
+                        for (ZrePeer peer : group.peers ()) {
+                            ZreMsg msg = new ZreMsg (ZreMsg.REQUEST);
+                            msg.setGroup (name);
+                            msg.setCorrelation (correlation);
+                            msg.setContent (content.duplicate ());
+                            peer.send (msg);
+                            members.add (peer.identity ());
+                        }
+                    }
+                    gather.expect (members);
+                    if (gather.isDone ())
+                        gathers.remove (correlation);
+                    else
+                        deadlines.add (gather);
+                }
+                content.destroy ();
+            } else if (command.equals ("REQUEST")) {
+                //  Send request to one peer, within its request window
+                String identity = request.popString ();
+                long correlation = Long.parseLong (request.popString ());
+                ZFrame content = request.pop ();
+                ZreGather gather = gathers.get (correlation);
+                ZrePeer peer = peers.get (identity);
+                if (gather != null) {
+                    if (peer != null) {
+                        ZreMsg msg = new ZreMsg (ZreMsg.REQUEST);
+                        msg.setGroup ("");
+                        msg.setCorrelation (correlation);
+                        msg.setContent (content.duplicate ());
+                        peer.request (msg);
+                        gather.expect (Collections.singletonList (identity));
+                        deadlines.add (gather);
+                    }
+                    else {
+                        //  Unknown peer, fail at once
+                        gather.expect (Collections.singletonList (identity));
+                        gather.lost (identity);
+                        gathers.remove (correlation);
+                    }
+                }
+                content.destroy ();
+            } else if (command.equals ("REPLY")) {
+                String identity = request.popString ();
+                long correlation = Long.parseLong (request.popString ());
+                ZrePeer peer = peers.get (identity);
+                if (peer != null) {
+                    ZreMsg msg = new ZreMsg (ZreMsg.REPLY);
+                    msg.setCorrelation (correlation);
                     msg.setContent (request.pop ());
                     peer.send (msg);
                 }
+            } else if (command.equals ("REPLICAS")) {
+                replicas = Integer.parseInt (request.popString ());
+                for (Map.Entry <String, ZreGroup> entry : peer_groups.entrySet ()) {
+                    ZreGroup group = entry.getValue ();
+                    List <String> identities = new ArrayList <String> ();
+                    for (ZrePeer peer : group.peers ())
+                        identities.add (peer.identity ());
+                    if (own_groups.containsKey (entry.getKey ()))
+                        identities.add (identity);
+                    group.ring ().setReplicas (replicas, identities);
+                }
             } else if (command.equals ("SHOUT")) {
                 //  Get group to send message to
                 String name = request.popString ();
@@ -382,39 +1353,118 @@ public class ZreInterface
                     ZreMsg msg = new ZreMsg (ZreMsg.SHOUT);
                     msg.setGroup (name);
                     msg.setContent (request.pop ());
-                    group.send (msg);
+                    Integer fanout = relays.get (name);
+                    if (stamp == null && multicast (group, name, msg.content ()))
+                        msg.destroy ();
+                    else
+                    if (fanout != null && group.peers ().size () > fanout) {
+                        //  Relayed shouts aren't traced
+                        ZreMsg relay = new ZreMsg (ZreMsg.RELAY);
+                        relay.setGroup (name);
+                        relay.setOrigin (identity);
+                        relay.setLimit ("");
+                        relay.setFanout (fanout);
+                        relay.setContent (msg.content ().duplicate ());
+                        group.relay (relay, "");
+                        msg.destroy ();
+                    }
+                    else {
+                        if (stamp != null) {
+                            long api = Long.parseLong (stamp);
+                            long dequeue = ZreTrace.now ();
+                            for (ZrePeer peer : group.peers ())
+                                trace (peer, api, dequeue);
+                        }
+                        group.send (msg, compressor);
+                    }
                 }
             } else if (command.equals ("JOIN")) {
-                String name = request.popString ();
-                ZreGroup group = own_groups.get (name);
-                if (group == null) {
-                    //  Only send if we're not already in group
-                    group = ZreGroup.newGroup (name, own_groups);
-                    ZreMsg msg = new ZreMsg (ZreMsg.JOIN);
-                    msg.setGroup (name);
-                    //  Update status before sending command
-                    msg.setStatus (incStatus ());
-                    sendPeers (peers, msg);
-                    msg.destroy ();
-                    log.info (ZreLogMsg.ZRE_LOG_MSG_EVENT_JOIN, null, name);
+                //  Only send groups we're not already in
+                List <String> names = new ArrayList <String> ();
+                for (String name = request.popString (); name != null; name = request.popString ()) {
+                    if (!own_groups.containsKey (name)) {
+                        ZreGroup.newGroup (name, own_groups);
+                        names.add (name);
+                        log.info (ZreLogMsg.ZRE_LOG_MSG_EVENT_JOIN, null, name);
+                    }
+                }
+                //  Peers hear we listen before they see us join; we own
+                //  keys in the group from now on
+                for (String name : names) {
+                    listen (name);
+                    requirePeerGroup (name).ring ().add (identity);
                 }
+                sendMembership (ZreMsg.JOIN, ZreMsg.JOIN_MANY, names);
+                for (String name : names)
+                    elect (name);
             } else if (command.equals ("LEAVE")) {
-                String name = request.popString ();
-                ZreGroup group = own_groups.get (name);
-                if (group != null) {
-                    //  Only send if we are actually in group
-                    ZreMsg msg = new ZreMsg (ZreMsg.LEAVE);
-                    msg.setGroup (name);
-                    //  Update status before sending command
-                    msg.setStatus (incStatus ());
-                    sendPeers (peers, msg);
-                    own_groups.remove (name);
-                    log.info (ZreLogMsg.ZRE_LOG_MSG_EVENT_LEAVE, null, name);
+                //  Only send groups we are actually in
+                List <String> names = new ArrayList <String> ();
+                for (String name = request.popString (); name != null; name = request.popString ()) {
+                    if (own_groups.remove (name) != null) {
+                        names.add (name);
+                        log.info (ZreLogMsg.ZRE_LOG_MSG_EVENT_LEAVE, null, name);
+                    }
+                }
+                sendMembership (ZreMsg.LEAVE, ZreMsg.LEAVE_MANY, names);
+                for (String name : names) {
+                    serving.remove (name);      //  No more jobs for us
+                    elect (name);
+                    electing.remove (name);
+                    listen (name);
+                    peer_groups.get (name).ring ().remove (identity);
                 }
             } else if (command.equals ("SET")) {
                 String name = request.popString ();
                 String value = request.popString ();
                 headers.put (name, value);
+                fullHello = null;
+                compactHello = null;
+            } else if (command.equals ("PUBLISH")) {
+                String pathname = request.popString ();
+                String name = request.popString ();
+                String group = request.popString ();
+                ZreSwarm swarm = swarms.get (name);
+                if (swarm == null)
+                    seed (name, group, pathname);
+                else
+                    offer (swarm);
+            } else if (command.equals ("COMPRESS")) {
+                compressor.setThreshold (Integer.parseInt (request.popString ()));
+            } else if (command.equals ("LOGLIMITS")) {
+                int level = Integer.parseInt (request.popString ());
+                log.setSampling (level, Integer.parseInt (request.popString ()));
+                log.setRate (level, Integer.parseInt (request.popString ()));
+            } else if (command.equals ("BATCH")) {
+                batchDelay = Long.parseLong (request.popString ()) * 1000;
+                batchSize = Integer.parseInt (request.popString ());
+                if (batchDelay == 0)
+                    flushBatches (true);
+            } else if (command.equals ("RELAY")) {
+                String name = request.popString ();
+                int fanout = Integer.parseInt (request.popString ());
+                if (fanout > 0)
+                    relays.put (name, Math.min (fanout, UBYTE_MAX));
+                else
+                    relays.remove (name);
+            } else if (command.equals ("MULTICAST")) {
+                String name = request.popString ();
+                if (request.popString ().equals ("1"))
+                    multicasting.add (name);
+                else
+                    multicasting.remove (name);
+                listen (name);
+            } else if (command.equals ("SHORTCUT")) {
+                shortcut = request.popString ().equals ("1");
+                if (shortcut)
+                    local.register ();
+                else
+                    local.unregister ();
+            } else if (command.equals ("CONNECTIONS")) {
+                connections = Integer.parseInt (request.popString ());
+                peerIdle = Long.parseLong (request.popString ());
+            } else if (command.equals ("STORAGE")) {
+                storage = request.popString ();
             } else {
             	System.err.println("Unknown command: " + command);
             }
@@ -424,6 +1474,33 @@ public class ZreInterface
             return true;
         }
         
+        //  Here we handle heartbeats that peers send on our control lane;
+        //  we poll it ahead of the inbox so they don't wait behind data
+        protected boolean recvFromControl ()
+        {
+            ZreMsg msg = ZreMsg.recv (control);
+            if (msg == null)
+                return false;               //  Interrupted
+
+            String identity = new String (msg.address ().getData ());
+            ZrePeer peer = peers.get (identity);
+            //  The lane doesn't wait for the peer's HELLO in our inbox, so
+            //  heartbeats from a peer we know may beat it here; we take
+            //  them anyway, or the peer's first probe is lost and it waits
+            //  a whole probe interval to measure round-trip time
+            if (peer != null) {
+                if (msg.id () == ZreMsg.PING || msg.id () == ZreMsg.TIMED_PING)
+                    pong (peer, msg);
+                else
+                if (msg.id () == ZreMsg.PING_OK || msg.id () == ZreMsg.TIMED_PING_OK)
+                    pongOk (peer, msg);
+                //  Activity from peer resets peer timers
+                peer.refresh ();
+            }
+            msg.destroy ();
+            return true;
+        }
+
         //  Here we handle messages coming from other peers
         protected boolean recvFromPeer ()
         {
@@ -432,32 +1509,68 @@ public class ZreInterface
             if (msg == null)
                 return false;               //  Interrupted
 
+            recvCommand (msg);
+            return true;
+        }
+
+        //  Here we handle commands that peers in this process handed us
+        protected void recvFromLocal ()
+        {
+            for (ZreMsg msg = local.recv (); msg != null; msg = local.recv ())
+                recvCommand (msg);
+        }
+
+        //  Process command from peer; the address is the peer's identity
+        private void recvCommand (ZreMsg msg)
+        {
             String identity = new String (msg.address ().getData ());
+            msgsIn++;
+            bytesIn += msg.size ();
+            if (msg.content () != null)
+                bytesIn += msg.content ().size ();
             
             //  On HELLO we may create the peer if it's unknown
             //  On other commands the peer must already exist
             ZrePeer peer = peers.get (identity);
             if (msg.id () == ZreMsg.HELLO) {
-                peer = requirePeer (
-                    identity, msg.ipaddress (), msg.mailbox ());
+                peer = requirePeer (identity, msg.ipaddress (), msg.mailbox (),
+                    msg.headers ().containsKey (GROUPS_DIGEST));
                 assert (peer != null);
                 peer.setReady (true);
             }
             //  Ignore command if peer isn't ready
             if (peer == null || !peer.ready ()) {
                 msg.destroy ();
-                return true;
+                return;
             }
 
+            if (!heartbeat (msg))
+                peer.used ();
             if (!peer.checkMessage (msg)) {
+                lost++;
                 System.err.printf ("W: [%s] lost messages from %s\n", this.identity, identity);
                 assert (false);
             }
 
             //  Now process each command
             if (msg.id () == ZreMsg.HELLO) {
-                //  Join peer to listed groups
-                for (String name : msg.groups ()) {
+                //  Join peer to listed groups; a compact HELLO lists none
+                //  and we look its groups up by digest, or ask for them
+                List <String> names = msg.groups ();
+                String digest = msg.headers ().get (GROUPS_DIGEST);
+                if (digest != null) {
+                    if (!names.isEmpty ())
+                        group_sets.put (digest, names);
+                    else
+                    if (!digest.equals (EMPTY_DIGEST)) {
+                        names = group_sets.get (digest);
+                        if (names == null) {
+                            names = new ArrayList <String> ();
+                            peer.send (new ZreMsg (ZreMsg.GET_GROUPS));
+                        }
+                    }
+                }
+                for (String name : names) {
                     joinPeerGroup (peer, name);
                 }
                 //  Hello command holds latest status of peer
@@ -465,28 +1578,163 @@ public class ZreInterface
 
                 //  Store peer headers for future reference
                 peer.setHeaders (msg.headers ());
+                peer.connectControl (this.identity);
+                String endpoint = peer.header (ZreLog.COLLECTOR_HEADER, null);
+                if (endpoint != null) {
+                    collectorEndpoints.put (identity, endpoint);
+                    collectors.add (identity);
+                    wireLog ();
+                }
+
+                //  Peer starts afresh, so any credit it gave us is gone;
+                //  give it credit for groups we serve
+                for (ZreQueue queue : queues.values ())
+                    queue.remove (peer);
+                for (Map.Entry <String, Integer> entry : serving.entrySet ())
+                    credit (peer, entry.getKey (), entry.getValue ());
+
+                //  Tell peer which groups we get by multicast
+                for (String name : listening)
+                    sendListen (peer, name, true);
             }
             else
+            if (msg.id () == ZreMsg.LISTEN)
+                peer.setListening (msg.group (), msg.listening () == 1);
+            else
             if (msg.id () == ZreMsg.WHISPER) {
                 //  Pass up to caller API as WHISPER event
+                peer.answered ();
+                deliver (peer, null, msg.content ()); // let msg free the frame
+            }
+            else
+            if (msg.id () == ZreMsg.SHOUT) {
+                //  Pass up to caller as SHOUT event
+                deliver (peer, msg.group (), msg.content ()); // let msg free the frame
+            }
+            else
+            if (msg.id () == ZreMsg.REQUEST) {
+                //  Pass up to caller as REQUEST event
                 ZFrame cookie = msg.content ();
-                pipe.sendMore ("WHISPER");
+                pipe.sendMore ("REQUEST");
                 pipe.sendMore (identity);
+                pipe.sendMore (msg.group ());
+                pipe.sendMore (String.valueOf (msg.correlation ()));
                 cookie.send (pipe, 0); // let msg free the frame
             }
             else
-            if (msg.id () == ZreMsg.SHOUT) {
-                //  Pass up to caller as SHOUT event
+            if (msg.id () == ZreMsg.REPLY) {
+                //  Hand reply to the request waiting for it, if any
+                ZreGather gather = gathers.get (msg.correlation ());
+                if (gather != null && gather.reply (identity, msg.content ().duplicate ())) {
+                    gathers.remove (msg.correlation ());
+                    deadlines.remove (gather);
+                }
+                peer.settled (msg.correlation ());
+            }
+            else
+            if (msg.id () == ZreMsg.CREDIT) {
+                //  Credit counts only once the worker is in the group
+                ZreQueue queue = queues.get (msg.group ());
+                if (queue == null) {
+                    queue = new ZreQueue (msg.group ());
+                    queues.put (msg.group (), queue);
+                }
+                ZreGroup group = peer_groups.get (msg.group ());
+                queue.credit (peer, group != null && group.has (peer), msg.credit ());
+            }
+            else
+            if (msg.id () == ZreMsg.JOB) {
+                //  Pass up to caller as JOB event
                 ZFrame cookie = msg.content ();
-                pipe.sendMore ("SHOUT");
+                pipe.sendMore ("JOB");
                 pipe.sendMore (identity);
                 pipe.sendMore (msg.group ());
                 cookie.send (pipe, 0); // let msg free the frame
             }
             else
-            if (msg.id () == ZreMsg.PING) {
-                ZreMsg pingOK = new ZreMsg (ZreMsg.PING_OK);
-                peer.send (pingOK);
+            if (msg.id () == ZreMsg.BIND)
+                peer.bindGroup (msg.groupid (), msg.group ());
+            else
+            if (msg.id () == ZreMsg.SHOUT_ID) {
+                //  Pass up to caller as SHOUT event, by bound group name
+                String name = peer.groupName (msg.groupid ());
+                if (name != null)
+                    deliver (peer, name, msg.content ()); // let msg free the frame
+                else
+                    System.err.printf ("W: [%s] unknown group ID from %s\n",
+                                       this.identity, identity);
+            }
+            else
+            if (msg.id () == ZreMsg.BATCH) {
+                //  Pass up to caller API as separate WHISPER events
+                for (ZFrame content : ZrePeer.unbatch (msg.content ())) {
+                    peer.answered ();
+                    deliver (peer, null, content);
+                }
+            }
+            else
+            if (msg.id () == ZreMsg.COMPRESSED) {
+                //  Pass up to caller as WHISPER or SHOUT event
+                ZFrame content = compressor.inflate (msg);
+                if (content != null) {
+                    if (msg.group ().isEmpty ())
+                        peer.answered ();
+                    deliver (peer, msg.group ().isEmpty () ? null : msg.group (), content);
+                }
+                else
+                    System.err.printf ("W: [%s] bad compressed content from %s\n",
+                                       this.identity, identity);
+            }
+            else
+            if (msg.id () == ZreMsg.PING || msg.id () == ZreMsg.TIMED_PING)
+                pong (peer, msg);
+            else
+            if (msg.id () == ZreMsg.PING_OK || msg.id () == ZreMsg.TIMED_PING_OK)
+                pongOk (peer, msg);
+            else
+            if (msg.id () == ZreMsg.RELAY) {
+                //  Pass on to our range of the relay tree, then up to
+                //  caller as SHOUT event from the origin
+                ZreGroup group = peer_groups.get (msg.group ());
+                if (group != null) {
+                    ZreMsg relay = new ZreMsg (ZreMsg.RELAY);
+                    relay.setGroup (msg.group ());
+                    relay.setOrigin (msg.origin ());
+                    relay.setLimit (msg.limit ());
+                    relay.setFanout (msg.fanout ());
+                    relay.setContent (msg.content ().duplicate ());
+                    group.relay (relay, this.identity);
+                }
+                if (own_groups.containsKey (msg.group ()))
+                    deliver (peer, msg.origin (), msg.group (), msg.content ());
+            }
+            else
+            if (msg.id () == ZreMsg.TRACE)
+                peer.traced (new ZreTrace.Stamps (msg.api (), msg.dequeue (), msg.sent ()));
+            else
+            if (msg.id () == ZreMsg.GET_GROUPS) {
+                ZreMsg groups = new ZreMsg (ZreMsg.GROUPS);
+                groups.setStatus (status);
+                groups.setContent (ZreGroup.pack (own_groups.keySet ()));
+                peer.send (groups);
+            }
+            else
+            if (msg.id () == ZreMsg.GROUPS) {
+                //  Groups are current as of this reply, so bring membership
+                //  in line with them, whatever JOIN and LEAVE said before
+                List <String> names = ZreGroup.unpack (msg.content ());
+                group_sets.put (ZreGroup.digest (names), names);
+                for (String name : names) {
+                    ZreGroup group = peer_groups.get (name);
+                    if (group == null || !group.has (peer))
+                        joinPeerGroup (peer, name);
+                }
+                Set <String> current = new HashSet <String> (names);
+                for (Map.Entry <String, ZreGroup> entry : peer_groups.entrySet ()) {
+                    if (entry.getValue ().has (peer) && !current.contains (entry.getKey ()))
+                        leavePeerGroup (peer, entry.getKey ());
+                }
+                peer.setStatus (msg.status ());
             }
             else
             if (msg.id () == ZreMsg.JOIN) {
@@ -498,11 +1746,69 @@ public class ZreInterface
                 leavePeerGroup (peer, msg.group ());
                 assert (msg.status () == peer.status ());
             }
+            else
+            if (msg.id () == ZreMsg.JOIN_MANY) {
+                for (String name : ZreGroup.unpack (msg.content ()))
+                    joinPeerGroup (peer, name);
+                assert (msg.status () == peer.status ());
+            }
+            else
+            if (msg.id () == ZreMsg.LEAVE_MANY) {
+                for (String name : ZreGroup.unpack (msg.content ()))
+                    leavePeerGroup (peer, name);
+                assert (msg.status () == peer.status ());
+            }
+            else
+            if (msg.id () == ZreMsg.OFFER) {
+                ZreSwarm swarm = swarms.get (msg.name ());
+                if (swarm == null && !ZreSwarm.validName (msg.name ()))
+                    System.err.printf ("W: [%s] bad file name offered by %s\n",
+                                       this.identity, identity);
+                else
+                if (swarm == null) {
+                    String pathname = new File (storage, msg.name ()).getPath ();
+                    swarm = ZreSwarm.newLeech (msg.name (), msg.group (), pathname,
+                            identity, msg.filesize (), msg.chunks ().getData (), swarms);
+                }
+                else
+                    swarm.addSeed (identity);
+                if (swarm != null)
+                    swarm.fetch (peers);
+            }
+            else
+            if (msg.id () == ZreMsg.HAVE) {
+                ZreSwarm swarm = swarms.get (msg.name ());
+                if (swarm != null) {
+                    swarm.addHolder (identity, (int) msg.index ());
+                    swarm.fetch (peers);
+                }
+            }
+            else
+            if (msg.id () == ZreMsg.FETCH) {
+                ZreSwarm swarm = swarms.get (msg.name ());
+                byte [] data = swarm != null ? swarm.read ((int) msg.index ()) : null;
+                if (data != null) {
+                    ZreMsg chunk = new ZreMsg (ZreMsg.CHUNK);
+                    chunk.setName (msg.name ());
+                    chunk.setIndex (msg.index ());
+                    chunk.setContent (new ZFrame (data));
+                    peer.send (chunk);
+                }
+            }
+            else
+            if (msg.id () == ZreMsg.CHUNK) {
+                ZreSwarm swarm = swarms.get (msg.name ());
+                if (swarm != null) {
+                    int index = (int) msg.index ();
+                    if (swarm.store (index, msg.content ().getData ()))
+                        have (swarm, index);
+                    swarm.fetch (peers);
+                }
+            }
             msg.destroy ();
 
             //  Activity from peer resets peer timers
             peer.refresh ();
-            return true;
         }
 
         //  Handle beacon
@@ -531,13 +1837,56 @@ public class ZreInterface
             Beacon beacon = new Beacon (buffer);
             if (!beacon.uuid.equals (uuid)) {
                 String identity = uuidStr (beacon.uuid);
-                ZrePeer peer = requirePeer (identity, udp.from (), beacon.port);
-                peer.refresh ();
+                ZrePeer peer = requirePeer (identity, udp.from (), beacon.port, false);
+                peer.beat ();
             }
             
             return true;
         }
 
+        //  Get multicast shouts, and NAKs for shouts we sent
+        protected void recvMulticast ()
+        {
+            try {
+                ZMsg msg;
+                while ((msg = multicast.recv ()) != null) {
+                    ZrePeer peer = peers.get (msg.popString ());
+                    String name = msg.popString ();
+                    ZFrame content = msg.pop ();
+                    //  Drop shouts from peers we don't know yet, and for
+                    //  groups that share an address with ours
+                    if (peer != null && peer.ready () && own_groups.containsKey (name)) {
+                        msgsIn++;
+                        bytesIn += content.size ();
+                        //  We never trace multicast shouts, so we leave any
+                        //  stamps the peer sent for its next TCP message
+                        deliveries++;
+                        pipe.sendMore ("SHOUT");
+                        pipe.sendMore (peer.identity ());
+                        pipe.sendMore (name);
+                        content.send (pipe, 0);
+                    }
+                    else
+                        content.destroy ();
+                    msg.destroy ();
+                }
+            } catch (IOException e) {
+                e.printStackTrace ();
+            }
+        }
+
+        //  Ask again for multicast shouts we missed
+        public void repairMulticast ()
+        {
+            if (multicast == null)
+                return;
+            try {
+                multicast.repair ();
+            } catch (IOException e) {
+                e.printStackTrace ();
+            }
+        }
+
         //  Send moar beacon
         public void sendBeacon ()
         {
@@ -559,35 +1908,341 @@ public class ZreInterface
                 Map.Entry<String, ZrePeer> entry = it.next ();
                 String identity = entry.getKey ();
                 ZrePeer peer = entry.getValue ();
-                if (System.currentTimeMillis () >= peer.expiredAt ()) {
+                long now = System.currentTimeMillis ();
+                if (peer.expired (now)) {
                     log.info (ZreLogMsg.ZRE_LOG_MSG_EVENT_EXIT,
                             peer.endpoint (),
                             peer.endpoint ());
                     //  If peer has really vanished, expire it
                     pipe.sendMore ("EXIT");
                     pipe.send (identity);
+                    loseGathers (identity);
+                    if (collectorEndpoints.remove (identity) != null) {
+                        collectors.remove (identity);
+                        wireLog ();
+                    }
+                    for (ZreQueue queue : queues.values ())
+                        queue.remove (peer);
                     deletePeerFromGroups (peer_groups, peer);
+                    for (String name : own_groups.keySet ())
+                        elect (name);
+                    batching.remove (peer);
+                    for (ZreSwarm swarm : swarms.values ())
+                        swarm.removePeer (identity);
+                    departedOut += peer.msgsOut ();
+                    departedBytesOut += peer.bytesOut ();
+                    departedDrops += peer.drops ();
                     it.remove ();
                     peer.destroy ();
                 } 
                 else 
-                if (System.currentTimeMillis () >= peer.evasiveAt ()){
-                    //  If peer is being evasive, force a TCP ping.
+                if (peer.pingDue (now)) {
+                    //  If peer is being evasive, force a TCP ping; we
+                    //  also ping now and then to measure round-trip time.
                     //  TODO: do this only once for a peer in this state;
                     //  it would be nicer to use a proper state machine
                     //  for peer management.
-                    ZreMsg msg = new ZreMsg (ZreMsg.PING);
-                    peer.send (msg);
+                    //  Peers that stamp their replies let us measure
+                    //  their clock offset too
+                    ZreMsg msg;
+                    if (peer.header (ZrePeer.CLOCK_HEADER, null) != null) {
+                        msg = new ZreMsg (ZreMsg.TIMED_PING);
+                        msg.setStamp (ZreTrace.now ());
+                    }
+                    else
+                        msg = new ZreMsg (ZreMsg.PING);
+                    peer.sendControl (msg);
+                    peer.ping ();
                 }
             }
         }
-    }
-    
-    //  Send message to all peers
-    private static void sendPeers (Map <String, ZrePeer> peers, ZreMsg msg)
-    {
-        for (ZrePeer peer : peers.values ())
+
+        //  Close connections to peers we exchanged nothing with for a while,
+        //  least recently used first, until we're within budget
+        public void evictIdlePeers (final long now)
+        {
+            List <ZrePeer> open = new ArrayList <ZrePeer> ();
+            for (ZrePeer peer : peers.values ()) {
+                if (peer.ready () && peer.connected () && !peer.evicted ()
+                &&  !peer.local ()) {
+                    peer.idle (now);
+                    open.add (peer);
+                }
+            }
+            if (open.size () <= connections)
+                return;
+            Collections.sort (open, new Comparator <ZrePeer> () {
+                @Override
+                public int compare (ZrePeer a, ZrePeer b)
+                {
+                    return Long.compare (b.idle (now), a.idle (now));
+                }
+            });
+            int excess = open.size () - connections;
+            for (ZrePeer peer : open) {
+                if (excess == 0 || peer.idle (now) < peerIdle)
+                    break;
+                peer.evict ();
+                excess--;
+            }
+        }
+
+        //  Milliseconds we may wait before the next request expires
+        public long gatherTimeout (long timeout)
+        {
+            ZreGather gather = deadlines.peek ();
+            if (gather == null)
+                return timeout;
+            long due = gather.deadline () - System.currentTimeMillis ();
+            return Math.max (0, Math.min (timeout, due));
+        }
+
+        //  Stop waiting for replies to requests whose time is up, and drop
+        //  requests the caller cancelled, freeing their window places
+        public void expireGathers ()
+        {
+            ZreGather cancelled = cancels.poll ();
+            while (cancelled != null) {
+                gathers.remove (cancelled.correlation ());
+                deadlines.remove (cancelled);
+                for (String identity : cancelled.pending ()) {
+                    ZrePeer peer = peers.get (identity);
+                    if (peer != null)
+                        peer.settled (cancelled.correlation ());
+                }
+                cancelled = cancels.poll ();
+            }
+            long now = System.currentTimeMillis ();
+            while (!deadlines.isEmpty () && deadlines.peek ().deadline () <= now) {
+                ZreGather gather = deadlines.poll ();
+                for (String identity : gather.pending ()) {
+                    ZrePeer peer = peers.get (identity);
+                    if (peer != null)
+                        peer.settled (gather.correlation ());
+                }
+                gather.expire ();
+                gathers.remove (gather.correlation ());
+            }
+        }
+
+        //  Elect leader of an own group, if the caller asked for one: the
+        //  member with the lowest UUID, counting ourselves. Every member
+        //  sees the same members once JOINs have spread, so all agree
+        //  without any voting. A leader holds the lease as long as its
+        //  heartbeats keep it from expiring; when it exits we elect again
+        //  at once. Tells caller about each change with a LEADER event.
+        private void elect (String name)
+        {
+            if (!electing.contains (name))
+                return;
+            String leader = null;
+            if (own_groups.containsKey (name)) {
+                leader = identity;
+                ZreGroup group = peer_groups.get (name);
+                if (group != null) {
+                    for (ZrePeer peer : group.peers ())
+                        if (peer.identity ().compareTo (leader) < 0)
+                            leader = peer.identity ();
+                }
+            }
+            String previous = leader != null ? leaders.put (name, leader)
+                                             : leaders.remove (name);
+            if (leader != null && leader.equals (identity))
+                leading.add (name);
+            else
+                leading.remove (name);
+            if (leader != null && !leader.equals (previous)) {
+                pipe.sendMore ("LEADER");
+                pipe.sendMore (leader);
+                pipe.send (name);
+            }
+        }
+
+        //  Note how late the loop got round to its timers
+        public void lagged (long delay)
+        {
+            lag = Math.max (lag, delay);
+        }
+
+        //  Send STATS report to log collectors, if it's time
+        public void sendStats (long now)
+        {
+            if (now < statsAt)
+                return;
+            statsAt = now + STATS_INTERVAL;
+
+            long msgsOut = departedOut;
+            long bytesOut = departedBytesOut;
+            long drops = departedDrops + lost + log.dropped ();
+            for (ZrePeer peer : peers.values ()) {
+                msgsOut += peer.msgsOut ();
+                bytesOut += peer.bytesOut ();
+                drops += peer.drops ();
+            }
+            ZreLogMsg msg = new ZreLogMsg (ZreLogMsg.STATS);
+            msg.setPeers (peers.size ());
+            msg.setMsgsin (msgsIn);
+            msg.setBytesin (bytesIn);
+            msg.setMsgsout (msgsOut);
+            msg.setBytesout (bytesOut);
+            msg.setDrops (drops);
+            msg.setLag (Math.min (lag, Integer.MAX_VALUE));
+            msg.setGroups (new ArrayList <String> (own_groups.keySet ()));
+            log.stats (msg);
+            lag = 0;
+        }
+
+        //  Send our log to one collector, picked from those we know by
+        //  hashing our identity onto a ring of them. Each collector gets
+        //  an even share of nodes, and when one comes or goes only the
+        //  nodes next to it on the ring move.
+        private void wireLog ()
+        {
+            String owner = collectors.owner (identity);
+            String endpoint = owner != null ? collectorEndpoints.get (owner) : null;
+            if (endpoint == null ? collector == null : endpoint.equals (collector))
+                return;
+            if (collector != null)
+                log.disconnect (collector);
+            if (endpoint != null)
+                log.connect (endpoint);
+            collector = endpoint;
+        }
+
+        //  Give peer credit to push more jobs to us for group
+        private void credit (ZrePeer peer, String name, long credit)
+        {
+            ZreMsg msg = new ZreMsg (ZreMsg.CREDIT);
+            msg.setGroup (name);
+            msg.setCredit (credit);
             peer.send (msg);
+        }
+
+        //  Tell requests a peer went away, so those it can't finish end now
+        //  rather than at their deadlines
+        private void loseGathers (String identity)
+        {
+            Iterator <ZreGather> it = gathers.values ().iterator ();
+            while (it.hasNext ()) {
+                ZreGather gather = it.next ();
+                if (gather.lost (identity)) {
+                    it.remove ();
+                    deadlines.remove (gather);
+                }
+            }
+        }
+
+        //  Milliseconds we may wait before held whispers are due
+        public long batchTimeout (long timeout)
+        {
+            if (batching.isEmpty ())
+                return timeout;
+            long due = (flushAt - System.nanoTime ()) / 1000000;
+            return Math.max (0, Math.min (timeout, due));
+        }
+
+        //  Send held whispers once they are due, or now if forced
+        public void flushBatches (boolean force)
+        {
+            if (batching.isEmpty ()
+            || (!force && System.nanoTime () < flushAt))
+                return;
+            for (ZrePeer peer : batching)
+                peer.flush ();
+            batching.clear ();
+        }
+
+        //  Reissue chunk fetches that went unanswered
+        public void fetchAllSwarms ()
+        {
+            long now = System.currentTimeMillis ();
+            for (ZreSwarm swarm : swarms.values ()) {
+                if (!swarm.complete ()) {
+                    swarm.expire (now);
+                    swarm.fetch (peers);
+                }
+            }
+        }
+
+        //  Digest a file we publish on a worker thread, as that reads the
+        //  whole file and heartbeats can't wait for it
+        private void seed (final String name, final String group, final String pathname)
+        {
+            Thread worker = new Thread (new Runnable () {
+                @Override
+                public void run ()
+                {
+                    ZreSwarm swarm = ZreSwarm.newSeed (name, group, pathname);
+                    if (swarm == null)
+                        System.err.printf ("E: [%s] cannot publish %s\n", identity, pathname);
+                    else
+                        seeded.add (swarm);
+                }
+            }, "zre-seed");
+            worker.setDaemon (true);
+            worker.start ();
+        }
+
+        //  Offer files that workers have digested for us
+        public void offerSeeds ()
+        {
+            ZreSwarm swarm;
+            while ((swarm = seeded.poll ()) != null) {
+                ZreSwarm known = swarms.get (swarm.name ());
+                if (known != null) {
+                    //  Published twice while we were digesting it
+                    swarm.destroy ();
+                    swarm = known;
+                }
+                else
+                    swarms.put (swarm.name (), swarm);
+                offer (swarm);
+            }
+        }
+
+        //  Offer a published file to its group, or to every peer
+        private void offer (ZreSwarm swarm)
+        {
+            ZreMsg msg = new ZreMsg (ZreMsg.OFFER);
+            msg.setGroup (swarm.group ());
+            msg.setName (swarm.name ());
+            msg.setFilesize (swarm.filesize ());
+            msg.setChunks (swarm.digests ());
+            sendSwarm (swarm, msg);
+        }
+
+        //  Tell the swarm we hold a new chunk, and the caller once the
+        //  file is complete
+        private void have (ZreSwarm swarm, int index)
+        {
+            ZreMsg msg = new ZreMsg (ZreMsg.HAVE);
+            msg.setName (swarm.name ());
+            msg.setIndex (index);
+            sendSwarm (swarm, msg);
+
+            if (swarm.complete ()) {
+                pipe.sendMore ("DELIVER");
+                pipe.sendMore (swarm.name ());
+                pipe.send (swarm.pathname ());
+            }
+        }
+
+        //  Send message to the peers a file is distributed to
+        private void sendSwarm (ZreSwarm swarm, ZreMsg msg)
+        {
+            if (swarm.group ().isEmpty ()) {
+                for (ZrePeer peer : peers.values ())
+                    peer.send (msg.dup ());
+                msg.destroy ();
+            }
+            else {
+                ZreGroup group = peer_groups.get (swarm.group ());
+                if (group != null)
+                    group.send (msg);
+                else
+                    msg.destroy ();
+            }
+        }
     }
     
     //  Remove peer from group, if it's a member
@@ -604,7 +2259,21 @@ public class ZreInterface
         @Override
         public void run (Object[] args, ZContext ctx, Socket pipe)
         {
-            Agent agent = Agent.newAgent (ctx, pipe);
+            @SuppressWarnings ("unchecked")
+            Map <String, ZrePeer> peers = (Map <String, ZrePeer>) args [1];
+            @SuppressWarnings ("unchecked")
+            Map <String, ZreRing> rings = (Map <String, ZreRing>) args [2];
+            @SuppressWarnings ("unchecked")
+            Map <Long, ZreGather> gathers = (Map <Long, ZreGather>) args [3];
+            @SuppressWarnings ("unchecked")
+            Map <String, String> leaders = (Map <String, String>) args [4];
+            @SuppressWarnings ("unchecked")
+            Set <String> leading = (Set <String>) args [5];
+            @SuppressWarnings ("unchecked")
+            Queue <ZreGather> cancels = (Queue <ZreGather>) args [7];
+            Agent agent = Agent.newAgent (ctx, pipe, (ZreCompressor) args [0],
+                                          peers, rings, gathers, leaders, leading,
+                                          (ZreTrace) args [6], cancels);
             if (agent == null)   //  Interrupted
                 return;
             
@@ -612,34 +2281,68 @@ public class ZreInterface
             Poller items = ctx.getContext ().poller ();
             
             items.register (agent.pipe, Poller.POLLIN);
+            items.register (agent.control, Poller.POLLIN);
             items.register (agent.inbox, Poller.POLLIN);
             items.register (agent.udp.handle (), Poller.POLLIN);
+            items.register (agent.local.handle (), Poller.POLLIN);
+            if (agent.multicast != null) {
+                items.register (agent.multicast.handle (), Poller.POLLIN);
+                items.register (agent.multicast.repairHandle (), Poller.POLLIN);
+            }
             
-            while (!Thread.currentThread ().isInterrupted ()) {
-                long timeout = pingAt - System.currentTimeMillis ();
-                assert (timeout <= PING_INTERVAL);
+            try {
+                while (!Thread.currentThread ().isInterrupted ()) {
+                    long timeout = pingAt - System.currentTimeMillis ();
+                    assert (timeout <= PING_INTERVAL);
+                
+                    if (timeout < 0)
+                        timeout = 0;
+                    timeout = agent.batchTimeout (timeout);
+                    timeout = agent.gatherTimeout (timeout);
                 
-                if (timeout < 0)
-                    timeout = 0;
+                    if (items.poll (timeout) < 0)
+                        break;      // Interrupted
                 
-                if (items.poll (timeout) < 0)
-                    break;      // Interrupted
+                    if (items.pollin (0))
+                        agent.recvFromApi ();
                 
-                if (items.pollin (0))
-                    agent.recvFromApi ();
+                    if (items.pollin (1))
+                        agent.recvFromControl ();
                 
-                if (items.pollin (1))
-                    agent.recvFromPeer ();
+                    if (items.pollin (2))
+                        agent.recvFromPeer ();
                 
-                if (items.pollin (2))
-                    agent.recvUdpBeacon ();
+                    if (items.pollin (3))
+                        agent.recvUdpBeacon ();
+
+                    if (items.pollin (4))
+                        agent.recvFromLocal ();
+
+                    if (agent.multicast != null && (items.pollin (5) || items.pollin (6)))
+                        agent.recvMulticast ();
+
+                    agent.flushBatches (false);
+                    agent.expireGathers ();
+                    agent.offerSeeds ();
                 
-                if (System.currentTimeMillis () >= pingAt) {
-                    agent.sendBeacon ();
-                    pingAt = System.currentTimeMillis () + PING_INTERVAL;
-                    //  Ping all peers and reap any expired ones
-                    agent.pingAllPeers ();
+                    long now = System.currentTimeMillis ();
+                    if (now >= pingAt) {
+                        agent.lagged (now - pingAt);
+                        agent.sendStats (now);
+                        agent.sendBeacon ();
+                        pingAt = System.currentTimeMillis () + PING_INTERVAL;
+                        //  Ping all peers and reap any expired ones
+                        agent.pingAllPeers ();
+                        agent.evictIdlePeers (now);
+                        agent.repairMulticast ();
+                        agent.fetchAllSwarms ();
+                    }
                 }
+            } catch (ZMQException e) {
+                //  Context ended while we were sending; clean up all
+                //  the same, or it waits for our sockets forever
+                if (e.getErrorCode () != ZMQ.Error.ETERM.getCode ())
+                    throw e;
             }
             agent.destroy ();
         }
@@ -0,0 +1,163 @@
+/*  =========================================================================
+    ZreLocal - hands commands between nodes in one process
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+package org.zyre;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//  Hands commands between nodes that run in the same process. Each agent
+//  registers a ZreLocal under its identity; when we connect to a peer we
+//  find here, we put our commands on its queue as they are, frames and
+//  all, instead of encoding them onto a TCP connection.
+//
+//  The agent polls a pipe that we write to only when the queue had no
+//  signal pending, so a busy agent takes many commands per wakeup and
+//  senders mostly make no system calls at all.
+
+public class ZreLocal
+{
+    //  Nodes in this process, by identity
+    private static final ConcurrentMap <String, ZreLocal> registry
+        = new ConcurrentHashMap <String, ZreLocal> ();
+
+    private final String identity;              //  Identity of our node
+    private final Queue <ZreMsg> queue;         //  Commands from peers
+    private final AtomicBoolean signalled;      //  Pipe holds a wakeup
+    private final Pipe signal;                  //  Wakes our agent
+    private final ByteBuffer drain;             //  For reading wakeups
+    private volatile boolean closed;
+
+    //  ---------------------------------------------------------------------
+    //  Constructor; the node is not registered until we say so
+    public ZreLocal (String identity)
+    {
+        this.identity = identity;
+        queue = new ConcurrentLinkedQueue <ZreMsg> ();
+        signalled = new AtomicBoolean ();
+        drain = ByteBuffer.allocate (64);
+        try {
+            signal = Pipe.open ();
+            signal.source ().configureBlocking (false);
+            signal.sink ().configureBlocking (false);
+        } catch (IOException e) {
+            throw new RuntimeException (e);
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Destructor; drops commands we did not get to
+    public void destroy ()
+    {
+        unregister ();
+        closed = true;
+        try {
+            signal.sink ().close ();
+            signal.source ().close ();
+        } catch (IOException e) {
+        }
+        for (ZreMsg msg = queue.poll (); msg != null; msg = queue.poll ())
+            msg.destroy ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Let peers in this process find us
+    public void register ()
+    {
+        if (!closed)
+            registry.put (identity, this);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Make peers that connect from now on use TCP; peers that found us
+    //  already carry on as they are
+    public void unregister ()
+    {
+        registry.remove (identity, this);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return node with identity if it runs in this process, else null
+    public static ZreLocal lookup (String identity)
+    {
+        return registry.get (identity);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return channel that wakes our agent, for polling
+    public SelectableChannel handle ()
+    {
+        return signal.source ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Queue command for our node; takes ownership of the message. Safe
+    //  from any thread. Returns false if the node has gone.
+    public boolean send (ZreMsg msg)
+    {
+        if (closed) {
+            msg.destroy ();
+            return false;
+        }
+        queue.offer (msg);
+        if (signalled.compareAndSet (false, true)) {
+            try {
+                signal.sink ().write (ByteBuffer.wrap (new byte [1]));
+            } catch (IOException e) {
+                return false;       //  Closed under us
+            }
+        }
+        return true;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return next command for our node, or null if there are none. Call
+    //  until null each time the handle is readable.
+    public ZreMsg recv ()
+    {
+        ZreMsg msg = queue.poll ();
+        if (msg == null) {
+            //  Clear the wakeup before we look again, so a command that
+            //  arrives after our last look signals us afresh. A sender
+            //  may write its wakeup late; we read it next time round.
+            try {
+                do
+                    drain.clear ();
+                while (signal.source ().read (drain) > 0);
+            } catch (IOException e) {
+            }
+            signalled.set (false);
+            msg = queue.poll ();
+        }
+        return msg;
+    }
+}
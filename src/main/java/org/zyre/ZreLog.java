@@ -25,31 +25,108 @@
 */ 
 package org.zyre;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Socket;
 
+//  The agent records each event into a ring of preallocated slots: event
+//  number, peer hash, time and one data string, with no formatting and
+//  no allocation. A background thread drains the ring now and then and
+//  publishes each event as a LOG message; collectors format them. If the
+//  ring is full we drop the event rather than make the agent wait.
+//
+//  Each LOG frame starts with signature, message ID, level, event and
+//  node, so collectors subscribe to the topic () prefixes they want and
+//  the publisher sends them nothing else. We can also keep only one in
+//  so many events of a level, and cap the rate of each level with a
+//  token bucket, so that chatty clusters don't flood collectors.
+//
+//  Now and then the agent also hands us a STATS report, which we send
+//  as it is; collectors subscribe to statsTopic () to get them.
+
 public class ZreLog
 {
+    //  Header by which log collectors announce their endpoint
+    public static final String COLLECTOR_HEADER = "X-ZRELOG";
+
+    private static final int RING_SIZE = 1024;          //  Slots, a power of two
+    private static final long FLUSH_INTERVAL = 10;      //  Msecs between drains
+    private static final int LEVELS = ZreLogMsg.ZRE_LOG_MSG_LEVEL_INFO + 1;
 
     private final ZContext ctx;         //  CZMQ context
-    private final Socket publisher;     //  Socket to send to
     private int nodeid;                //  Own correlation ID
+    private final int [] levels;        //  Ring of events, by slot
+    private final int [] events;
+    private final int [] peers;
+    private final long [] times;
+    private final String [] data;
+    private final AtomicLong head;      //  Next slot agent writes
+    private final AtomicLong tail;      //  Next slot publisher reads
+    private volatile long dropped;      //  Events lost to a full ring
+    private final Queue <Change> changes;       //  Connects and disconnects to do
+    private final Queue <ZreLogMsg> reports;    //  STATS reports to send
+    private final Thread publisher;     //  Drains ring to PUB socket
+    private volatile boolean running;
+    private final int [] sampling;      //  Keep one in so many, by level
+    private final int [] sampled;       //  Events seen toward next one kept
+    private final int [] rates;         //  Most events per second, by level
+    private final long [] allowances;   //  Token buckets, in events/1000
+    private final long [] refilled;     //  When we last filled each bucket
     
     //  ---------------------------------------------------------------------
     //  Construct new log object
     public ZreLog (String endpoint)
     {
         ctx = new ZContext ();
-        publisher = ctx.createSocket (ZMQ.PUB);
         //  Modified Bernstein hashing function
         nodeid = endpoint.hashCode ();
+        levels = new int [RING_SIZE];
+        events = new int [RING_SIZE];
+        peers = new int [RING_SIZE];
+        times = new long [RING_SIZE];
+        data = new String [RING_SIZE];
+        sampling = new int [LEVELS];
+        sampled = new int [LEVELS];
+        rates = new int [LEVELS];
+        allowances = new long [LEVELS];
+        refilled = new long [LEVELS];
+        head = new AtomicLong ();
+        tail = new AtomicLong ();
+        changes = new ConcurrentLinkedQueue <Change> ();
+        reports = new ConcurrentLinkedQueue <ZreLogMsg> ();
+        running = true;
+        publisher = new Thread (new Runnable () {
+            @Override
+            public void run ()
+            {
+                publish ();
+            }
+        }, "zre-log");
+        publisher.setDaemon (true);
+        publisher.start ();
     }
 
     //  ---------------------------------------------------------------------
-    //  Destroy log object
+    //  Destroy log object, after publishing events already recorded
     public void destroy ()
     {
+        running = false;
+        LockSupport.unpark (publisher);
+        boolean interrupted = false;
+        while (publisher.isAlive ()) {
+            try {
+                publisher.join ();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread ().interrupt ();
         ctx.destroy ();
     }
 
@@ -58,19 +135,187 @@ public class ZreLog
     //  Connect log to remote endpoint
     public void connect (String endpoint)
     {
-        publisher.connect (endpoint);
+        changes.add (new Change (true, endpoint));
+        LockSupport.unpark (publisher);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Disconnect log from remote endpoint
+    public void disconnect (String endpoint)
+    {
+        changes.add (new Change (false, endpoint));
+        LockSupport.unpark (publisher);
     }
     
     //  ---------------------------------------------------------------------
-    //  Record one log event
-    public void info (int event, String peer, String format, Object ... args)
+    //  Record one log event. Data is sent as is; collectors format it.
+    public void info (int event, String peer, String data)
     {
-        int peerid = peer != null ? peer.hashCode () : 0;
-        String body = format != null ? String.format (format, args) : "";
-        
-        sendLog (publisher, ZreLogMsg.ZRE_LOG_MSG_LEVEL_INFO,
-                event, nodeid, peerid, System.currentTimeMillis (), body);
+        record (ZreLogMsg.ZRE_LOG_MSG_LEVEL_INFO, event, peer, data);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Record one warning event
+    public void warning (int event, String peer, String data)
+    {
+        record (ZreLogMsg.ZRE_LOG_MSG_LEVEL_WARNING, event, peer, data);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Record one error event
+    public void error (int event, String peer, String data)
+    {
+        record (ZreLogMsg.ZRE_LOG_MSG_LEVEL_ERROR, event, peer, data);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send STATS report, after setting our node and the time.
+    //  Takes ownership of the message.
+    public void stats (ZreLogMsg msg)
+    {
+        msg.setNode (nodeid);
+        msg.setTime (System.currentTimeMillis ());
+        reports.add (msg);
+        LockSupport.unpark (publisher);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Keep only one in so many events of level; 1 keeps all. Call from
+    //  the thread that records.
+    public void setSampling (int level, int oneIn)
+    {
+        sampling [level] = oneIn;
+        sampled [level] = 0;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send at most so many events of level per second, in bursts of up
+    //  to a second's worth; 0 means no limit. Call from the thread that
+    //  records.
+    public void setRate (int level, int perSecond)
+    {
+        rates [level] = perSecond;
+        allowances [level] = perSecond * 1000L;
+        refilled [level] = System.currentTimeMillis ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return subscription prefix for LOG frames of level, and if not -1,
+    //  of event, and if that's not -1 either, of node
+    public static byte [] topic (int level, int event, int node)
+    {
+        int size = event < 0 ? 4 : node < 0 ? 5 : 7;
+        byte [] topic = new byte [size];
+        topic [0] = (byte) 0xAA;
+        topic [1] = (byte) (0xA0 | 2);
+        topic [2] = (byte) ZreLogMsg.LOG;
+        topic [3] = (byte) level;
+        if (size > 4)
+            topic [4] = (byte) event;
+        if (size > 5) {
+            topic [5] = (byte) (node >> 8);
+            topic [6] = (byte) node;
+        }
+        return topic;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return subscription prefix for STATS frames
+    public static byte [] statsTopic ()
+    {
+        return new byte [] {(byte) 0xAA, (byte) (0xA0 | 2), (byte) ZreLogMsg.STATS};
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return our node ID as it goes in LOG frames
+    public int node ()
+    {
+        return nodeid & 0xffff;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return number of events dropped because the ring was full
+    public long dropped ()
+    {
+        return dropped;
+    }
+
+    //  Only the agent thread records, so we are the single writer of head
+    private void record (int level, int event, String peer, String data)
+    {
+        if (sampling [level] > 1) {
+            if (++sampled [level] < sampling [level])
+                return;
+            sampled [level] = 0;
+        }
+        long now = System.currentTimeMillis ();
+        if (rates [level] > 0) {
+            long allowance = allowances [level] + (now - refilled [level]) * rates [level];
+            refilled [level] = now;
+            allowances [level] = Math.min (allowance, rates [level] * 1000L);
+            if (allowances [level] < 1000)
+                return;
+            allowances [level] -= 1000;
+        }
+        long slot = head.get ();
+        if (slot - tail.get () == RING_SIZE) {
+            dropped++;
+            return;
+        }
+        int index = (int) slot & (RING_SIZE - 1);
+        levels [index] = level;
+        events [index] = event;
+        peers [index] = peer != null ? peer.hashCode () : 0;
+        times [index] = now;
+        this.data [index] = data != null ? data : "";
+        head.lazySet (slot + 1);
+    }
+
+    //  Background thread: connect as asked, send what the agent recorded,
+    //  then sleep a little so that events go out in batches
+    private void publish ()
+    {
+        Socket socket = ctx.createSocket (ZMQ.PUB);
+        while (true) {
+            boolean stopping = !running;
+            Change change;
+            while ((change = changes.poll ()) != null) {
+                if (change.connect)
+                    socket.connect (change.endpoint);
+                else
+                    socket.disconnect (change.endpoint);
+            }
+
+            long slot = tail.get ();
+            long last = head.get ();
+            for (; slot < last; slot++) {
+                int index = (int) slot & (RING_SIZE - 1);
+                sendLog (socket, levels [index], events [index], nodeid,
+                         peers [index], times [index], data [index]);
+                data [index] = null;
+                tail.lazySet (slot + 1);
+            }
+            ZreLogMsg report;
+            while ((report = reports.poll ()) != null)
+                report.send (socket);
+            if (stopping)
+                break;
+            LockSupport.parkNanos (FLUSH_INTERVAL * 1000000L);
+        }
+        ctx.destroySocket (socket);
+    }
+
+    //  Connect or disconnect, for the publisher thread to do
+    private static class Change
+    {
+        private final boolean connect;
+        private final String endpoint;
 
+        private Change (boolean connect, String endpoint)
+        {
+            this.connect = connect;
+            this.endpoint = endpoint;
+        }
     }
 
     //  --------------------------------------------------------------------------
@@ -32,6 +32,17 @@
         peer          number 2
         time          number 8
         data          string
+    STATS - Report node counters since start, and worst loop delay since last report
+        node          number 2
+        time          number 8
+        peers         number 4
+        msgsin        number 8
+        bytesin       number 8
+        msgsout       number 8
+        bytesout      number 8
+        drops         number 8
+        lag           number 4
+        groups        strings
 */
 
 package org.zyre;
@@ -42,6 +53,7 @@ import java.util.Map;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import org.zeromq.ZFrame;
 import org.zeromq.ZMQ;
@@ -60,6 +72,7 @@ public class ZreLogMsg
     public static final int ZRE_LOG_MSG_EVENT_EXIT          = 4;
 
     public static final int LOG                   = 1;
+    public static final int STATS                 = 2;
 
     //  Structure of our class
     private ZFrame address;             //  Address of peer if any
@@ -71,7 +84,17 @@ public class ZreLogMsg
     private int peer;
     private long time;
     private String data;
-
+    private long peers;
+    private long msgsin;
+    private long bytesin;
+    private long msgsout;
+    private long bytesout;
+    private long drops;
+    private long lag;
+    private List <String> groups;
+
+    //  Encoding buffer per sending thread, reused for every message
+    private static final ThreadLocal <ByteBuffer> buffers = new ThreadLocal <ByteBuffer> ();
 
     //  --------------------------------------------------------------------------
     //  Create a new ZreLogMsg
@@ -143,7 +166,7 @@ public class ZreLogMsg
     { 
         long value = needle.getInt (); 
         if (value < 0)
-            value = (0xffffffff) & value;
+            value = (0xffffffffL) & value;
         return value;
     }
 
@@ -174,21 +197,123 @@ public class ZreLogMsg
         return value;
     }
 
-    //  Put a string to the frame
+    //  Put a string to the frame, as UTF-8 with a 1-byte length
     public void putString (String value) 
     {
-        needle.put ((byte) value.length ());
-        needle.put (value.getBytes());
+        int size = stringSize (value);
+        if (size > 0xff)
+            throw new IllegalArgumentException ("String too long");
+        needle.put ((byte) size);
+        putUtf8 (value);
     }
 
     //  Get a string from the frame
     public String getString () 
     {
         int size = getNumber1 ();
-        byte [] value = new byte [size];
-        needle.get (value);
+        String value;
+        if (needle.hasArray ())
+            value = new String (needle.array (),
+                needle.arrayOffset () + needle.position (), size, StandardCharsets.UTF_8);
+        else {
+            //  Direct or mapped buffer
+            byte [] bytes = new byte [size];
+            needle.duplicate ().get (bytes);
+            value = new String (bytes, StandardCharsets.UTF_8);
+        }
+        needle.position (needle.position () + size);
+
+        return value;
+    }
+
+    //  Put a key=value entry to the frame, as one string
+    public void putEntry (String key, String value) 
+    {
+        int size = entrySize (key, value);
+        if (size > 0xff)
+            throw new IllegalArgumentException ("Entry too long");
+        needle.put ((byte) size);
+        putUtf8 (key);
+        needle.put ((byte) '=');
+        putUtf8 (value);
+    }
+
+    //  Put characters of a string to the frame as UTF-8, without
+    //  allocating; unpaired surrogates become '?' as in String.getBytes
+    private void putUtf8 (String value) 
+    {
+        int length = value.length ();
+        for (int index = 0; index < length; index++) {
+            char ch = value.charAt (index);
+            if (ch < 0x80)
+                needle.put ((byte) ch);
+            else
+            if (ch < 0x800) {
+                needle.put ((byte) (0xc0 | (ch >> 6)));
+                needle.put ((byte) (0x80 | (ch & 0x3f)));
+            }
+            else
+            if (Character.isHighSurrogate (ch) && index + 1 < length
+            &&  Character.isLowSurrogate (value.charAt (index + 1))) {
+                int code = Character.toCodePoint (ch, value.charAt (++index));
+                needle.put ((byte) (0xf0 | (code >> 18)));
+                needle.put ((byte) (0x80 | ((code >> 12) & 0x3f)));
+                needle.put ((byte) (0x80 | ((code >> 6) & 0x3f)));
+                needle.put ((byte) (0x80 | (code & 0x3f)));
+            }
+            else
+            if (Character.isSurrogate (ch))
+                needle.put ((byte) '?');
+            else {
+                needle.put ((byte) (0xe0 | (ch >> 12)));
+                needle.put ((byte) (0x80 | ((ch >> 6) & 0x3f)));
+                needle.put ((byte) (0x80 | (ch & 0x3f)));
+            }
+        }
+    }
 
-        return new String (value);
+    //  Return number of bytes a string takes as UTF-8, 0 if null
+    public static int stringSize (String value) 
+    {
+        if (value == null)
+            return 0;
+        int length = value.length ();
+        int size = length;
+        for (int index = 0; index < length; index++) {
+            char ch = value.charAt (index);
+            if (ch < 0x80)
+                continue;
+            if (ch < 0x800)
+                size++;
+            else
+            if (Character.isHighSurrogate (ch) && index + 1 < length
+            &&  Character.isLowSurrogate (value.charAt (index + 1))) {
+                size += 2;
+                index++;
+            }
+            else
+            if (!Character.isSurrogate (ch))
+                size += 2;
+        }
+        return size;
+    }
+
+    //  Return number of bytes a key=value entry takes as UTF-8
+    public static int entrySize (String key, String value) 
+    {
+        return stringSize (key) + 1 + stringSize (value);
+    }
+
+    //  Return reusable buffer of at least size bytes for this thread
+    private static ByteBuffer buffer (int size) 
+    {
+        ByteBuffer buffer = buffers.get ();
+        if (buffer == null || buffer.capacity () < size) {
+            buffer = ByteBuffer.allocate (Math.max (size, 256));
+            buffers.set (buffer);
+        }
+        buffer.clear ();
+        return buffer;
     }
 
     //  --------------------------------------------------------------------------
@@ -247,6 +372,24 @@ public class ZreLogMsg
                 self.data = self.getString ();
                 break;
 
+            case STATS:
+                self.node = self.getNumber2 ();
+                self.time = self.getNumber8 ();
+                self.peers = self.getNumber4 ();
+                self.msgsin = self.getNumber8 ();
+                self.bytesin = self.getNumber8 ();
+                self.msgsout = self.getNumber8 ();
+                self.bytesout = self.getNumber8 ();
+                self.drops = self.getNumber8 ();
+                self.lag = self.getNumber4 ();
+                listSize = self.getNumber1 ();
+                self.groups = new ArrayList<String> ();
+                while (listSize-- > 0) {
+                    String string = self.getString ();
+                    self.groups.add (string);
+                }
+                break;
+
             default:
                 throw new IllegalArgumentException ();
             }
@@ -264,43 +407,152 @@ public class ZreLogMsg
         }
     }
 
+    //  --------------------------------------------------------------------------
+    //  Parse a ZreLogMsg from a buffer holding one command frame, as when read
+    //  back from a file. Returns new object or null if error.
+
+    public static ZreLogMsg decode (ByteBuffer buffer)
+    {
+        ZreLogMsg self = new ZreLogMsg (0);
+        self.needle = buffer;
+
+        try {
+            //  Get and check protocol signature
+            int signature = self.getNumber2 ();
+            if (signature != (0xAAA0 | 2))
+                throw new IllegalArgumentException ();
+
+            //  Get message id, which is first byte in frame
+            self.id = self.getNumber1 ();
+            int listSize;
+            int hashSize;
+
+            switch (self.id) {
+            case LOG:
+                self.level = self.getNumber1 ();
+                self.event = self.getNumber1 ();
+                self.node = self.getNumber2 ();
+                self.peer = self.getNumber2 ();
+                self.time = self.getNumber8 ();
+                self.data = self.getString ();
+                break;
+
+            case STATS:
+                self.node = self.getNumber2 ();
+                self.time = self.getNumber8 ();
+                self.peers = self.getNumber4 ();
+                self.msgsin = self.getNumber8 ();
+                self.bytesin = self.getNumber8 ();
+                self.msgsout = self.getNumber8 ();
+                self.bytesout = self.getNumber8 ();
+                self.drops = self.getNumber8 ();
+                self.lag = self.getNumber4 ();
+                listSize = self.getNumber1 ();
+                self.groups = new ArrayList<String> ();
+                while (listSize-- > 0) {
+                    String string = self.getString ();
+                    self.groups.add (string);
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException ();
+            }
+
+            return self;
+
+        } catch (Exception e) {
+            //  Error returns
+            self.destroy ();
+            return null;
+        }
+    }
+
 
 
     //  --------------------------------------------------------------------------
-    //  Send the ZreLogMsg to the socket, and destroy it
+    //  Return size of the LOG command frame, as encoded on the wire
 
-    public boolean send (Socket socket)
+    public static int sizeOfLog (String data)
     {
-        assert (socket != null);
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  level is a 1-byte integer
+        frameSize += 1;
+        //  event is a 1-byte integer
+        frameSize += 1;
+        //  node is a 2-byte integer
+        frameSize += 2;
+        //  peer is a 2-byte integer
+        frameSize += 2;
+        //  time is a 8-byte integer
+        frameSize += 8;
+        //  data is a string with 1-byte length
+        frameSize += 1 + stringSize (data);
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the STATS command frame, as encoded on the wire
 
-        //  Calculate size of serialized data
+    public static int sizeOfStats (Collection <String> groups)
+    {
         int frameSize = 2 + 1;          //  Signature and message ID
+        //  node is a 2-byte integer
+        frameSize += 2;
+        //  time is a 8-byte integer
+        frameSize += 8;
+        //  peers is a 4-byte integer
+        frameSize += 4;
+        //  msgsin is a 8-byte integer
+        frameSize += 8;
+        //  bytesin is a 8-byte integer
+        frameSize += 8;
+        //  msgsout is a 8-byte integer
+        frameSize += 8;
+        //  bytesout is a 8-byte integer
+        frameSize += 8;
+        //  drops is a 8-byte integer
+        frameSize += 8;
+        //  lag is a 4-byte integer
+        frameSize += 4;
+        //  groups is an array of strings
+        frameSize++;       //  Size is one octet
+        if (groups != null) {
+            for (String value : groups) 
+                frameSize += 1 + stringSize (value);
+        }
+        return frameSize;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the command frame for this message
+
+    public int size ()
+    {
         switch (id) {
         case LOG:
-            //  level is a 1-byte integer
-            frameSize += 1;
-            //  event is a 1-byte integer
-            frameSize += 1;
-            //  node is a 2-byte integer
-            frameSize += 2;
-            //  peer is a 2-byte integer
-            frameSize += 2;
-            //  time is a 8-byte integer
-            frameSize += 8;
-            //  data is a string with 1-byte length
-            frameSize++;       //  Size is one octet
-            if (data != null)
-                frameSize += data.length ();
-            break;
-            
+            return sizeOfLog (data);
+        case STATS:
+            return sizeOfStats (groups);
         default:
             System.out.printf ("E: bad message type '%d', not sent\n", id);
             assert (false);
+            return 2 + 1;
         }
-        //  Now serialize message into the frame
-        ZFrame frame = new ZFrame (new byte [frameSize]);
-        needle = ByteBuffer.wrap (frame.getData ()); 
-        int frameFlags = 0;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Encode the command frame into a caller-supplied buffer, which must
+    //  have at least size () bytes remaining and network byte order.
+    //  Frame fields are not part of the command frame. Returns the number
+    //  of bytes written.
+
+    public int encode (ByteBuffer buffer)
+    {
+        needle = buffer;
+        int start = buffer.position ();
         putNumber2 (0xAAA0 | 2);
         putNumber1 ((byte) id);
 
@@ -317,7 +569,43 @@ public class ZreLogMsg
                 putNumber1 ((byte) 0);      //  Empty string
             break;
             
+        case STATS:
+            putNumber2 (node);
+            putNumber8 (time);
+            putNumber4 (peers);
+            putNumber8 (msgsin);
+            putNumber8 (bytesin);
+            putNumber8 (msgsout);
+            putNumber8 (bytesout);
+            putNumber8 (drops);
+            putNumber4 (lag);
+            if (groups != null) {
+                putNumber1 ((byte) groups.size ());
+                for (String value : groups) {
+                    putString (value);
+                }
+            }
+            else
+                putNumber1 ((byte) 0);      //  Empty string array
+            break;
+            
         }
+        needle = null;
+        return buffer.position () - start;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Send the ZreLogMsg to the socket, and destroy it
+
+    public boolean send (Socket socket)
+    {
+        assert (socket != null);
+
+        //  Serialize message into this thread's reusable buffer
+        ByteBuffer buffer = buffer (size ());
+        int frameSize = encode (buffer);
+        int frameFlags = 0;
         //  If we're sending to a ROUTER, we send the address first
         if (socket.getType () == ZMQ.ROUTER) {
             assert (address != null);
@@ -327,8 +615,7 @@ public class ZreLogMsg
             }
         }
         //  Now send the data frame
-        if (!frame.send (socket, frameFlags)) {
-            frame.destroy ();
+        if (!socket.send (buffer.array (), 0, frameSize, frameFlags)) {
             destroy ();
             return false;
         }
@@ -364,6 +651,36 @@ public class ZreLogMsg
         self.send (output); 
     }
 
+//  --------------------------------------------------------------------------
+//  Send the STATS to the socket in one step
+
+    public static void sendStats (
+        Socket output,
+        int node,
+        long time,
+        long peers,
+        long msgsin,
+        long bytesin,
+        long msgsout,
+        long bytesout,
+        long drops,
+        long lag,
+        Collection <String> groups) 
+    {
+        ZreLogMsg self = new ZreLogMsg (ZreLogMsg.STATS);
+        self.setNode (node);
+        self.setTime (time);
+        self.setPeers (peers);
+        self.setMsgsin (msgsin);
+        self.setBytesin (bytesin);
+        self.setMsgsout (msgsout);
+        self.setBytesout (bytesout);
+        self.setDrops (drops);
+        self.setLag (lag);
+        self.setGroups (new ArrayList <String> (groups));
+        self.send (output); 
+    }
+
 
     //  --------------------------------------------------------------------------
     //  Duplicate the ZreLogMsg message
@@ -382,6 +699,18 @@ public class ZreLogMsg
             copy.time = this.time;
             copy.data = this.data;
         break;
+        case STATS:
+            copy.node = this.node;
+            copy.time = this.time;
+            copy.peers = this.peers;
+            copy.msgsin = this.msgsin;
+            copy.bytesin = this.bytesin;
+            copy.msgsout = this.msgsout;
+            copy.bytesout = this.bytesout;
+            copy.drops = this.drops;
+            copy.lag = this.lag;
+            copy.groups = new ArrayList <String> (this.groups);
+        break;
         }
         return copy;
     }
@@ -406,6 +735,26 @@ public class ZreLogMsg
                 System.out.printf ("    data=\n");
             break;
             
+        case STATS:
+            System.out.println ("STATS:");
+            System.out.printf ("    node=%d\n", (long)node);
+            System.out.printf ("    time=%d\n", (long)time);
+            System.out.printf ("    peers=%d\n", (long)peers);
+            System.out.printf ("    msgsin=%d\n", (long)msgsin);
+            System.out.printf ("    bytesin=%d\n", (long)bytesin);
+            System.out.printf ("    msgsout=%d\n", (long)msgsout);
+            System.out.printf ("    bytesout=%d\n", (long)bytesout);
+            System.out.printf ("    drops=%d\n", (long)drops);
+            System.out.printf ("    lag=%d\n", (long)lag);
+            System.out.printf ("    groups={");
+            if (groups != null) {
+                for (String value : groups) {
+                    System.out.printf (" '%s'", value);
+                }
+            }
+            System.out.printf (" }\n");
+            break;
+            
         }
     }
 
@@ -524,5 +873,128 @@ public class ZreLogMsg
     }
 
 
+    //  --------------------------------------------------------------------------
+    //  Get/set the peers field
+
+    public long peers ()
+    {
+        return peers;
+    }
+
+    public void setPeers (long peers)
+    {
+        this.peers = peers;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the msgsin field
+
+    public long msgsin ()
+    {
+        return msgsin;
+    }
+
+    public void setMsgsin (long msgsin)
+    {
+        this.msgsin = msgsin;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the bytesin field
+
+    public long bytesin ()
+    {
+        return bytesin;
+    }
+
+    public void setBytesin (long bytesin)
+    {
+        this.bytesin = bytesin;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the msgsout field
+
+    public long msgsout ()
+    {
+        return msgsout;
+    }
+
+    public void setMsgsout (long msgsout)
+    {
+        this.msgsout = msgsout;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the bytesout field
+
+    public long bytesout ()
+    {
+        return bytesout;
+    }
+
+    public void setBytesout (long bytesout)
+    {
+        this.bytesout = bytesout;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the drops field
+
+    public long drops ()
+    {
+        return drops;
+    }
+
+    public void setDrops (long drops)
+    {
+        this.drops = drops;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the lag field
+
+    public long lag ()
+    {
+        return lag;
+    }
+
+    public void setLag (long lag)
+    {
+        this.lag = lag;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Iterate through the groups field, and append a groups value
+
+    public List <String> groups ()
+    {
+        return groups;
+    }
+
+    public void appendGroups (String format, Object ... args)
+    {
+        //  Format into newly allocated string
+        
+        String string = String.format (format, args);
+        //  Attach string to list
+        if (groups == null)
+            groups = new ArrayList <String> ();
+        groups.add (string);
+    }
+
+    public void setGroups (Collection <String> value)
+    {
+        groups = new ArrayList (value); 
+    }
+
+
 }
 
@@ -0,0 +1,320 @@
+/*  =========================================================================
+    ZreLogStore - log events in memory-mapped rolling files
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+package org.zyre;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+//  A collector appends each LOG frame as it came off the wire, prefixed
+//  by its length, to a segment file that we map into memory. When a
+//  segment is full we start the next one. Beside each segment sits a
+//  sparse index: every INDEX_INTERVAL bytes we note the record position
+//  and the latest event time seen before it, over all segments so far.
+//  Nodes' clocks differ, so event times aren't in order, but that latest
+//  time only grows, and we can binary search it to find where events
+//  at or after some time may start. Readers decode frames as they go.
+//
+//  A record's length goes in last, so a reader in another process never
+//  sees a record that isn't fully written; a zero length ends the data.
+
+public class ZreLogStore
+{
+    public static final int SEGMENT_SIZE = 64 * 1024 * 1024;  //  Default bytes per segment
+    public static final int RECORD_MAX = 64 * 1024;           //  Larger frames are dropped
+    private static final int INDEX_INTERVAL = 4096;     //  Record bytes per index entry
+    private static final int ENTRY_SIZE = 16;           //  Latest time, position + 1
+    private static final int TIME_OFFSET = 2 + 1 + 1 + 1 + 2 + 2;   //  Of LOG time field
+
+    private final File directory;       //  Where segments live
+    private final int segmentSize;      //  Bytes per segment
+    private long number;                //  Number of current segment
+    private MappedByteBuffer segment;   //  Current segment
+    private MappedByteBuffer index;     //  Its index
+    private int indexed;                //  Position of last index entry
+    private long latest;                //  Latest event time so far
+
+    //  ---------------------------------------------------------------------
+    //  Constructor; opens last segment in directory and carries on after
+    //  its last record, or starts a new store
+    public ZreLogStore (File directory, int segmentSize) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        latest = Long.MIN_VALUE;
+        if (!directory.isDirectory () && !directory.mkdirs ())
+            throw new IOException ("cannot create " + directory);
+
+        long [] numbers = segments (directory);
+        number = numbers.length > 0 ? numbers [numbers.length - 1] : 0;
+        open ();
+        recover ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Destroy store, flushing what we wrote
+    public void destroy ()
+    {
+        flush ();
+        segment = null;
+        index = null;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Append one LOG frame. Returns false if the frame is not a LOG or
+    //  is too large to store.
+    public boolean append (byte [] frame, int size) throws IOException
+    {
+        if (size < TIME_OFFSET + 8 || size > RECORD_MAX
+        ||  (frame [0] & 0xff) != 0xAA || (frame [1] & 0xff) != 0xA2
+        ||  frame [2] != ZreLogMsg.LOG)
+            return false;
+        if (segment.position () + 4 + size + 4 > segmentSize) {
+            number++;
+            open ();
+        }
+        int position = segment.position ();
+        if (position == 0 || position - indexed >= INDEX_INTERVAL) {
+            index.putLong (latest);
+            index.putLong (position + 1);
+            indexed = position;
+        }
+        segment.position (position + 4);
+        segment.put (frame, 0, size);
+        segment.putInt (position, size);
+
+        long time = time (frame);
+        if (time > latest)
+            latest = time;
+        return true;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Flush current segment and index to disk
+    public void flush ()
+    {
+        segment.force ();
+        index.force ();
+    }
+
+    //  Map segment with current number, and its index
+    private void open () throws IOException
+    {
+        segment = map (file (directory, number, ".log"), segmentSize);
+        index = map (file (directory, number, ".idx"), indexSize (segmentSize));
+        indexed = 0;
+    }
+
+    //  Find end of records and latest time in current segment, after a
+    //  restart; the index tells us the latest time before the segment
+    private void recover ()
+    {
+        while (index.remaining () >= ENTRY_SIZE) {
+            int mark = index.position ();
+            long time = index.getLong ();
+            long position = index.getLong ();
+            if (position == 0) {
+                index.position (mark);
+                break;
+            }
+            if (mark == 0)
+                latest = time;
+            indexed = (int) (position - 1);
+        }
+        int position = 0;
+        while (position + 4 <= segmentSize) {
+            int size = segment.getInt (position);
+            if (size == 0)
+                break;
+            long time = segment.getLong (position + 4 + TIME_OFFSET);
+            if (time > latest)
+                latest = time;
+            position += 4 + size;
+        }
+        segment.position (position);
+    }
+
+    private static long time (byte [] frame)
+    {
+        long time = 0;
+        for (int index = TIME_OFFSET; index < TIME_OFFSET + 8; index++)
+            time = (time << 8) | (frame [index] & 0xff);
+        return time;
+    }
+
+    private static int indexSize (int segmentSize)
+    {
+        return (segmentSize / INDEX_INTERVAL + 2) * ENTRY_SIZE;
+    }
+
+    private static File file (File directory, long number, String extension)
+    {
+        return new File (directory, String.format ("%020d%s", number, extension));
+    }
+
+    private static MappedByteBuffer map (File file, int size) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile (file, "rw");
+        try {
+            return raf.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close ();
+        }
+    }
+
+    //  Return numbers of segments in directory, in order
+    private static long [] segments (File directory)
+    {
+        String [] names = directory.list ();
+        if (names == null)
+            return new long [0];
+        long [] numbers = new long [names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.length () == 24 && name.endsWith (".log")) {
+                try {
+                    numbers [count++] = Long.parseLong (name.substring (0, 20));
+                } catch (NumberFormatException e) {
+                }
+            }
+        }
+        numbers = Arrays.copyOf (numbers, count);
+        Arrays.sort (numbers);
+        return numbers;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Reads LOG messages from a store, from some time on. Another process
+    //  may be writing the store; next () returns null when we have read
+    //  all there is so far, and may be called again later to follow it.
+
+    public static class Cursor
+    {
+        private final File directory;
+        private final long since;           //  Skip events before this
+        private long number;                //  Segment we're reading
+        private MappedByteBuffer segment;
+        private int position;               //  Next record in segment
+
+        //  -----------------------------------------------------------------
+        //  Constructor; finds where events at or after since may start
+        public Cursor (File directory, long since) throws IOException
+        {
+            this.directory = directory;
+            this.since = since;
+            number = -1;
+
+            //  Use last segment that starts before events we want, then
+            //  last index entry in it that does
+            long [] numbers = segments (directory);
+            for (long candidate : numbers) {
+                //  First entry holds latest time before segment
+                MappedByteBuffer index = readIndex (candidate);
+                if (index == null || index.getLong (8) == 0)
+                    break;
+                if (number >= 0 && index.getLong (0) >= since)
+                    break;
+                number = candidate;
+                int low = 0;
+                int high = index.capacity () / ENTRY_SIZE - 1;
+                while (low < high) {
+                    int middle = (low + high + 1) / 2;
+                    long entry = index.getLong (middle * ENTRY_SIZE + 8);
+                    if (entry != 0 && index.getLong (middle * ENTRY_SIZE) < since)
+                        low = middle;
+                    else
+                        high = middle - 1;
+                }
+                position = (int) (index.getLong (low * ENTRY_SIZE + 8) - 1);
+            }
+            if (number < 0 && numbers.length > 0)
+                number = numbers [0];
+            if (number >= 0)
+                segment = readSegment (number);
+        }
+
+        //  -----------------------------------------------------------------
+        //  Return next LOG message, or null if there is none yet
+        public ZreLogMsg next () throws IOException
+        {
+            while (true) {
+                if (segment == null) {
+                    long [] numbers = segments (directory);
+                    if (numbers.length == 0)
+                        return null;
+                    number = numbers [0];
+                    segment = readSegment (number);
+                    position = 0;
+                }
+                int size = position + 4 <= segment.capacity ()
+                         ? segment.getInt (position) : 0;
+                if (size == 0) {
+                    //  Move on only if the writer has
+                    File next = file (directory, number + 1, ".log");
+                    if (!next.exists ())
+                        return null;
+                    number++;
+                    segment = readSegment (number);
+                    position = 0;
+                    continue;
+                }
+                segment.limit (position + 4 + size);
+                segment.position (position + 4);
+                ZreLogMsg msg = ZreLogMsg.decode (segment.slice ());
+                segment.limit (segment.capacity ());
+                position += 4 + size;
+                if (msg != null && msg.time () >= since)
+                    return msg;
+                if (msg != null)
+                    msg.destroy ();
+            }
+        }
+
+        private MappedByteBuffer readSegment (long number) throws IOException
+        {
+            return readMap (file (directory, number, ".log"));
+        }
+
+        private MappedByteBuffer readIndex (long number) throws IOException
+        {
+            File file = file (directory, number, ".idx");
+            return file.exists () ? readMap (file) : null;
+        }
+
+        private static MappedByteBuffer readMap (File file) throws IOException
+        {
+            RandomAccessFile raf = new RandomAccessFile (file, "r");
+            try {
+                return raf.getChannel ().map (FileChannel.MapMode.READ_ONLY, 0, raf.length ());
+            } finally {
+                raf.close ();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.zyre;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+
+//  Prints log events from a store written by ZreLogger -store, from some
+//  time on (msecs since the epoch, default all), and with -f keeps on
+//  printing events as they arrive.
+//
+//      ZreLogTail [-f] directory [since]
+
+public class ZreLogTail
+{
+
+    public static void main (String[] args) throws IOException, InterruptedException
+    {
+        int arg = 0;
+        boolean follow = args.length > 0 && args [0].equals ("-f");
+        if (follow)
+            arg++;
+        if (arg >= args.length) {
+            System.err.println ("syntax: ZreLogTail [-f] directory [since]");
+            return;
+        }
+        File directory = new File (args [arg++]);
+        long since = arg < args.length ? Long.parseLong (args [arg]) : Long.MIN_VALUE;
+
+        DateFormat format = new SimpleDateFormat ("yyyy-MM-dd HH:mm:ss");
+        ZreLogStore.Cursor cursor = new ZreLogStore.Cursor (directory, since);
+        while (!Thread.currentThread ().isInterrupted ()) {
+            ZreLogMsg msg = cursor.next ();
+            if (msg != null)
+                ZreLogger.printLogMsg (msg, format);
+            else
+            if (follow)
+                Thread.sleep (100);
+            else
+                break;
+        }
+    }
+
+}
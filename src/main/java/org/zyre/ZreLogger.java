@@ -1,7 +1,12 @@
 package org.zyre;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
 
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
@@ -9,11 +14,38 @@ import org.zeromq.ZMQ.Poller;
 import org.zeromq.ZMQ.Socket;
 import org.zeromq.ZMsg;
 
+//  Collects log events from all peers and prints them, or with -store
+//  directory, appends them to a ZreLogStore; read that with ZreLogTail.
+//  With -level n we only take events of level n (ZRE_LOG_MSG_LEVEL_*)
+//  or more severe, and peers don't send us the others. With -stats n we
+//  also take nodes' STATS reports and every n seconds print rollups over
+//  the last minute, for the cluster and per group.
+//
+//      ZreLogger [-store directory] [-level n] [-stats seconds]
+
 public class ZreLogger
 {
+    private static final int STATS_WINDOW = 60000;  //  Msecs of reports per rollup
 
-    public static void main (String[] args)
+    public static void main (String[] args) throws IOException
     {
+        ZreLogStore store = null;
+        int level = ZreLogMsg.ZRE_LOG_MSG_LEVEL_INFO;
+        ZreStats stats = null;
+        long statsInterval = 0;
+        for (int arg = 0; arg + 1 < args.length; arg += 2) {
+            if (args [arg].equals ("-store"))
+                store = new ZreLogStore (new File (args [arg + 1]), ZreLogStore.SEGMENT_SIZE);
+            else
+            if (args [arg].equals ("-level"))
+                level = Integer.parseInt (args [arg + 1]);
+            else
+            if (args [arg].equals ("-stats")) {
+                stats = new ZreStats (STATS_WINDOW);
+                statsInterval = Integer.parseInt (args [arg + 1]) * 1000L;
+            }
+        }
+        
         ZContext ctx = new ZContext ();
 
         //  Use the Zyre UDP class to make sure we listen on the same
@@ -27,22 +59,49 @@ public class ZreLogger
 
         //  Announce this to all peers we connect to
         ZreInterface inf = new ZreInterface ();
-        inf.setHeader ("X-ZRELOG", "tcp://%s:%d", host, port);
+        inf.setHeader (ZreLog.COLLECTOR_HEADER, "tcp://%s:%d", host, port);
 
-        //  Get all log messages (don't filter)
-        collector.subscribe ("".getBytes ());
+        //  Get log messages of the levels we want; peers filter for us
+        for (int wanted = ZreLogMsg.ZRE_LOG_MSG_LEVEL_ERROR; wanted <= level; wanted++)
+            collector.subscribe (ZreLog.topic (wanted, -1, -1));
+        if (stats != null)
+            collector.subscribe (ZreLog.statsTopic ());
 
         Poller items = ctx.getContext ().poller ();
         
         items.register (collector, Poller.POLLIN);
         items.register (inf.handle (), Poller.POLLIN);
         
+        DateFormat format = new SimpleDateFormat ("yyyy-MM-dd HH:mm:ss");
+        byte [] frame = new byte [ZreLogStore.RECORD_MAX];
+        long statsAt = System.currentTimeMillis () + statsInterval;
         while (!Thread.currentThread ().isInterrupted ()) {
             if (items.poll (1000) == -1)
                 break;              //  Interrupted
-            //  Handle input on collector
-            if (items.pollin (0))
-                printLogMsg (collector);
+            //  Handle input on collector; when storing, take all waiting
+            //  frames as they are and flush once
+            if (items.pollin (0)) {
+                if (store != null) {
+                    int size;
+                    while ((size = collector.recv (frame, 0, frame.length, ZMQ.DONTWAIT)) >= 0) {
+                        if (!store.append (frame, size) && stats != null)
+                            stats.add (ZreLogMsg.decode (ByteBuffer.wrap (frame, 0, size)),
+                                       System.currentTimeMillis ());
+                    }
+                    store.flush ();
+                }
+                else {
+                    ZreLogMsg msg = ZreLogMsg.recv (collector);
+                    if (msg != null && msg.id () == ZreLogMsg.STATS)
+                        stats.add (msg, System.currentTimeMillis ());
+                    else
+                        printLogMsg (msg, format);
+                }
+            }
+            if (stats != null && System.currentTimeMillis () >= statsAt) {
+                statsAt = System.currentTimeMillis () + statsInterval;
+                printStats (stats, format);
+            }
 
             //  Handle event from interface (ignore it)
             if (items.pollin (1)) {
@@ -52,19 +111,31 @@ public class ZreLogger
                 msg.destroy ();
             }
         }
+        if (store != null)
+            store.destroy ();
         inf.destroy ();
         udp.destroy ();
         ctx.destroy ();
 
     }
 
-    private static void printLogMsg (Socket collector)
+    //  Print rollups over the cluster and each group; format is for the time
+    static void printStats (ZreStats stats, DateFormat format)
+    {
+        long now = System.currentTimeMillis ();
+        stats.expire (now);
+        String timestr = format.format (new Date (now));
+        System.out.printf ("%s S: cluster %s\n", timestr, stats.cluster ());
+        for (Map.Entry <String, ZreStats.Rollup> entry : stats.groups ().entrySet ())
+            System.out.printf ("%s S: group %s %s\n", timestr, entry.getKey (), entry.getValue ());
+    }
+
+    //  Print and destroy log message; format is for the time
+    static void printLogMsg (ZreLogMsg msg, DateFormat format)
     {
-        ZreLogMsg msg = ZreLogMsg.recv (collector);
         if (msg == null)
             return;                 //  Interrupted
 
-        long curtime = msg.time ();
         String event = null;
         switch (msg.event ()) {
             case ZreLogMsg.ZRE_LOG_MSG_EVENT_JOIN:
@@ -81,10 +152,7 @@ public class ZreLogger
                 break;
         }
         
-        Calendar now = Calendar.getInstance();
-        now.setTimeInMillis (curtime);
-        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-DD HH:mm:SS");
-        String timestr = df.format (now.getTime ());
+        String timestr = format.format (new Date (msg.time ()));
 
         System.out.printf ("%s I: [%04X] [%04X] - %s %s\n",
             timestr,
@@ -51,6 +51,97 @@
         sequence      number 2
     PING_OK - Reply to a peer's ping
         sequence      number 2
+    OFFER - Offer a published file to a group, chunks holds the chunk digests
+        sequence      number 2
+        group         string
+        name          string
+        filesize      number 8
+        chunks        frame
+    HAVE - Tell peers we now hold one chunk of an offered file
+        sequence      number 2
+        name          string
+        index         number 4
+    FETCH - Ask a peer for one chunk of an offered file
+        sequence      number 2
+        name          string
+        index         number 4
+    CHUNK - Deliver one chunk of an offered file
+        sequence      number 2
+        name          string
+        index         number 4
+        content       frame
+    COMPRESSED - Send compressed content to a peer, or to a group if group is set
+        sequence      number 2
+        group         string
+        encoding      number 1
+        rawsize       number 4
+        content       frame
+    BATCH - Send several whispers to a peer in one frame
+        sequence      number 2
+        content       frame
+    BIND - Give a group a numeric ID for the sender's later SHOUT_ID commands
+        sequence      number 2
+        group         string
+        groupid       number 2
+    SHOUT_ID - Send a message to a group named by a bound numeric ID
+        sequence      number 2
+        groupid       number 2
+        content       frame
+    GET_GROUPS - Ask a peer for the groups its compact HELLO left out
+        sequence      number 2
+    GROUPS - Tell a peer all groups we are in, as packed names
+        sequence      number 2
+        status        number 1
+        content       frame
+    JOIN_MANY - Join several groups, as packed names
+        sequence      number 2
+        status        number 1
+        content       frame
+    LEAVE_MANY - Leave several groups, as packed names
+        sequence      number 2
+        status        number 1
+        content       frame
+    REQUEST - Ask a peer, or each member of a group, for a reply
+        sequence      number 2
+        group         string
+        correlation   number 8
+        content       frame
+    REPLY - Answer a request
+        sequence      number 2
+        correlation   number 8
+        content       frame
+    CREDIT - Give a peer credit to push this many more jobs to us for a group
+        sequence      number 2
+        group         string
+        credit        number 4
+    JOB - Push a job to a worker that gave us credit
+        sequence      number 2
+        group         string
+        content       frame
+    TRACE - Stamp the next whisper or shout with clocks at API, agent and send
+        sequence      number 2
+        api           number 8
+        dequeue       number 8
+        sent          number 8
+    RELAY - Shout to a group for origin, passing it on to members after us and before limit
+        sequence      number 2
+        group         string
+        origin        string
+        limit         string
+        fanout        number 1
+        content       frame
+    TIMED_PING - Ping a peer that stamps its replies; stamp is our clock in usecs
+        sequence      number 2
+        stamp         number 8
+    TIMED_PING_OK - Reply to a timed ping, with its stamp and our clocks on receipt and reply
+        sequence      number 2
+        stamp         number 8
+        received      number 8
+        sent          number 8
+    LISTEN - Tell a peer whether we listen for multicast shouts to a group, 1 or 0
+        sequence      number 2
+        group         string
+        listening     number 1
 */
 
 package org.zyre;
@@ -61,6 +152,7 @@ import java.util.Map;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import org.zeromq.ZFrame;
 import org.zeromq.ZMQ;
@@ -78,6 +170,27 @@ public class ZreMsg
     public static final int LEAVE                 = 5;
     public static final int PING                  = 6;
     public static final int PING_OK               = 7;
+    public static final int OFFER                 = 8;
+    public static final int HAVE                  = 9;
+    public static final int FETCH                 = 10;
+    public static final int CHUNK                 = 11;
+    public static final int COMPRESSED            = 12;
+    public static final int BATCH                 = 13;
+    public static final int BIND                  = 14;
+    public static final int SHOUT_ID              = 15;
+    public static final int GET_GROUPS            = 16;
+    public static final int GROUPS                = 17;
+    public static final int JOIN_MANY             = 18;
+    public static final int LEAVE_MANY            = 19;
+    public static final int REQUEST               = 20;
+    public static final int REPLY                 = 21;
+    public static final int CREDIT                = 22;
+    public static final int JOB                   = 23;
+    public static final int TRACE                 = 24;
+    public static final int RELAY                 = 25;
+    public static final int TIMED_PING            = 26;
+    public static final int TIMED_PING_OK         = 27;
+    public static final int LISTEN                = 28;
 
     //  Structure of our class
     private ZFrame address;             //  Address of peer if any
@@ -89,10 +202,29 @@ public class ZreMsg
     private List <String> groups;
     private int status;
     private Map <String, String> headers;
-    private int headersBytes;
     private ZFrame content;
     private String group;
-
+    private String name;
+    private long filesize;
+    private ZFrame chunks;
+    private long index;
+    private int encoding;
+    private long rawsize;
+    private int groupid;
+    private long correlation;
+    private long credit;
+    private long api;
+    private long dequeue;
+    private long sent;
+    private String origin;
+    private String limit;
+    private int fanout;
+    private long stamp;
+    private long received;
+    private int listening;
+
+    //  Encoding buffer per sending thread, reused for every message
+    private static final ThreadLocal <ByteBuffer> buffers = new ThreadLocal <ByteBuffer> ();
 
     //  --------------------------------------------------------------------------
     //  Create a new ZreMsg
@@ -117,6 +249,9 @@ public class ZreMsg
         if (content != null)
             content.destroy ();
         content = null;
+        if (chunks != null)
+            chunks.destroy ();
+        chunks = null;
     }
 
 
@@ -167,7 +302,7 @@ public class ZreMsg
     { 
         long value = needle.getInt (); 
         if (value < 0)
-            value = (0xffffffff) & value;
+            value = (0xffffffffL) & value;
         return value;
     }
 
@@ -198,21 +333,123 @@ public class ZreMsg
         return value;
     }
 
-    //  Put a string to the frame
+    //  Put a string to the frame, as UTF-8 with a 1-byte length
     public void putString (String value) 
     {
-        needle.put ((byte) value.length ());
-        needle.put (value.getBytes());
+        int size = stringSize (value);
+        if (size > 0xff)
+            throw new IllegalArgumentException ("String too long");
+        needle.put ((byte) size);
+        putUtf8 (value);
     }
 
     //  Get a string from the frame
     public String getString () 
     {
         int size = getNumber1 ();
-        byte [] value = new byte [size];
-        needle.get (value);
+        String value;
+        if (needle.hasArray ())
+            value = new String (needle.array (),
+                needle.arrayOffset () + needle.position (), size, StandardCharsets.UTF_8);
+        else {
+            //  Direct or mapped buffer
+            byte [] bytes = new byte [size];
+            needle.duplicate ().get (bytes);
+            value = new String (bytes, StandardCharsets.UTF_8);
+        }
+        needle.position (needle.position () + size);
+
+        return value;
+    }
+
+    //  Put a key=value entry to the frame, as one string
+    public void putEntry (String key, String value) 
+    {
+        int size = entrySize (key, value);
+        if (size > 0xff)
+            throw new IllegalArgumentException ("Entry too long");
+        needle.put ((byte) size);
+        putUtf8 (key);
+        needle.put ((byte) '=');
+        putUtf8 (value);
+    }
+
+    //  Put characters of a string to the frame as UTF-8, without
+    //  allocating; unpaired surrogates become '?' as in String.getBytes
+    private void putUtf8 (String value) 
+    {
+        int length = value.length ();
+        for (int index = 0; index < length; index++) {
+            char ch = value.charAt (index);
+            if (ch < 0x80)
+                needle.put ((byte) ch);
+            else
+            if (ch < 0x800) {
+                needle.put ((byte) (0xc0 | (ch >> 6)));
+                needle.put ((byte) (0x80 | (ch & 0x3f)));
+            }
+            else
+            if (Character.isHighSurrogate (ch) && index + 1 < length
+            &&  Character.isLowSurrogate (value.charAt (index + 1))) {
+                int code = Character.toCodePoint (ch, value.charAt (++index));
+                needle.put ((byte) (0xf0 | (code >> 18)));
+                needle.put ((byte) (0x80 | ((code >> 12) & 0x3f)));
+                needle.put ((byte) (0x80 | ((code >> 6) & 0x3f)));
+                needle.put ((byte) (0x80 | (code & 0x3f)));
+            }
+            else
+            if (Character.isSurrogate (ch))
+                needle.put ((byte) '?');
+            else {
+                needle.put ((byte) (0xe0 | (ch >> 12)));
+                needle.put ((byte) (0x80 | ((ch >> 6) & 0x3f)));
+                needle.put ((byte) (0x80 | (ch & 0x3f)));
+            }
+        }
+    }
+
+    //  Return number of bytes a string takes as UTF-8, 0 if null
+    public static int stringSize (String value) 
+    {
+        if (value == null)
+            return 0;
+        int length = value.length ();
+        int size = length;
+        for (int index = 0; index < length; index++) {
+            char ch = value.charAt (index);
+            if (ch < 0x80)
+                continue;
+            if (ch < 0x800)
+                size++;
+            else
+            if (Character.isHighSurrogate (ch) && index + 1 < length
+            &&  Character.isLowSurrogate (value.charAt (index + 1))) {
+                size += 2;
+                index++;
+            }
+            else
+            if (!Character.isSurrogate (ch))
+                size += 2;
+        }
+        return size;
+    }
+
+    //  Return number of bytes a key=value entry takes as UTF-8
+    public static int entrySize (String key, String value) 
+    {
+        return stringSize (key) + 1 + stringSize (value);
+    }
 
-        return new String (value);
+    //  Return reusable buffer of at least size bytes for this thread
+    private static ByteBuffer buffer (int size) 
+    {
+        ByteBuffer buffer = buffers.get ();
+        if (buffer == null || buffer.capacity () < size) {
+            buffer = ByteBuffer.allocate (Math.max (size, 256));
+            buffers.set (buffer);
+        }
+        buffer.clear ();
+        return buffer;
     }
 
     //  --------------------------------------------------------------------------
@@ -277,8 +514,10 @@ public class ZreMsg
                 self.headers = new HashMap <String, String> ();
                 while (hashSize-- > 0) {
                     String string = self.getString ();
-                    String [] kv = string.split("=");
-                    self.headers.put(kv[0], kv[1]);
+                    int equals = string.indexOf ('=');
+                    if (equals < 0)
+                        throw new IllegalArgumentException ();
+                    self.headers.put (string.substring (0, equals), string.substring (equals + 1));
                 }
 
                 break;
@@ -320,6 +559,175 @@ public class ZreMsg
                 self.sequence = self.getNumber2 ();
                 break;
 
+            case OFFER:
+                self.sequence = self.getNumber2 ();
+                self.group = self.getString ();
+                self.name = self.getString ();
+                self.filesize = self.getNumber8 ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.chunks = ZFrame.recvFrame (input);
+                break;
+
+            case HAVE:
+                self.sequence = self.getNumber2 ();
+                self.name = self.getString ();
+                self.index = self.getNumber4 ();
+                break;
+
+            case FETCH:
+                self.sequence = self.getNumber2 ();
+                self.name = self.getString ();
+                self.index = self.getNumber4 ();
+                break;
+
+            case CHUNK:
+                self.sequence = self.getNumber2 ();
+                self.name = self.getString ();
+                self.index = self.getNumber4 ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.content = ZFrame.recvFrame (input);
+                break;
+
+            case COMPRESSED:
+                self.sequence = self.getNumber2 ();
+                self.group = self.getString ();
+                self.encoding = self.getNumber1 ();
+                self.rawsize = self.getNumber4 ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.content = ZFrame.recvFrame (input);
+                break;
+
+            case BATCH:
+                self.sequence = self.getNumber2 ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.content = ZFrame.recvFrame (input);
+                break;
+
+            case BIND:
+                self.sequence = self.getNumber2 ();
+                self.group = self.getString ();
+                self.groupid = self.getNumber2 ();
+                break;
+
+            case SHOUT_ID:
+                self.sequence = self.getNumber2 ();
+                self.groupid = self.getNumber2 ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.content = ZFrame.recvFrame (input);
+                break;
+
+            case GET_GROUPS:
+                self.sequence = self.getNumber2 ();
+                break;
+
+            case GROUPS:
+                self.sequence = self.getNumber2 ();
+                self.status = self.getNumber1 ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.content = ZFrame.recvFrame (input);
+                break;
+
+            case JOIN_MANY:
+                self.sequence = self.getNumber2 ();
+                self.status = self.getNumber1 ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.content = ZFrame.recvFrame (input);
+                break;
+
+            case LEAVE_MANY:
+                self.sequence = self.getNumber2 ();
+                self.status = self.getNumber1 ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.content = ZFrame.recvFrame (input);
+                break;
+
+            case REQUEST:
+                self.sequence = self.getNumber2 ();
+                self.group = self.getString ();
+                self.correlation = self.getNumber8 ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.content = ZFrame.recvFrame (input);
+                break;
+
+            case REPLY:
+                self.sequence = self.getNumber2 ();
+                self.correlation = self.getNumber8 ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.content = ZFrame.recvFrame (input);
+                break;
+
+            case CREDIT:
+                self.sequence = self.getNumber2 ();
+                self.group = self.getString ();
+                self.credit = self.getNumber4 ();
+                break;
+
+            case JOB:
+                self.sequence = self.getNumber2 ();
+                self.group = self.getString ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.content = ZFrame.recvFrame (input);
+                break;
+
+            case TRACE:
+                self.sequence = self.getNumber2 ();
+                self.api = self.getNumber8 ();
+                self.dequeue = self.getNumber8 ();
+                self.sent = self.getNumber8 ();
+                break;
+
+            case RELAY:
+                self.sequence = self.getNumber2 ();
+                self.group = self.getString ();
+                self.origin = self.getString ();
+                self.limit = self.getString ();
+                self.fanout = self.getNumber1 ();
+                //  Get next frame, leave current untouched
+                if (!input.hasReceiveMore ())
+                    throw new IllegalArgumentException ();
+                self.content = ZFrame.recvFrame (input);
+                break;
+
+            case TIMED_PING:
+                self.sequence = self.getNumber2 ();
+                self.stamp = self.getNumber8 ();
+                break;
+
+            case TIMED_PING_OK:
+                self.sequence = self.getNumber2 ();
+                self.stamp = self.getNumber8 ();
+                self.received = self.getNumber8 ();
+                self.sent = self.getNumber8 ();
+                break;
+
+            case LISTEN:
+                self.sequence = self.getNumber2 ();
+                self.group = self.getString ();
+                self.listening = self.getNumber1 ();
+                break;
+
             default:
                 throw new IllegalArgumentException ();
             }
@@ -338,114 +746,506 @@ public class ZreMsg
     }
 
 
-    //  Count size of key=value pair
-    private static void 
-    headersCount (final Map.Entry <String, String> entry, ZreMsg self)
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the HELLO command frame, as encoded on the wire
+
+    public static int sizeOfHello (
+        String ipaddress,
+        Collection <String> groups,
+        Map <String, String> headers)
     {
-        self.headersBytes += entry.getKey ().length () + 1 + entry.getValue ().length () + 1;
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  ipaddress is a string with 1-byte length
+        frameSize += 1 + stringSize (ipaddress);
+        //  mailbox is a 2-byte integer
+        frameSize += 2;
+        //  groups is an array of strings
+        frameSize++;       //  Size is one octet
+        if (groups != null) {
+            for (String value : groups) 
+                frameSize += 1 + stringSize (value);
+        }
+        //  status is a 1-byte integer
+        frameSize += 1;
+        //  headers is an array of key=value strings
+        frameSize++;       //  Size is one octet
+        if (headers != null) {
+            for (Map.Entry <String, String> entry: headers.entrySet ()) 
+                frameSize += 1 + entrySize (entry.getKey (), entry.getValue ());
+        }
+        return frameSize;
     }
 
-    //  Serialize headers key=value pair
-    private static void
-    headersWrite (final Map.Entry <String, String> entry, ZreMsg self)
+    //  --------------------------------------------------------------------------
+    //  Return size of the WHISPER command frame, as encoded on the wire
+
+    public static int sizeOfWhisper ()
     {
-        String string = entry.getKey () + "=" + entry.getValue ();
-        self.putString (string);
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        return frameSize;
     }
 
+    //  --------------------------------------------------------------------------
+    //  Return size of the SHOUT command frame, as encoded on the wire
+
+    public static int sizeOfShout (String group)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  group is a string with 1-byte length
+        frameSize += 1 + stringSize (group);
+        return frameSize;
+    }
 
     //  --------------------------------------------------------------------------
-    //  Send the ZreMsg to the socket, and destroy it
+    //  Return size of the JOIN command frame, as encoded on the wire
 
-    public boolean send (Socket socket)
+    public static int sizeOfJoin (String group)
     {
-        assert (socket != null);
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  group is a string with 1-byte length
+        frameSize += 1 + stringSize (group);
+        //  status is a 1-byte integer
+        frameSize += 1;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the LEAVE command frame, as encoded on the wire
 
-        //  Calculate size of serialized data
+    public static int sizeOfLeave (String group)
+    {
         int frameSize = 2 + 1;          //  Signature and message ID
-        switch (id) {
-        case HELLO:
-            //  sequence is a 2-byte integer
-            frameSize += 2;
-            //  ipaddress is a string with 1-byte length
-            frameSize++;       //  Size is one octet
-            if (ipaddress != null)
-                frameSize += ipaddress.length ();
-            //  mailbox is a 2-byte integer
-            frameSize += 2;
-            //  groups is an array of strings
-            frameSize++;       //  Size is one octet
-            if (groups != null) {
-                for (String value : groups) 
-                    frameSize += 1 + value.length ();
-            }
-            //  status is a 1-byte integer
-            frameSize += 1;
-            //  headers is an array of key=value strings
-            frameSize++;       //  Size is one octet
-            if (headers != null) {
-                headersBytes = 0;
-                for (Map.Entry <String, String> entry: headers.entrySet ()) {
-                    headersCount (entry, this);
-                }
-                frameSize += headersBytes;
-            }
-            break;
-            
-        case WHISPER:
-            //  sequence is a 2-byte integer
-            frameSize += 2;
-            break;
-            
-        case SHOUT:
-            //  sequence is a 2-byte integer
-            frameSize += 2;
-            //  group is a string with 1-byte length
-            frameSize++;       //  Size is one octet
-            if (group != null)
-                frameSize += group.length ();
-            break;
-            
-        case JOIN:
-            //  sequence is a 2-byte integer
-            frameSize += 2;
-            //  group is a string with 1-byte length
-            frameSize++;       //  Size is one octet
-            if (group != null)
-                frameSize += group.length ();
-            //  status is a 1-byte integer
-            frameSize += 1;
-            break;
-            
-        case LEAVE:
-            //  sequence is a 2-byte integer
-            frameSize += 2;
-            //  group is a string with 1-byte length
-            frameSize++;       //  Size is one octet
-            if (group != null)
-                frameSize += group.length ();
-            //  status is a 1-byte integer
-            frameSize += 1;
-            break;
-            
-        case PING:
-            //  sequence is a 2-byte integer
-            frameSize += 2;
-            break;
-            
-        case PING_OK:
-            //  sequence is a 2-byte integer
-            frameSize += 2;
-            break;
-            
-        default:
-            System.out.printf ("E: bad message type '%d', not sent\n", id);
-            assert (false);
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  group is a string with 1-byte length
+        frameSize += 1 + stringSize (group);
+        //  status is a 1-byte integer
+        frameSize += 1;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the PING command frame, as encoded on the wire
+
+    public static int sizeOfPing ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the PING_OK command frame, as encoded on the wire
+
+    public static int sizeOfPing_Ok ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the OFFER command frame, as encoded on the wire
+
+    public static int sizeOfOffer (
+        String group,
+        String name)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  group is a string with 1-byte length
+        frameSize += 1 + stringSize (group);
+        //  name is a string with 1-byte length
+        frameSize += 1 + stringSize (name);
+        //  filesize is a 8-byte integer
+        frameSize += 8;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the HAVE command frame, as encoded on the wire
+
+    public static int sizeOfHave (String name)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  name is a string with 1-byte length
+        frameSize += 1 + stringSize (name);
+        //  index is a 4-byte integer
+        frameSize += 4;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the FETCH command frame, as encoded on the wire
+
+    public static int sizeOfFetch (String name)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  name is a string with 1-byte length
+        frameSize += 1 + stringSize (name);
+        //  index is a 4-byte integer
+        frameSize += 4;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the CHUNK command frame, as encoded on the wire
+
+    public static int sizeOfChunk (String name)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  name is a string with 1-byte length
+        frameSize += 1 + stringSize (name);
+        //  index is a 4-byte integer
+        frameSize += 4;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the COMPRESSED command frame, as encoded on the wire
+
+    public static int sizeOfCompressed (String group)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  group is a string with 1-byte length
+        frameSize += 1 + stringSize (group);
+        //  encoding is a 1-byte integer
+        frameSize += 1;
+        //  rawsize is a 4-byte integer
+        frameSize += 4;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the BATCH command frame, as encoded on the wire
+
+    public static int sizeOfBatch ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the BIND command frame, as encoded on the wire
+
+    public static int sizeOfBind (String group)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  group is a string with 1-byte length
+        frameSize += 1 + stringSize (group);
+        //  groupid is a 2-byte integer
+        frameSize += 2;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the SHOUT_ID command frame, as encoded on the wire
+
+    public static int sizeOfShout_Id ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  groupid is a 2-byte integer
+        frameSize += 2;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the GET_GROUPS command frame, as encoded on the wire
+
+    public static int sizeOfGet_Groups ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the GROUPS command frame, as encoded on the wire
+
+    public static int sizeOfGroups ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  status is a 1-byte integer
+        frameSize += 1;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the JOIN_MANY command frame, as encoded on the wire
+
+    public static int sizeOfJoin_Many ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  status is a 1-byte integer
+        frameSize += 1;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the LEAVE_MANY command frame, as encoded on the wire
+
+    public static int sizeOfLeave_Many ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  status is a 1-byte integer
+        frameSize += 1;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the REQUEST command frame, as encoded on the wire
+
+    public static int sizeOfRequest (String group)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  group is a string with 1-byte length
+        frameSize += 1 + stringSize (group);
+        //  correlation is a 8-byte integer
+        frameSize += 8;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the REPLY command frame, as encoded on the wire
+
+    public static int sizeOfReply ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  correlation is a 8-byte integer
+        frameSize += 8;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the CREDIT command frame, as encoded on the wire
+
+    public static int sizeOfCredit (String group)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  group is a string with 1-byte length
+        frameSize += 1 + stringSize (group);
+        //  credit is a 4-byte integer
+        frameSize += 4;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the JOB command frame, as encoded on the wire
+
+    public static int sizeOfJob (String group)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  group is a string with 1-byte length
+        frameSize += 1 + stringSize (group);
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the TRACE command frame, as encoded on the wire
+
+    public static int sizeOfTrace ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  api is a 8-byte integer
+        frameSize += 8;
+        //  dequeue is a 8-byte integer
+        frameSize += 8;
+        //  sent is a 8-byte integer
+        frameSize += 8;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the RELAY command frame, as encoded on the wire
+
+    public static int sizeOfRelay (
+        String group,
+        String origin,
+        String limit)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  group is a string with 1-byte length
+        frameSize += 1 + stringSize (group);
+        //  origin is a string with 1-byte length
+        frameSize += 1 + stringSize (origin);
+        //  limit is a string with 1-byte length
+        frameSize += 1 + stringSize (limit);
+        //  fanout is a 1-byte integer
+        frameSize += 1;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the TIMED_PING command frame, as encoded on the wire
+
+    public static int sizeOfTimed_Ping ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  stamp is a 8-byte integer
+        frameSize += 8;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the TIMED_PING_OK command frame, as encoded on the wire
+
+    public static int sizeOfTimed_Ping_Ok ()
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  stamp is a 8-byte integer
+        frameSize += 8;
+        //  received is a 8-byte integer
+        frameSize += 8;
+        //  sent is a 8-byte integer
+        frameSize += 8;
+        return frameSize;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the LISTEN command frame, as encoded on the wire
+
+    public static int sizeOfListen (String group)
+    {
+        int frameSize = 2 + 1;          //  Signature and message ID
+        //  sequence is a 2-byte integer
+        frameSize += 2;
+        //  group is a string with 1-byte length
+        frameSize += 1 + stringSize (group);
+        //  listening is a 1-byte integer
+        frameSize += 1;
+        return frameSize;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Return size of the command frame for this message
+
+    public int size ()
+    {
+        switch (id) {
+        case HELLO:
+            return sizeOfHello (ipaddress, groups, headers);
+        case WHISPER:
+            return sizeOfWhisper ();
+        case SHOUT:
+            return sizeOfShout (group);
+        case JOIN:
+            return sizeOfJoin (group);
+        case LEAVE:
+            return sizeOfLeave (group);
+        case PING:
+            return sizeOfPing ();
+        case PING_OK:
+            return sizeOfPing_Ok ();
+        case OFFER:
+            return sizeOfOffer (group, name);
+        case HAVE:
+            return sizeOfHave (name);
+        case FETCH:
+            return sizeOfFetch (name);
+        case CHUNK:
+            return sizeOfChunk (name);
+        case COMPRESSED:
+            return sizeOfCompressed (group);
+        case BATCH:
+            return sizeOfBatch ();
+        case BIND:
+            return sizeOfBind (group);
+        case SHOUT_ID:
+            return sizeOfShout_Id ();
+        case GET_GROUPS:
+            return sizeOfGet_Groups ();
+        case GROUPS:
+            return sizeOfGroups ();
+        case JOIN_MANY:
+            return sizeOfJoin_Many ();
+        case LEAVE_MANY:
+            return sizeOfLeave_Many ();
+        case REQUEST:
+            return sizeOfRequest (group);
+        case REPLY:
+            return sizeOfReply ();
+        case CREDIT:
+            return sizeOfCredit (group);
+        case JOB:
+            return sizeOfJob (group);
+        case TRACE:
+            return sizeOfTrace ();
+        case RELAY:
+            return sizeOfRelay (group, origin, limit);
+        case TIMED_PING:
+            return sizeOfTimed_Ping ();
+        case TIMED_PING_OK:
+            return sizeOfTimed_Ping_Ok ();
+        case LISTEN:
+            return sizeOfListen (group);
+        default:
+            System.out.printf ("E: bad message type '%d', not sent\n", id);
+            assert (false);
+            return 2 + 1;
         }
-        //  Now serialize message into the frame
-        ZFrame frame = new ZFrame (new byte [frameSize]);
-        needle = ByteBuffer.wrap (frame.getData ()); 
-        int frameFlags = 0;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Encode the command frame into a caller-supplied buffer, which must
+    //  have at least size () bytes remaining and network byte order.
+    //  Frame fields are not part of the command frame. Returns the number
+    //  of bytes written.
+
+    public int encode (ByteBuffer buffer)
+    {
+        needle = buffer;
+        int start = buffer.position ();
         putNumber2 (0xAAA0 | 1);
         putNumber1 ((byte) id);
 
@@ -469,7 +1269,7 @@ public class ZreMsg
             if (headers != null) {
                 putNumber1 ((byte) headers.size ());
                 for (Map.Entry <String, String> entry: headers.entrySet ()) {
-                    headersWrite (entry, this);
+                    putEntry (entry.getKey (), entry.getValue ());
                 }
             }
             else
@@ -478,7 +1278,6 @@ public class ZreMsg
             
         case WHISPER:
             putNumber2 (sequence);
-            frameFlags = ZMQ.SNDMORE;
             break;
             
         case SHOUT:
@@ -487,7 +1286,6 @@ public class ZreMsg
                 putString (group);
             else
                 putNumber1 ((byte) 0);      //  Empty string
-            frameFlags = ZMQ.SNDMORE;
             break;
             
         case JOIN:
@@ -516,156 +1314,808 @@ public class ZreMsg
             putNumber2 (sequence);
             break;
             
-        }
-        //  If we're sending to a ROUTER, we send the address first
-        if (socket.getType () == ZMQ.ROUTER) {
-            assert (address != null);
-            if (!address.send (socket, ZMQ.SNDMORE)) {
-                destroy ();
-                return false;
-            }
-        }
-        //  Now send the data frame
-        if (!frame.send (socket, frameFlags)) {
-            frame.destroy ();
-            destroy ();
-            return false;
-        }
-        
-        //  Now send any frame fields, in order
-        switch (id) {
-        case WHISPER:
-            //  If content isn't set, send an empty frame
-            if (content == null)
-                content = new ZFrame ("".getBytes ());
-            if (!content.send (socket, 0)) {
-                frame.destroy ();
-                destroy ();
-                return false;
-            }
+        case OFFER:
+            putNumber2 (sequence);
+            if (group != null)
+                putString (group);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            if (name != null)
+                putString (name);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            putNumber8 (filesize);
             break;
-        case SHOUT:
-            //  If content isn't set, send an empty frame
-            if (content == null)
-                content = new ZFrame ("".getBytes ());
-            if (!content.send (socket, 0)) {
-                frame.destroy ();
-                destroy ();
-                return false;
-            }
+            
+        case HAVE:
+            putNumber2 (sequence);
+            if (name != null)
+                putString (name);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            putNumber4 (index);
             break;
-        }
-        //  Destroy ZreMsg object
-        destroy ();
-        return true;
-    }
-
-
-//  --------------------------------------------------------------------------
-//  Send the HELLO to the socket in one step
-
-    public static void sendHello (
-        Socket output,
-        int sequence,
-        String ipaddress,
-        int mailbox,
-        Collection <String> groups,
-        int status,
-        Map <String, String> headers) 
-    {
-        ZreMsg self = new ZreMsg (ZreMsg.HELLO);
-        self.setSequence (sequence);
-        self.setIpaddress (ipaddress);
-        self.setMailbox (mailbox);
-        self.setGroups (new ArrayList <String> (groups));
-        self.setStatus (status);
-        self.setHeaders (new HashMap <String, String> (headers));
-        self.send (output); 
-    }
-
-//  --------------------------------------------------------------------------
-//  Send the WHISPER to the socket in one step
-
-    public static void sendWhisper (
-        Socket output,
-        int sequence,
-        ZFrame content) 
-    {
-        ZreMsg self = new ZreMsg (ZreMsg.WHISPER);
-        self.setSequence (sequence);
-        self.setContent (content.duplicate ());
-        self.send (output); 
-    }
-
-//  --------------------------------------------------------------------------
-//  Send the SHOUT to the socket in one step
+            
+        case FETCH:
+            putNumber2 (sequence);
+            if (name != null)
+                putString (name);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            putNumber4 (index);
+            break;
+            
+        case CHUNK:
+            putNumber2 (sequence);
+            if (name != null)
+                putString (name);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            putNumber4 (index);
+            break;
+            
+        case COMPRESSED:
+            putNumber2 (sequence);
+            if (group != null)
+                putString (group);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            putNumber1 (encoding);
+            putNumber4 (rawsize);
+            break;
+            
+        case BATCH:
+            putNumber2 (sequence);
+            break;
+            
+        case BIND:
+            putNumber2 (sequence);
+            if (group != null)
+                putString (group);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            putNumber2 (groupid);
+            break;
+            
+        case SHOUT_ID:
+            putNumber2 (sequence);
+            putNumber2 (groupid);
+            break;
+            
+        case GET_GROUPS:
+            putNumber2 (sequence);
+            break;
+            
+        case GROUPS:
+            putNumber2 (sequence);
+            putNumber1 (status);
+            break;
+            
+        case JOIN_MANY:
+            putNumber2 (sequence);
+            putNumber1 (status);
+            break;
+            
+        case LEAVE_MANY:
+            putNumber2 (sequence);
+            putNumber1 (status);
+            break;
+            
+        case REQUEST:
+            putNumber2 (sequence);
+            if (group != null)
+                putString (group);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            putNumber8 (correlation);
+            break;
+            
+        case REPLY:
+            putNumber2 (sequence);
+            putNumber8 (correlation);
+            break;
+            
+        case CREDIT:
+            putNumber2 (sequence);
+            if (group != null)
+                putString (group);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            putNumber4 (credit);
+            break;
+            
+        case JOB:
+            putNumber2 (sequence);
+            if (group != null)
+                putString (group);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            break;
+            
+        case TRACE:
+            putNumber2 (sequence);
+            putNumber8 (api);
+            putNumber8 (dequeue);
+            putNumber8 (sent);
+            break;
+            
+        case RELAY:
+            putNumber2 (sequence);
+            if (group != null)
+                putString (group);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            if (origin != null)
+                putString (origin);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            if (limit != null)
+                putString (limit);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            putNumber1 (fanout);
+            break;
+            
+        case TIMED_PING:
+            putNumber2 (sequence);
+            putNumber8 (stamp);
+            break;
+            
+        case TIMED_PING_OK:
+            putNumber2 (sequence);
+            putNumber8 (stamp);
+            putNumber8 (received);
+            putNumber8 (sent);
+            break;
+            
+        case LISTEN:
+            putNumber2 (sequence);
+            if (group != null)
+                putString (group);
+            else
+                putNumber1 ((byte) 0);      //  Empty string
+            putNumber1 (listening);
+            break;
+            
+        }
+        needle = null;
+        return buffer.position () - start;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Send the ZreMsg to the socket, and destroy it
+
+    public boolean send (Socket socket)
+    {
+        assert (socket != null);
+
+        //  Serialize message into this thread's reusable buffer
+        ByteBuffer buffer = buffer (size ());
+        int frameSize = encode (buffer);
+        int frameFlags = 0;
+        switch (id) {
+        case WHISPER:
+        case SHOUT:
+        case OFFER:
+        case CHUNK:
+        case COMPRESSED:
+        case BATCH:
+        case SHOUT_ID:
+        case GROUPS:
+        case JOIN_MANY:
+        case LEAVE_MANY:
+        case REQUEST:
+        case REPLY:
+        case JOB:
+        case RELAY:
+            frameFlags = ZMQ.SNDMORE;
+            break;
+        }
+        //  If we're sending to a ROUTER, we send the address first
+        if (socket.getType () == ZMQ.ROUTER) {
+            assert (address != null);
+            if (!address.send (socket, ZMQ.SNDMORE)) {
+                destroy ();
+                return false;
+            }
+        }
+        //  Now send the data frame
+        if (!socket.send (buffer.array (), 0, frameSize, frameFlags)) {
+            destroy ();
+            return false;
+        }
+        
+        //  Now send any frame fields, in order
+        switch (id) {
+        case WHISPER:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case SHOUT:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case OFFER:
+            //  If chunks isn't set, send an empty frame
+            if (chunks == null)
+                chunks = new ZFrame ("".getBytes ());
+            if (!chunks.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case CHUNK:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case COMPRESSED:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case BATCH:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case SHOUT_ID:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case GROUPS:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case JOIN_MANY:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case LEAVE_MANY:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case REQUEST:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case REPLY:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case JOB:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        case RELAY:
+            //  If content isn't set, send an empty frame
+            if (content == null)
+                content = new ZFrame ("".getBytes ());
+            if (!content.send (socket, 0)) {
+                destroy ();
+                return false;
+            }
+            break;
+        }
+        //  Destroy ZreMsg object
+        destroy ();
+        return true;
+    }
+
+
+//  --------------------------------------------------------------------------
+//  Send the HELLO to the socket in one step
+
+    public static void sendHello (
+        Socket output,
+        int sequence,
+        String ipaddress,
+        int mailbox,
+        Collection <String> groups,
+        int status,
+        Map <String, String> headers) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.HELLO);
+        self.setSequence (sequence);
+        self.setIpaddress (ipaddress);
+        self.setMailbox (mailbox);
+        self.setGroups (new ArrayList <String> (groups));
+        self.setStatus (status);
+        self.setHeaders (new HashMap <String, String> (headers));
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the WHISPER to the socket in one step
+
+    public static void sendWhisper (
+        Socket output,
+        int sequence,
+        ZFrame content) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.WHISPER);
+        self.setSequence (sequence);
+        self.setContent (content.duplicate ());
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the SHOUT to the socket in one step
+
+    public static void sendShout (
+        Socket output,
+        int sequence,
+        String group,
+        ZFrame content) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.SHOUT);
+        self.setSequence (sequence);
+        self.setGroup (group);
+        self.setContent (content.duplicate ());
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the JOIN to the socket in one step
+
+    public static void sendJoin (
+        Socket output,
+        int sequence,
+        String group,
+        int status) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.JOIN);
+        self.setSequence (sequence);
+        self.setGroup (group);
+        self.setStatus (status);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the LEAVE to the socket in one step
+
+    public static void sendLeave (
+        Socket output,
+        int sequence,
+        String group,
+        int status) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.LEAVE);
+        self.setSequence (sequence);
+        self.setGroup (group);
+        self.setStatus (status);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the PING to the socket in one step
+
+    public static void sendPing (
+        Socket output,
+        int sequence) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.PING);
+        self.setSequence (sequence);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the PING_OK to the socket in one step
+
+    public static void sendPing_Ok (
+        Socket output,
+        int sequence) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.PING_OK);
+        self.setSequence (sequence);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the OFFER to the socket in one step
+
+    public static void sendOffer (
+        Socket output,
+        int sequence,
+        String group,
+        String name,
+        long filesize,
+        ZFrame chunks) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.OFFER);
+        self.setSequence (sequence);
+        self.setGroup (group);
+        self.setName (name);
+        self.setFilesize (filesize);
+        self.setChunks (chunks.duplicate ());
+        self.send (output); 
+    }
 
-    public static void sendShout (
+//  --------------------------------------------------------------------------
+//  Send the HAVE to the socket in one step
+
+    public static void sendHave (
+        Socket output,
+        int sequence,
+        String name,
+        long index) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.HAVE);
+        self.setSequence (sequence);
+        self.setName (name);
+        self.setIndex (index);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the FETCH to the socket in one step
+
+    public static void sendFetch (
+        Socket output,
+        int sequence,
+        String name,
+        long index) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.FETCH);
+        self.setSequence (sequence);
+        self.setName (name);
+        self.setIndex (index);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the CHUNK to the socket in one step
+
+    public static void sendChunk (
+        Socket output,
+        int sequence,
+        String name,
+        long index,
+        ZFrame content) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.CHUNK);
+        self.setSequence (sequence);
+        self.setName (name);
+        self.setIndex (index);
+        self.setContent (content.duplicate ());
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the COMPRESSED to the socket in one step
+
+    public static void sendCompressed (
         Socket output,
         int sequence,
         String group,
+        int encoding,
+        long rawsize,
         ZFrame content) 
     {
-        ZreMsg self = new ZreMsg (ZreMsg.SHOUT);
+        ZreMsg self = new ZreMsg (ZreMsg.COMPRESSED);
         self.setSequence (sequence);
         self.setGroup (group);
+        self.setEncoding (encoding);
+        self.setRawsize (rawsize);
         self.setContent (content.duplicate ());
         self.send (output); 
     }
 
 //  --------------------------------------------------------------------------
-//  Send the JOIN to the socket in one step
+//  Send the BATCH to the socket in one step
 
-    public static void sendJoin (
+    public static void sendBatch (
+        Socket output,
+        int sequence,
+        ZFrame content) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.BATCH);
+        self.setSequence (sequence);
+        self.setContent (content.duplicate ());
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the BIND to the socket in one step
+
+    public static void sendBind (
         Socket output,
         int sequence,
         String group,
-        int status) 
+        int groupid) 
     {
-        ZreMsg self = new ZreMsg (ZreMsg.JOIN);
+        ZreMsg self = new ZreMsg (ZreMsg.BIND);
         self.setSequence (sequence);
         self.setGroup (group);
+        self.setGroupid (groupid);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the SHOUT_ID to the socket in one step
+
+    public static void sendShout_Id (
+        Socket output,
+        int sequence,
+        int groupid,
+        ZFrame content) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.SHOUT_ID);
+        self.setSequence (sequence);
+        self.setGroupid (groupid);
+        self.setContent (content.duplicate ());
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the GET_GROUPS to the socket in one step
+
+    public static void sendGet_Groups (
+        Socket output,
+        int sequence) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.GET_GROUPS);
+        self.setSequence (sequence);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the GROUPS to the socket in one step
+
+    public static void sendGroups (
+        Socket output,
+        int sequence,
+        int status,
+        ZFrame content) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.GROUPS);
+        self.setSequence (sequence);
         self.setStatus (status);
+        self.setContent (content.duplicate ());
         self.send (output); 
     }
 
 //  --------------------------------------------------------------------------
-//  Send the LEAVE to the socket in one step
+//  Send the JOIN_MANY to the socket in one step
 
-    public static void sendLeave (
+    public static void sendJoin_Many (
+        Socket output,
+        int sequence,
+        int status,
+        ZFrame content) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.JOIN_MANY);
+        self.setSequence (sequence);
+        self.setStatus (status);
+        self.setContent (content.duplicate ());
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the LEAVE_MANY to the socket in one step
+
+    public static void sendLeave_Many (
+        Socket output,
+        int sequence,
+        int status,
+        ZFrame content) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.LEAVE_MANY);
+        self.setSequence (sequence);
+        self.setStatus (status);
+        self.setContent (content.duplicate ());
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the REQUEST to the socket in one step
+
+    public static void sendRequest (
         Socket output,
         int sequence,
         String group,
-        int status) 
+        long correlation,
+        ZFrame content) 
     {
-        ZreMsg self = new ZreMsg (ZreMsg.LEAVE);
+        ZreMsg self = new ZreMsg (ZreMsg.REQUEST);
         self.setSequence (sequence);
         self.setGroup (group);
-        self.setStatus (status);
+        self.setCorrelation (correlation);
+        self.setContent (content.duplicate ());
         self.send (output); 
     }
 
 //  --------------------------------------------------------------------------
-//  Send the PING to the socket in one step
+//  Send the REPLY to the socket in one step
 
-    public static void sendPing (
+    public static void sendReply (
         Socket output,
-        int sequence) 
+        int sequence,
+        long correlation,
+        ZFrame content) 
     {
-        ZreMsg self = new ZreMsg (ZreMsg.PING);
+        ZreMsg self = new ZreMsg (ZreMsg.REPLY);
         self.setSequence (sequence);
+        self.setCorrelation (correlation);
+        self.setContent (content.duplicate ());
         self.send (output); 
     }
 
 //  --------------------------------------------------------------------------
-//  Send the PING_OK to the socket in one step
+//  Send the CREDIT to the socket in one step
 
-    public static void sendPing_Ok (
+    public static void sendCredit (
         Socket output,
-        int sequence) 
+        int sequence,
+        String group,
+        long credit) 
     {
-        ZreMsg self = new ZreMsg (ZreMsg.PING_OK);
+        ZreMsg self = new ZreMsg (ZreMsg.CREDIT);
+        self.setSequence (sequence);
+        self.setGroup (group);
+        self.setCredit (credit);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the JOB to the socket in one step
+
+    public static void sendJob (
+        Socket output,
+        int sequence,
+        String group,
+        ZFrame content) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.JOB);
+        self.setSequence (sequence);
+        self.setGroup (group);
+        self.setContent (content.duplicate ());
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the TRACE to the socket in one step
+
+    public static void sendTrace (
+        Socket output,
+        int sequence,
+        long api,
+        long dequeue,
+        long sent) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.TRACE);
+        self.setSequence (sequence);
+        self.setApi (api);
+        self.setDequeue (dequeue);
+        self.setSent (sent);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the RELAY to the socket in one step
+
+    public static void sendRelay (
+        Socket output,
+        int sequence,
+        String group,
+        String origin,
+        String limit,
+        int fanout,
+        ZFrame content) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.RELAY);
+        self.setSequence (sequence);
+        self.setGroup (group);
+        self.setOrigin (origin);
+        self.setLimit (limit);
+        self.setFanout (fanout);
+        self.setContent (content.duplicate ());
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the TIMED_PING to the socket in one step
+
+    public static void sendTimed_Ping (
+        Socket output,
+        int sequence,
+        long stamp) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.TIMED_PING);
+        self.setSequence (sequence);
+        self.setStamp (stamp);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the TIMED_PING_OK to the socket in one step
+
+    public static void sendTimed_Ping_Ok (
+        Socket output,
+        int sequence,
+        long stamp,
+        long received,
+        long sent) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.TIMED_PING_OK);
+        self.setSequence (sequence);
+        self.setStamp (stamp);
+        self.setReceived (received);
+        self.setSent (sent);
+        self.send (output); 
+    }
+
+//  --------------------------------------------------------------------------
+//  Send the LISTEN to the socket in one step
+
+    public static void sendListen (
+        Socket output,
+        int sequence,
+        String group,
+        int listening) 
+    {
+        ZreMsg self = new ZreMsg (ZreMsg.LISTEN);
         self.setSequence (sequence);
+        self.setGroup (group);
+        self.setListening (listening);
         self.send (output); 
     }
 
@@ -681,36 +2131,148 @@ public class ZreMsg
         switch (this.id) {
         case HELLO:
             copy.sequence = this.sequence;
-            copy.ipaddress = this.ipaddress;
-            copy.mailbox = this.mailbox;
-            copy.groups = new ArrayList <String> (this.groups);
+            copy.ipaddress = this.ipaddress;
+            copy.mailbox = this.mailbox;
+            copy.groups = new ArrayList <String> (this.groups);
+            copy.status = this.status;
+            copy.headers = new HashMap <String, String> (this.headers);
+        break;
+        case WHISPER:
+            copy.sequence = this.sequence;
+            copy.content = this.content.duplicate ();
+        break;
+        case SHOUT:
+            copy.sequence = this.sequence;
+            copy.group = this.group;
+            copy.content = this.content.duplicate ();
+        break;
+        case JOIN:
+            copy.sequence = this.sequence;
+            copy.group = this.group;
+            copy.status = this.status;
+        break;
+        case LEAVE:
+            copy.sequence = this.sequence;
+            copy.group = this.group;
+            copy.status = this.status;
+        break;
+        case PING:
+            copy.sequence = this.sequence;
+        break;
+        case PING_OK:
+            copy.sequence = this.sequence;
+        break;
+        case OFFER:
+            copy.sequence = this.sequence;
+            copy.group = this.group;
+            copy.name = this.name;
+            copy.filesize = this.filesize;
+            copy.chunks = this.chunks.duplicate ();
+        break;
+        case HAVE:
+            copy.sequence = this.sequence;
+            copy.name = this.name;
+            copy.index = this.index;
+        break;
+        case FETCH:
+            copy.sequence = this.sequence;
+            copy.name = this.name;
+            copy.index = this.index;
+        break;
+        case CHUNK:
+            copy.sequence = this.sequence;
+            copy.name = this.name;
+            copy.index = this.index;
+            copy.content = this.content.duplicate ();
+        break;
+        case COMPRESSED:
+            copy.sequence = this.sequence;
+            copy.group = this.group;
+            copy.encoding = this.encoding;
+            copy.rawsize = this.rawsize;
+            copy.content = this.content.duplicate ();
+        break;
+        case BATCH:
+            copy.sequence = this.sequence;
+            copy.content = this.content.duplicate ();
+        break;
+        case BIND:
+            copy.sequence = this.sequence;
+            copy.group = this.group;
+            copy.groupid = this.groupid;
+        break;
+        case SHOUT_ID:
+            copy.sequence = this.sequence;
+            copy.groupid = this.groupid;
+            copy.content = this.content.duplicate ();
+        break;
+        case GET_GROUPS:
+            copy.sequence = this.sequence;
+        break;
+        case GROUPS:
+            copy.sequence = this.sequence;
+            copy.status = this.status;
+            copy.content = this.content.duplicate ();
+        break;
+        case JOIN_MANY:
+            copy.sequence = this.sequence;
             copy.status = this.status;
-            copy.headers = new HashMap <String, String> (this.headers);
+            copy.content = this.content.duplicate ();
         break;
-        case WHISPER:
+        case LEAVE_MANY:
             copy.sequence = this.sequence;
+            copy.status = this.status;
             copy.content = this.content.duplicate ();
         break;
-        case SHOUT:
+        case REQUEST:
             copy.sequence = this.sequence;
             copy.group = this.group;
+            copy.correlation = this.correlation;
             copy.content = this.content.duplicate ();
         break;
-        case JOIN:
+        case REPLY:
+            copy.sequence = this.sequence;
+            copy.correlation = this.correlation;
+            copy.content = this.content.duplicate ();
+        break;
+        case CREDIT:
             copy.sequence = this.sequence;
             copy.group = this.group;
-            copy.status = this.status;
+            copy.credit = this.credit;
         break;
-        case LEAVE:
+        case JOB:
             copy.sequence = this.sequence;
             copy.group = this.group;
-            copy.status = this.status;
+            copy.content = this.content.duplicate ();
         break;
-        case PING:
+        case TRACE:
             copy.sequence = this.sequence;
+            copy.api = this.api;
+            copy.dequeue = this.dequeue;
+            copy.sent = this.sent;
         break;
-        case PING_OK:
+        case RELAY:
+            copy.sequence = this.sequence;
+            copy.group = this.group;
+            copy.origin = this.origin;
+            copy.limit = this.limit;
+            copy.fanout = this.fanout;
+            copy.content = this.content.duplicate ();
+        break;
+        case TIMED_PING:
+            copy.sequence = this.sequence;
+            copy.stamp = this.stamp;
+        break;
+        case TIMED_PING_OK:
+            copy.sequence = this.sequence;
+            copy.stamp = this.stamp;
+            copy.received = this.received;
+            copy.sent = this.sent;
+        break;
+        case LISTEN:
             copy.sequence = this.sequence;
+            copy.group = this.group;
+            copy.listening = this.listening;
         break;
         }
         return copy;
@@ -743,19 +2305,292 @@ public class ZreMsg
                     System.out.printf (" '%s'", value);
                 }
             }
-            System.out.printf (" }\n");
-            System.out.printf ("    status=%d\n", (long)status);
-            System.out.printf ("    headers={\n");
-            if (headers != null) {
-                for (Map.Entry <String, String> entry : headers.entrySet ())
-                    headersDump (entry, this);
-            }
+            System.out.printf (" }\n");
+            System.out.printf ("    status=%d\n", (long)status);
+            System.out.printf ("    headers={\n");
+            if (headers != null) {
+                for (Map.Entry <String, String> entry : headers.entrySet ())
+                    headersDump (entry, this);
+            }
+            System.out.printf ("    }\n");
+            break;
+            
+        case WHISPER:
+            System.out.println ("WHISPER:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            System.out.printf ("    content={\n");
+            if (content != null) {
+                int size = content.size ();
+                byte [] data = content.getData ();
+                System.out.printf ("        size=%d\n", content.size ());
+                if (size > 32)
+                    size = 32;
+                int contentIndex;
+                for (contentIndex = 0; contentIndex < size; contentIndex++) {
+                    if (contentIndex != 0 && (contentIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [contentIndex]);
+                }
+            }
+            System.out.printf ("    }\n");
+            break;
+            
+        case SHOUT:
+            System.out.println ("SHOUT:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            if (group != null)
+                System.out.printf ("    group='%s'\n", group);
+            else
+                System.out.printf ("    group=\n");
+            System.out.printf ("    content={\n");
+            if (content != null) {
+                int size = content.size ();
+                byte [] data = content.getData ();
+                System.out.printf ("        size=%d\n", content.size ());
+                if (size > 32)
+                    size = 32;
+                int contentIndex;
+                for (contentIndex = 0; contentIndex < size; contentIndex++) {
+                    if (contentIndex != 0 && (contentIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [contentIndex]);
+                }
+            }
+            System.out.printf ("    }\n");
+            break;
+            
+        case JOIN:
+            System.out.println ("JOIN:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            if (group != null)
+                System.out.printf ("    group='%s'\n", group);
+            else
+                System.out.printf ("    group=\n");
+            System.out.printf ("    status=%d\n", (long)status);
+            break;
+            
+        case LEAVE:
+            System.out.println ("LEAVE:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            if (group != null)
+                System.out.printf ("    group='%s'\n", group);
+            else
+                System.out.printf ("    group=\n");
+            System.out.printf ("    status=%d\n", (long)status);
+            break;
+            
+        case PING:
+            System.out.println ("PING:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            break;
+            
+        case PING_OK:
+            System.out.println ("PING_OK:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            break;
+            
+        case OFFER:
+            System.out.println ("OFFER:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            if (group != null)
+                System.out.printf ("    group='%s'\n", group);
+            else
+                System.out.printf ("    group=\n");
+            if (name != null)
+                System.out.printf ("    name='%s'\n", name);
+            else
+                System.out.printf ("    name=\n");
+            System.out.printf ("    filesize=%d\n", (long)filesize);
+            System.out.printf ("    chunks={\n");
+            if (chunks != null) {
+                int size = chunks.size ();
+                byte [] data = chunks.getData ();
+                System.out.printf ("        size=%d\n", chunks.size ());
+                if (size > 32)
+                    size = 32;
+                int chunksIndex;
+                for (chunksIndex = 0; chunksIndex < size; chunksIndex++) {
+                    if (chunksIndex != 0 && (chunksIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [chunksIndex]);
+                }
+            }
+            System.out.printf ("    }\n");
+            break;
+            
+        case HAVE:
+            System.out.println ("HAVE:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            if (name != null)
+                System.out.printf ("    name='%s'\n", name);
+            else
+                System.out.printf ("    name=\n");
+            System.out.printf ("    index=%d\n", (long)index);
+            break;
+            
+        case FETCH:
+            System.out.println ("FETCH:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            if (name != null)
+                System.out.printf ("    name='%s'\n", name);
+            else
+                System.out.printf ("    name=\n");
+            System.out.printf ("    index=%d\n", (long)index);
+            break;
+            
+        case CHUNK:
+            System.out.println ("CHUNK:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            if (name != null)
+                System.out.printf ("    name='%s'\n", name);
+            else
+                System.out.printf ("    name=\n");
+            System.out.printf ("    index=%d\n", (long)index);
+            System.out.printf ("    content={\n");
+            if (content != null) {
+                int size = content.size ();
+                byte [] data = content.getData ();
+                System.out.printf ("        size=%d\n", content.size ());
+                if (size > 32)
+                    size = 32;
+                int contentIndex;
+                for (contentIndex = 0; contentIndex < size; contentIndex++) {
+                    if (contentIndex != 0 && (contentIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [contentIndex]);
+                }
+            }
+            System.out.printf ("    }\n");
+            break;
+            
+        case COMPRESSED:
+            System.out.println ("COMPRESSED:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            if (group != null)
+                System.out.printf ("    group='%s'\n", group);
+            else
+                System.out.printf ("    group=\n");
+            System.out.printf ("    encoding=%d\n", (long)encoding);
+            System.out.printf ("    rawsize=%d\n", (long)rawsize);
+            System.out.printf ("    content={\n");
+            if (content != null) {
+                int size = content.size ();
+                byte [] data = content.getData ();
+                System.out.printf ("        size=%d\n", content.size ());
+                if (size > 32)
+                    size = 32;
+                int contentIndex;
+                for (contentIndex = 0; contentIndex < size; contentIndex++) {
+                    if (contentIndex != 0 && (contentIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [contentIndex]);
+                }
+            }
+            System.out.printf ("    }\n");
+            break;
+            
+        case BATCH:
+            System.out.println ("BATCH:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            System.out.printf ("    content={\n");
+            if (content != null) {
+                int size = content.size ();
+                byte [] data = content.getData ();
+                System.out.printf ("        size=%d\n", content.size ());
+                if (size > 32)
+                    size = 32;
+                int contentIndex;
+                for (contentIndex = 0; contentIndex < size; contentIndex++) {
+                    if (contentIndex != 0 && (contentIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [contentIndex]);
+                }
+            }
+            System.out.printf ("    }\n");
+            break;
+            
+        case BIND:
+            System.out.println ("BIND:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            if (group != null)
+                System.out.printf ("    group='%s'\n", group);
+            else
+                System.out.printf ("    group=\n");
+            System.out.printf ("    groupid=%d\n", (long)groupid);
+            break;
+            
+        case SHOUT_ID:
+            System.out.println ("SHOUT_ID:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            System.out.printf ("    groupid=%d\n", (long)groupid);
+            System.out.printf ("    content={\n");
+            if (content != null) {
+                int size = content.size ();
+                byte [] data = content.getData ();
+                System.out.printf ("        size=%d\n", content.size ());
+                if (size > 32)
+                    size = 32;
+                int contentIndex;
+                for (contentIndex = 0; contentIndex < size; contentIndex++) {
+                    if (contentIndex != 0 && (contentIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [contentIndex]);
+                }
+            }
+            System.out.printf ("    }\n");
+            break;
+            
+        case GET_GROUPS:
+            System.out.println ("GET_GROUPS:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            break;
+            
+        case GROUPS:
+            System.out.println ("GROUPS:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            System.out.printf ("    status=%d\n", (long)status);
+            System.out.printf ("    content={\n");
+            if (content != null) {
+                int size = content.size ();
+                byte [] data = content.getData ();
+                System.out.printf ("        size=%d\n", content.size ());
+                if (size > 32)
+                    size = 32;
+                int contentIndex;
+                for (contentIndex = 0; contentIndex < size; contentIndex++) {
+                    if (contentIndex != 0 && (contentIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [contentIndex]);
+                }
+            }
+            System.out.printf ("    }\n");
+            break;
+            
+        case JOIN_MANY:
+            System.out.println ("JOIN_MANY:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            System.out.printf ("    status=%d\n", (long)status);
+            System.out.printf ("    content={\n");
+            if (content != null) {
+                int size = content.size ();
+                byte [] data = content.getData ();
+                System.out.printf ("        size=%d\n", content.size ());
+                if (size > 32)
+                    size = 32;
+                int contentIndex;
+                for (contentIndex = 0; contentIndex < size; contentIndex++) {
+                    if (contentIndex != 0 && (contentIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [contentIndex]);
+                }
+            }
             System.out.printf ("    }\n");
             break;
             
-        case WHISPER:
-            System.out.println ("WHISPER:");
+        case LEAVE_MANY:
+            System.out.println ("LEAVE_MANY:");
             System.out.printf ("    sequence=%d\n", (long)sequence);
+            System.out.printf ("    status=%d\n", (long)status);
             System.out.printf ("    content={\n");
             if (content != null) {
                 int size = content.size ();
@@ -773,13 +2608,14 @@ public class ZreMsg
             System.out.printf ("    }\n");
             break;
             
-        case SHOUT:
-            System.out.println ("SHOUT:");
+        case REQUEST:
+            System.out.println ("REQUEST:");
             System.out.printf ("    sequence=%d\n", (long)sequence);
             if (group != null)
                 System.out.printf ("    group='%s'\n", group);
             else
                 System.out.printf ("    group=\n");
+            System.out.printf ("    correlation=%d\n", (long)correlation);
             System.out.printf ("    content={\n");
             if (content != null) {
                 int size = content.size ();
@@ -797,34 +2633,124 @@ public class ZreMsg
             System.out.printf ("    }\n");
             break;
             
-        case JOIN:
-            System.out.println ("JOIN:");
+        case REPLY:
+            System.out.println ("REPLY:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            System.out.printf ("    correlation=%d\n", (long)correlation);
+            System.out.printf ("    content={\n");
+            if (content != null) {
+                int size = content.size ();
+                byte [] data = content.getData ();
+                System.out.printf ("        size=%d\n", content.size ());
+                if (size > 32)
+                    size = 32;
+                int contentIndex;
+                for (contentIndex = 0; contentIndex < size; contentIndex++) {
+                    if (contentIndex != 0 && (contentIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [contentIndex]);
+                }
+            }
+            System.out.printf ("    }\n");
+            break;
+            
+        case CREDIT:
+            System.out.println ("CREDIT:");
             System.out.printf ("    sequence=%d\n", (long)sequence);
             if (group != null)
                 System.out.printf ("    group='%s'\n", group);
             else
                 System.out.printf ("    group=\n");
-            System.out.printf ("    status=%d\n", (long)status);
+            System.out.printf ("    credit=%d\n", (long)credit);
             break;
             
-        case LEAVE:
-            System.out.println ("LEAVE:");
+        case JOB:
+            System.out.println ("JOB:");
             System.out.printf ("    sequence=%d\n", (long)sequence);
             if (group != null)
                 System.out.printf ("    group='%s'\n", group);
             else
                 System.out.printf ("    group=\n");
-            System.out.printf ("    status=%d\n", (long)status);
+            System.out.printf ("    content={\n");
+            if (content != null) {
+                int size = content.size ();
+                byte [] data = content.getData ();
+                System.out.printf ("        size=%d\n", content.size ());
+                if (size > 32)
+                    size = 32;
+                int contentIndex;
+                for (contentIndex = 0; contentIndex < size; contentIndex++) {
+                    if (contentIndex != 0 && (contentIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [contentIndex]);
+                }
+            }
+            System.out.printf ("    }\n");
             break;
             
-        case PING:
-            System.out.println ("PING:");
+        case TRACE:
+            System.out.println ("TRACE:");
             System.out.printf ("    sequence=%d\n", (long)sequence);
+            System.out.printf ("    api=%d\n", (long)api);
+            System.out.printf ("    dequeue=%d\n", (long)dequeue);
+            System.out.printf ("    sent=%d\n", (long)sent);
             break;
             
-        case PING_OK:
-            System.out.println ("PING_OK:");
+        case RELAY:
+            System.out.println ("RELAY:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            if (group != null)
+                System.out.printf ("    group='%s'\n", group);
+            else
+                System.out.printf ("    group=\n");
+            if (origin != null)
+                System.out.printf ("    origin='%s'\n", origin);
+            else
+                System.out.printf ("    origin=\n");
+            if (limit != null)
+                System.out.printf ("    limit='%s'\n", limit);
+            else
+                System.out.printf ("    limit=\n");
+            System.out.printf ("    fanout=%d\n", (long)fanout);
+            System.out.printf ("    content={\n");
+            if (content != null) {
+                int size = content.size ();
+                byte [] data = content.getData ();
+                System.out.printf ("        size=%d\n", content.size ());
+                if (size > 32)
+                    size = 32;
+                int contentIndex;
+                for (contentIndex = 0; contentIndex < size; contentIndex++) {
+                    if (contentIndex != 0 && (contentIndex % 4 == 0))
+                        System.out.printf ("-");
+                    System.out.printf ("%02X", data [contentIndex]);
+                }
+            }
+            System.out.printf ("    }\n");
+            break;
+            
+        case TIMED_PING:
+            System.out.println ("TIMED_PING:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            System.out.printf ("    stamp=%d\n", (long)stamp);
+            break;
+            
+        case TIMED_PING_OK:
+            System.out.println ("TIMED_PING_OK:");
             System.out.printf ("    sequence=%d\n", (long)sequence);
+            System.out.printf ("    stamp=%d\n", (long)stamp);
+            System.out.printf ("    received=%d\n", (long)received);
+            System.out.printf ("    sent=%d\n", (long)sent);
+            break;
+            
+        case LISTEN:
+            System.out.println ("LISTEN:");
+            System.out.printf ("    sequence=%d\n", (long)sequence);
+            if (group != null)
+                System.out.printf ("    group='%s'\n", group);
+            else
+                System.out.printf ("    group=\n");
+            System.out.printf ("    listening=%d\n", (long)listening);
             break;
             
         }
@@ -982,7 +2908,6 @@ public class ZreMsg
         if (headers == null)
             headers = new HashMap <String, String> ();
         headers.put (key, string);
-        headersBytes += key.length () + 1 + string.length ();
     }
 
     public void setHeaders (Map <String, String> value)
@@ -1025,5 +2950,262 @@ public class ZreMsg
     }
 
 
+    //  --------------------------------------------------------------------------
+    //  Get/set the name field
+
+    public String name ()
+    {
+        return name;
+    }
+
+    public void setName (String format, Object ... args)
+    {
+        //  Format into newly allocated string
+        name = String.format (format, args);
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the filesize field
+
+    public long filesize ()
+    {
+        return filesize;
+    }
+
+    public void setFilesize (long filesize)
+    {
+        this.filesize = filesize;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the chunks field
+
+    public ZFrame chunks ()
+    {
+        return chunks;
+    }
+
+    //  Takes ownership of supplied frame
+    public void setChunks (ZFrame frame)
+    {
+        if (chunks != null)
+            chunks.destroy ();
+        chunks = frame;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the index field
+
+    public long index ()
+    {
+        return index;
+    }
+
+    public void setIndex (long index)
+    {
+        this.index = index;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the encoding field
+
+    public int encoding ()
+    {
+        return encoding;
+    }
+
+    public void setEncoding (int encoding)
+    {
+        this.encoding = encoding;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the rawsize field
+
+    public long rawsize ()
+    {
+        return rawsize;
+    }
+
+    public void setRawsize (long rawsize)
+    {
+        this.rawsize = rawsize;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the groupid field
+
+    public int groupid ()
+    {
+        return groupid;
+    }
+
+    public void setGroupid (int groupid)
+    {
+        this.groupid = groupid;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the correlation field
+
+    public long correlation ()
+    {
+        return correlation;
+    }
+
+    public void setCorrelation (long correlation)
+    {
+        this.correlation = correlation;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the credit field
+
+    public long credit ()
+    {
+        return credit;
+    }
+
+    public void setCredit (long credit)
+    {
+        this.credit = credit;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the api field
+
+    public long api ()
+    {
+        return api;
+    }
+
+    public void setApi (long api)
+    {
+        this.api = api;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the dequeue field
+
+    public long dequeue ()
+    {
+        return dequeue;
+    }
+
+    public void setDequeue (long dequeue)
+    {
+        this.dequeue = dequeue;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the sent field
+
+    public long sent ()
+    {
+        return sent;
+    }
+
+    public void setSent (long sent)
+    {
+        this.sent = sent;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the origin field
+
+    public String origin ()
+    {
+        return origin;
+    }
+
+    public void setOrigin (String format, Object ... args)
+    {
+        //  Format into newly allocated string
+        origin = String.format (format, args);
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the limit field
+
+    public String limit ()
+    {
+        return limit;
+    }
+
+    public void setLimit (String format, Object ... args)
+    {
+        //  Format into newly allocated string
+        limit = String.format (format, args);
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the fanout field
+
+    public int fanout ()
+    {
+        return fanout;
+    }
+
+    public void setFanout (int fanout)
+    {
+        this.fanout = fanout;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the stamp field
+
+    public long stamp ()
+    {
+        return stamp;
+    }
+
+    public void setStamp (long stamp)
+    {
+        this.stamp = stamp;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the received field
+
+    public long received ()
+    {
+        return received;
+    }
+
+    public void setReceived (long received)
+    {
+        this.received = received;
+    }
+
+
+    //  --------------------------------------------------------------------------
+    //  Get/set the listening field
+
+    public int listening ()
+    {
+        return listening;
+    }
+
+    public void setListening (int listening)
+    {
+        this.listening = listening;
+    }
+
+
 }
 
@@ -0,0 +1,420 @@
+/*  =========================================================================
+    ZreMulticast - UDP multicast for small shouts
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+package org.zyre;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.zeromq.ZMsg;
+
+//  Sends small shouts to a group as one UDP multicast packet, instead of
+//  a copy per member over TCP. Each group maps to an address in the
+//  organization-local scope 239.192/16, on one port; we listen on that
+//  port, joined to the addresses of our groups. Several groups may share
+//  an address, so packets carry the group name, and we drop those for
+//  groups we don't listen to before we look at their numbers.
+//
+//  Each sender numbers its packets per group and keeps the last RING_SIZE
+//  of each group for repair. We send from a second, unicast socket;
+//  receivers that see a gap in a sender's numbers for a group send a NAK
+//  to where its packets come from, and the sender sends them again. We ask again a few times,
+//  then give up: multicast is for shouts that may get lost, and we
+//  deliver what we have at once rather than wait for gaps to fill.
+//
+//  Packets are:
+//
+//      DATA    'Z' 'M' 1 sender sequence group content
+//      NAK     'Z' 'M' 2 sender group sequence count
+//
+//  where sender and group are strings with a 1-byte length, sequence is
+//  4 bytes and count 2. A NAK's sender is the node that should repair.
+
+public class ZreMulticast
+{
+    public static final String HEADER = "X-ZRE-MULTICAST";  //  Port peers listen on
+    public static final int MTU = 1400;         //  Largest content we multicast
+    public static final int RING_SIZE = 1024;   //  Packets we keep for repair
+    private static final int NAK_TRIES = 3;     //  Times we ask for a packet
+    private static final int NAK_MAX = 256;     //  Packets one NAK asks for
+    private static final byte DATA = 1;
+    private static final byte NAK = 2;
+
+    private final String identity;              //  Our identity, as sender
+    private final int port;                     //  Port we listen on
+    private final NetworkInterface netint;      //  Interface we multicast on
+    private final DatagramChannel listener;     //  Gets DATA for our groups
+    private final DatagramChannel sender;       //  Sends DATA, gets NAKs
+    private final Map <InetAddress, MembershipKey> joined;
+    private final Map <InetAddress, Integer> joins;     //  Groups per address
+    private final Set <String> groups;          //  Groups we listen to
+    private final Map <String, Outbox> outboxes;        //  What we sent, by group
+    private final Map <String, Stream> streams; //  What we got, by sender and group
+    private final ByteBuffer buffer;
+    private long repaired;                      //  Packets we sent again
+
+    //  What we sent to one group
+    private static class Outbox
+    {
+        private final byte [][] ring;           //  Packets we sent, by sequence
+        private int sequence;                   //  Last sequence we sent
+
+        private Outbox ()
+        {
+            ring = new byte [RING_SIZE][];
+        }
+    }
+
+    //  What we got from one sender for one group
+    private static class Stream
+    {
+        private final String source;            //  Sender identity
+        private final String group;
+        private final SocketAddress from;       //  Where to send NAKs
+        private int highest;                    //  Highest sequence we got
+        private final TreeMap <Integer, Integer> missing;   //  Tries, by sequence
+
+        private Stream (String source, String group, SocketAddress from, int highest)
+        {
+            this.source = source;
+            this.group = group;
+            this.from = from;
+            this.highest = highest;
+            missing = new TreeMap <Integer, Integer> ();
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Constructor; we multicast on the interface that has address host
+    public ZreMulticast (String identity, int port, String host)
+    {
+        this.identity = identity;
+        this.port = port;
+        joined = new HashMap <InetAddress, MembershipKey> ();
+        joins = new HashMap <InetAddress, Integer> ();
+        groups = new HashSet <String> ();
+        outboxes = new HashMap <String, Outbox> ();
+        streams = new HashMap <String, Stream> ();
+        buffer = ByteBuffer.allocate (64 * 1024);
+        try {
+            InetAddress address = InetAddress.getByName (host);
+            netint = NetworkInterface.getByInetAddress (address);
+            if (netint == null)
+                throw new IOException ("No interface has address " + host);
+
+            //  Allow every node on this host to listen on the port
+            listener = DatagramChannel.open (StandardProtocolFamily.INET);
+            listener.setOption (StandardSocketOptions.SO_REUSEADDR, true);
+            listener.bind (new InetSocketAddress (port));
+            listener.configureBlocking (false);
+
+            sender = DatagramChannel.open (StandardProtocolFamily.INET);
+            sender.setOption (StandardSocketOptions.IP_MULTICAST_IF, netint);
+            sender.setOption (StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            sender.bind (new InetSocketAddress (address, 0));
+            sender.configureBlocking (false);
+        } catch (IOException e) {
+            throw new RuntimeException (e);
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Destructor
+    public void destroy ()
+    {
+        try {
+            listener.close ();
+            sender.close ();
+        } catch (IOException e) {
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return socket that gets DATA, for polling
+    public DatagramChannel handle ()
+    {
+        return listener;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return socket that gets NAKs, for polling
+    public DatagramChannel repairHandle ()
+    {
+        return sender;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return port we listen on
+    public int port ()
+    {
+        return port;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return number of packets we sent again on request
+    public long repaired ()
+    {
+        return repaired;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return multicast address of group
+    public static InetAddress address (String group)
+    {
+        int hash = group.hashCode ();
+        byte [] address = {(byte) 239, (byte) 192, (byte) (hash >> 8), (byte) hash};
+        try {
+            return InetAddress.getByAddress (address);
+        } catch (IOException e) {
+            throw new IllegalStateException (e);
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Listen for shouts to group
+    public void join (String group) throws IOException
+    {
+        if (groups.contains (group))
+            return;
+        InetAddress address = address (group);
+        Integer count = joins.get (address);
+        if (count == null)
+            joined.put (address, listener.join (address, netint));
+        joins.put (address, count == null ? 1 : count + 1);
+        groups.add (group);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Stop listening for shouts to group
+    public void leave (String group)
+    {
+        if (!groups.remove (group))
+            return;
+        InetAddress address = address (group);
+        int count = joins.get (address);
+        if (count > 1)
+            joins.put (address, count - 1);
+        else {
+            joins.remove (address);
+            joined.remove (address).drop ();
+        }
+        //  Forget what we got for the group, so we stop asking for it
+        Iterator <Stream> it = streams.values ().iterator ();
+        while (it.hasNext ())
+            if (it.next ().group.equals (group))
+                it.remove ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send content to group in one packet. Returns false if it's too
+    //  large for that; it's then up to the caller to send it another way.
+    public boolean send (String group, byte [] content) throws IOException
+    {
+        if (content.length > MTU)
+            return false;
+        Outbox outbox = outboxes.get (group);
+        if (outbox == null) {
+            outbox = new Outbox ();
+            outboxes.put (group, outbox);
+        }
+        byte [] name = group.getBytes (StandardCharsets.UTF_8);
+        int number = ++outbox.sequence;
+        ByteBuffer packet = header (DATA, number, 1 + name.length + content.length);
+        packet.put ((byte) name.length);
+        packet.put (name);
+        packet.put (content);
+        outbox.ring [number & (RING_SIZE - 1)] = packet.array ();
+        packet.flip ();
+        sender.send (packet, new InetSocketAddress (address (group), port));
+        return true;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Receive next shout, as sender identity, group and content frames,
+    //  or null if there's none waiting. Answers NAKs as it goes.
+    public ZMsg recv () throws IOException
+    {
+        while (true) {
+            buffer.clear ();
+            SocketAddress from = sender.receive (buffer);
+            try {
+                if (from != null) {
+                    buffer.flip ();
+                    nak (buffer);
+                    continue;
+                }
+                from = listener.receive (buffer);
+                if (from == null)
+                    return null;
+                buffer.flip ();
+                ZMsg msg = data (buffer, from);
+                if (msg != null)
+                    return msg;
+            } catch (BufferUnderflowException e) {
+                //  Ignore packets that are cut short
+            }
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Ask senders again for packets we're still missing; call now and
+    //  then. We forget packets we asked for too often.
+    public void repair () throws IOException
+    {
+        for (Stream stream : streams.values ()) {
+            Iterator <Map.Entry <Integer, Integer>> it = stream.missing.entrySet ().iterator ();
+            while (it.hasNext ()) {
+                Map.Entry <Integer, Integer> gap = it.next ();
+                if (gap.getValue () >= NAK_TRIES)
+                    it.remove ();
+                else {
+                    gap.setValue (gap.getValue () + 1);
+                    sendNak (stream, gap.getKey (), 1);
+                }
+            }
+        }
+    }
+
+    //  Handle DATA packet; returns shout, or null if packet is not new
+    private ZMsg data (ByteBuffer packet, SocketAddress from) throws IOException
+    {
+        if (!signature (packet, DATA))
+            return null;
+        String source = string (packet);
+        int number = packet.getInt ();
+        String group = string (packet);
+        if (source.equals (identity))
+            return null;            //  Our own, looped back
+        if (!groups.contains (group))
+            return null;            //  Shares an address with ours
+
+        String key = source + "/" + group;
+        Stream stream = streams.get (key);
+        if (stream == null) {
+            stream = new Stream (source, group, from, number);
+            streams.put (key, stream);
+        }
+        else
+        if (number > stream.highest) {
+            //  Ask for what we missed, in one NAK
+            int first = Math.max (stream.highest + 1, number - NAK_MAX);
+            for (int gap = first; gap < number; gap++)
+                stream.missing.put (gap, 1);
+            while (stream.missing.size () > RING_SIZE)
+                stream.missing.pollFirstEntry ();
+            if (number > first)
+                sendNak (stream, first, number - first);
+            stream.highest = number;
+        }
+        else
+        if (stream.missing.remove (number) == null)
+            return null;            //  Duplicate
+
+        byte [] content = new byte [packet.remaining ()];
+        packet.get (content);
+        ZMsg msg = new ZMsg ();
+        msg.add (source);
+        msg.add (group);
+        msg.add (content);
+        return msg;
+    }
+
+    //  Handle NAK packet, sending again the packets we still have
+    private void nak (ByteBuffer packet) throws IOException
+    {
+        if (!signature (packet, NAK) || !string (packet).equals (identity))
+            return;
+        String group = string (packet);
+        int first = packet.getInt ();
+        int count = packet.getShort () & 0xffff;
+        Outbox outbox = outboxes.get (group);
+        if (outbox == null)
+            return;                 //  We never sent to that group
+        InetSocketAddress to = new InetSocketAddress (address (group), port);
+        for (int number = first; number < first + count; number++) {
+            if (number <= outbox.sequence - RING_SIZE || number > outbox.sequence)
+                continue;           //  Gone from ring, or never sent
+            byte [] data = outbox.ring [number & (RING_SIZE - 1)];
+            sender.send (ByteBuffer.wrap (data), to);
+            repaired++;
+        }
+    }
+
+    private void sendNak (Stream stream, int first, int count) throws IOException
+    {
+        byte [] name = stream.source.getBytes (StandardCharsets.UTF_8);
+        byte [] group = stream.group.getBytes (StandardCharsets.UTF_8);
+        ByteBuffer packet = ByteBuffer.allocate (3 + 1 + name.length + 1 + group.length + 4 + 2);
+        packet.put ((byte) 'Z').put ((byte) 'M').put (NAK);
+        packet.put ((byte) name.length).put (name);
+        packet.put ((byte) group.length).put (group);
+        packet.putInt (first);
+        packet.putShort ((short) count);
+        packet.flip ();
+        sender.send (packet, stream.from);
+    }
+
+    //  Start packet with signature, our identity and sequence, leaving
+    //  room for so many more bytes
+    private ByteBuffer header (byte type, int number, int more)
+    {
+        byte [] name = identity.getBytes (StandardCharsets.UTF_8);
+        ByteBuffer packet = ByteBuffer.allocate (3 + 1 + name.length + 4 + more);
+        packet.put ((byte) 'Z').put ((byte) 'M').put (type);
+        packet.put ((byte) name.length).put (name);
+        packet.putInt (number);
+        return packet;
+    }
+
+    private static boolean signature (ByteBuffer packet, byte type)
+    {
+        return packet.remaining () >= 4
+            && packet.get () == 'Z' && packet.get () == 'M' && packet.get () == type;
+    }
+
+    private static String string (ByteBuffer packet)
+    {
+        int size = packet.get () & 0xff;
+        byte [] bytes = new byte [size];
+        packet.get (bytes);
+        return new String (bytes, StandardCharsets.UTF_8);
+    }
+}
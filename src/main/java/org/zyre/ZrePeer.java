@@ -25,10 +25,20 @@
 */
 package org.zyre;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.zeromq.ZContext;
+import org.zeromq.ZFrame;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Socket;
 
@@ -36,19 +46,76 @@ public class ZrePeer
 {
     private static final int USHORT_MAX = 0xffff;
     private static final int UBYTE_MAX = 0xff;
+
+    //  Header announcing that we unpack BATCH commands
+    public static final String BATCH_HEADER = "X-ZRE-BATCH";
+    //  Header announcing that we resolve SHOUT_ID commands
+    public static final String GROUPS_HEADER = "X-ZRE-GROUP-IDS";
+    //  Header announcing port of our control lane for heartbeats
+    public static final String CONTROL_HEADER = "X-ZRE-CONTROL";
+    //  Header announcing that we answer TIMED-PING commands
+    public static final String CLOCK_HEADER = "X-ZRE-CLOCK";
+
+    //  Phi-accrual failure detection, see Hayashibara et al. 2004
+    public static final double PHI_EVASIVE = 3;     //  Suspicion that makes us ping
+    public static final double PHI_EXPIRED = 8;     //  Suspicion that expires peer
+    private static final int HEARTBEATS = 100;      //  Heartbeat intervals we keep
+    private static final int MIN_HEARTBEATS = 3;    //  Before this, use fixed timers
+    private static final double MIN_DEVIATION = 100;        //  Msecs, for steady beats
+    private static final long ACCEPTABLE_PAUSE = 2 * ZreInterface.PING_INTERVAL;
+    private static final long RTT_INTERVAL = 5000;  //  Msecs between RTT probes
+    public static final int REQUEST_WINDOW = 64;    //  Requests in flight to peer
+    private static final int CLOCK_SAMPLES = 8;     //  PING exchanges we keep
     
     private ZContext ctx;                //  CZMQ context
     private Socket mailbox;              //  Socket through to peer
+    private volatile ZreLocal local;     //  Or peer's queue, in this process
+    private ZFrame address;              //  Our identity, for its queue
+    private Socket control;              //  Heartbeats to peer, beside data
     private String identity;             //  Identity string
     private String endpoint;             //  Endpoint connected to
+    private String replyTo;              //  Our identity, to connect again
     private long evasive_at;             //  Peer is being evasive
     private long expired_at;             //  Peer has expired by now
-    private boolean connected;           //  Peer will send messages
+    private volatile boolean connected;  //  Peer will send messages
     private boolean ready;               //  Peer has said Hello to us
+    private volatile boolean evicted;    //  Sockets closed while peer is idle
     private int status;                  //  Our status counter
     private int sent_sequence;           //  Outgoing message sequence
     private int want_sequence;           //  Incoming message sequence
     private Map <String, String> headers;           //  Peer headers
+    private List <ZFrame> batch;                    //  Whispers waiting for BATCH
+    private int batchBytes;                         //  Size of batch once packed
+    private BitSet bound;                           //  Our group IDs peer knows
+    private final long [] intervals;                //  Recent heartbeat intervals
+    private volatile int intervalCount;             //  Intervals in window
+    private int intervalNext;                       //  Where next interval goes
+    private long intervalSum;                       //  Sum of intervals in window
+    private double intervalSquares;                 //  Sum of squared intervals
+    private long beat_at;                           //  Last heartbeat from peer
+    private long probe_at;                          //  When we next measure RTT
+    private long ping_sent;                         //  Nanotime of PING we await
+    private volatile long seen_at;                  //  Last activity from peer
+    private volatile double mean;                   //  Mean heartbeat interval
+    private volatile double deviation;              //  Its standard deviation
+    private volatile double rtt;                    //  Smoothed RTT in msecs
+    private int outstanding;                        //  Anycasts not answered yet
+    private Set <Long> requests;                    //  Our requests not answered yet
+    private Deque <ZreMsg> queued;                  //  Requests waiting for window
+    private long msgsOut;                           //  Commands sent to peer
+    private long bytesOut;                          //  Their size, with content
+    private long drops;                             //  Commands we failed to send
+    private List <String> groupNames;               //  Peer's group names by ID
+    private Set <String> listening;                 //  Groups peer gets by multicast
+    private final long [] clockOffsets;             //  Recent offset samples
+    private final long [] clockDelays;              //  And their round trips
+    private int clockCount;                         //  Samples we have
+    private volatile long offset;                   //  Peer clock less ours, usecs
+    private volatile boolean synced;                //  Offset is measured
+    private ZreTrace.Stamps traced;                 //  Trace of next delivery
+    private long traffic;                           //  Commands to and from peer
+    private long trafficSeen;                       //  As of last idle check
+    private long activeAt;                          //  When traffic last moved
     
     private ZrePeer (ZContext ctx, String identity)
     {
@@ -59,6 +126,16 @@ public class ZrePeer
         connected = false;
         sent_sequence = 0;
         want_sequence = 0;
+        batch = new ArrayList <ZFrame> ();
+        bound = new BitSet ();
+        groupNames = new ArrayList <String> ();
+        listening = new HashSet <String> ();
+        intervals = new long [HEARTBEATS];
+        rtt = -1;
+        clockOffsets = new long [CLOCK_SAMPLES];
+        clockDelays = new long [CLOCK_SAMPLES];
+        requests = new HashSet <Long> ();
+        queued = new ArrayDeque <ZreMsg> ();
     }
     
     //  ---------------------------------------------------------------------
@@ -80,10 +157,28 @@ public class ZrePeer
 
     //  ---------------------------------------------------------------------
     //  Connect peer mailbox
-    //  Configures mailbox and connects to peer's router endpoint
-    public void connect (String replyTo, String endpoint)
+    //  Configures mailbox and connects to peer's router endpoint, or if
+    //  local is not null, hands commands to the peer's queue instead
+    public void connect (String replyTo, String endpoint, ZreLocal local)
+    {
+        this.replyTo = replyTo;
+        this.endpoint = endpoint;
+        this.local = local;
+        ready = false;
+        bound.clear ();
+        evicted = false;
+        activeAt = System.currentTimeMillis ();
+        if (local != null) {
+            address = new ZFrame (replyTo);
+            connected = true;
+        }
+        else
+            open ();
+    }
+
+    //  Create new outgoing socket (drop any messages in transit)
+    private void open ()
     {
-        //  Create new outgoing socket (drop any messages in transit)
         mailbox = ctx.createSocket (ZMQ.DEALER);
 
         //  Null if shutting down
@@ -100,30 +195,321 @@ public class ZrePeer
     
             //  Connect through to peer node
             mailbox.connect (String.format ("tcp://%s", endpoint));
-            this.endpoint = endpoint;
             connected = true;
-            ready = false;        
         }
     }
 
+    //  ---------------------------------------------------------------------
+    //  Close sockets to peer while it is idle, keeping everything we know
+    //  about it. We open them again when we next send it something, and
+    //  carry on with the same sequence numbers; the peer's ROUTER hands
+    //  our identity over to the new connection.
+    public void evict ()
+    {
+        if (!connected || evicted || local != null)
+            return;
+        flush ();
+        if (control != null)
+            ctx.destroySocket (control);
+        control = null;
+        ctx.destroySocket (mailbox);
+        mailbox = null;
+        evicted = true;
+    }
+
+    //  Open sockets again if we evicted them; false if we can't
+    private boolean reopen ()
+    {
+        if (evicted) {
+            evicted = false;
+            open ();
+            connectControl (replyTo);
+        }
+        return mailbox != null || local != null;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if we are connected to peer, even if we evicted its
+    //  sockets for now. Safe from any thread.
+    public boolean connected ()
+    {
+        return connected;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if peer runs in this process and we hand it commands
+    //  directly. Safe from any thread.
+    public boolean local ()
+    {
+        return local != null;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if we evicted peer's sockets. Safe from any thread.
+    public boolean evicted ()
+    {
+        return evicted;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Register command from peer, other than heartbeats, so we keep the
+    //  connection to it
+    public void used ()
+    {
+        traffic++;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return msecs since we last sent peer or got from it anything but
+    //  heartbeats. Call now and then, as it checks traffic as of now.
+    public long idle (long now)
+    {
+        if (traffic != trafficSeen) {
+            trafficSeen = traffic;
+            activeAt = now;
+        }
+        return now - activeAt;
+    }
+
     //  ---------------------------------------------------------------------
     //  Disconnect peer mailbox
     //  No more messages will be sent to peer until connected again
     public void disconnect ()
     {
+        if (control != null)
+            ctx.destroySocket (control);
+        control = null;
+        for (ZFrame content : batch)
+            content.destroy ();
+        batch.clear ();
+        batchBytes = 0;
+        for (ZreMsg msg : queued)
+            msg.destroy ();
+        queued.clear ();
+        requests.clear ();
         ctx.destroySocket (mailbox);
         mailbox = null;
+        local = null;
         endpoint = null;
         connected = false;
+        evicted = false;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Connect control lane, if peer announced one in its headers. The
+    //  lane has its own TCP connection, so heartbeats don't wait behind
+    //  data queued for the peer.
+    public void connectControl (String replyTo)
+    {
+        String port = header (CONTROL_HEADER, null);
+        if (port == null || control != null || !connected || local != null)
+            return;
+
+        control = ctx.createSocket (ZMQ.DEALER);
+        if (control != null) {
+            control.setIdentity (replyTo.getBytes ());
+            control.setSndHWM (ZreInterface.PEER_EXPIRED * 100);
+            control.setSendTimeOut (0);
+            String host = endpoint.substring (0, endpoint.lastIndexOf (':'));
+            control.connect (String.format ("tcp://%s:%s", host, port));
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send heartbeat on the control lane, or in order with data if peer
+    //  has no control lane. Control commands carry no sequence number.
+    public boolean sendControl (ZreMsg msg)
+    {
+        if (connected && !reopen ()) {
+            msg.destroy ();
+            return true;
+        }
+        if (control == null) {
+            if (!batch.isEmpty ())
+                flush ();
+            return transmit (msg);
+        }
+
+        msg.setSequence (0);
+        count (msg);
+        if (!msg.send (control)) {
+            drops++;
+            disconnect ();
+            return false;
+        }
+        return true;
     }
 
     public boolean send (ZreMsg msg)
     {
-        if (connected) {
+        traffic++;
+        //  Batched whispers go first, so the peer sees commands in order
+        if (!batch.isEmpty ())
+            flush ();
+        return transmit (msg);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send a command frame that was encoded once for many peers, such as
+    //  our HELLO. Writes our sequence number into the frame before sending.
+    //  Peers in this process take only unencoded commands.
+    public boolean send (ByteBuffer encoded)
+    {
+        assert (local == null);
+        traffic++;
+        if (!batch.isEmpty ())
+            flush ();
+        if (!connected || !reopen ())
+            return true;
+
+        if (++sent_sequence > USHORT_MAX)
+            sent_sequence = 0;
+        //  Sequence follows the signature and message ID
+        encoded.putShort (3, (short) sent_sequence);
+        msgsOut++;
+        bytesOut += encoded.limit ();
+        if (!mailbox.send (encoded.array (), 0, encoded.limit (), 0)) {
+            drops++;
+            disconnect ();
+            return false;
+        }
+        return true;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send SHOUT to peer, as SHOUT_ID if the peer resolves group IDs and
+    //  the group has one. Binds the ID with the peer on first use. Does
+    //  not take ownership of the message.
+    public boolean shout (ZreMsg msg, int groupid)
+    {
+        if (groupid < 0 || header (GROUPS_HEADER, null) == null)
+            return send (msg.dup ());
+
+        if (!bound.get (groupid)) {
+            ZreMsg bind = new ZreMsg (ZreMsg.BIND);
+            bind.setGroup (msg.group ());
+            bind.setGroupid (groupid);
+            if (!send (bind))
+                return false;
+            bound.set (groupid);
+        }
+        ZreMsg shout = new ZreMsg (ZreMsg.SHOUT_ID);
+        shout.setGroupid (groupid);
+        shout.setContent (msg.content ().duplicate ());
+        return send (shout);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Remember group name the peer bound to an ID
+    public void bindGroup (int groupid, String name)
+    {
+        while (groupNames.size () <= groupid)
+            groupNames.add (null);
+        groupNames.set (groupid, name);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return group name the peer bound to an ID, or null if unknown
+    public String groupName (int groupid)
+    {
+        return groupid < groupNames.size () ? groupNames.get (groupid) : null;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Remember whether peer listens for multicast shouts to group
+    public void setListening (String group, boolean enabled)
+    {
+        if (enabled)
+            listening.add (group);
+        else
+            listening.remove (group);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if peer listens for multicast shouts to group
+    public boolean listening (String group)
+    {
+        return listening.contains (group);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Queue whisper content for the next BATCH command; takes ownership
+    //  of the frame. Returns size the batch will have once packed.
+    public int batch (ZFrame content)
+    {
+        traffic++;
+        batch.add (content);
+        batchBytes += 4 + content.size ();
+        return batchBytes;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send queued whispers, as a single BATCH command if more than one
+    public void flush ()
+    {
+        if (batch.isEmpty ())
+            return;
+
+        ZreMsg msg;
+        if (batch.size () == 1) {
+            msg = new ZreMsg (ZreMsg.WHISPER);
+            msg.setContent (batch.get (0));
+        }
+        else {
+            ByteBuffer packed = ByteBuffer.allocate (batchBytes);
+            for (ZFrame content : batch) {
+                packed.putInt (content.size ());
+                packed.put (content.getData ());
+                content.destroy ();
+            }
+            msg = new ZreMsg (ZreMsg.BATCH);
+            msg.setContent (new ZFrame (packed.array ()));
+        }
+        batch.clear ();
+        batchBytes = 0;
+        transmit (msg);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if peer unpacks BATCH commands
+    public boolean batches ()
+    {
+        return header (BATCH_HEADER, null) != null;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Unpack content of a BATCH command into separate whispers
+    public static List <ZFrame> unbatch (ZFrame content)
+    {
+        List <ZFrame> whispers = new ArrayList <ZFrame> ();
+        ByteBuffer packed = ByteBuffer.wrap (content.getData ());
+        while (packed.remaining () >= 4) {
+            int size = packed.getInt ();
+            if (size < 0 || size > packed.remaining ())
+                break;              //  Malformed, drop the rest
+            byte [] data = new byte [size];
+            packed.get (data);
+            whispers.add (new ZFrame (data));
+        }
+        return whispers;
+    }
+
+    private boolean transmit (ZreMsg msg)
+    {
+        if (connected && reopen ()) {
             if (++sent_sequence > USHORT_MAX)
                 sent_sequence = 0;
             msg.setSequence (sent_sequence);
-            if (!msg.send (mailbox)) {
+            count (msg);
+            boolean sent;
+            if (local != null) {
+                msg.setAddress (address);
+                sent = local.send (msg);
+            }
+            else
+                sent = msg.send (mailbox);
+            if (!sent) {
+                drops++;
                 disconnect ();
                 return false;
             }
@@ -134,6 +520,35 @@ public class ZrePeer
         return true;
     }
 
+    private void count (ZreMsg msg)
+    {
+        msgsOut++;
+        bytesOut += msg.size ();
+        if (msg.content () != null)
+            bytesOut += msg.content ().size ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return number of commands sent to peer
+    public long msgsOut ()
+    {
+        return msgsOut;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return bytes sent to peer, command frames and content
+    public long bytesOut ()
+    {
+        return bytesOut;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return number of commands we failed to send to peer
+    public long drops ()
+    {
+        return drops;
+    }
+
     //  ---------------------------------------------------------------------
     //  Return peer connection endpoint
     public String endpoint ()
@@ -149,8 +564,227 @@ public class ZrePeer
     //  Register activity at peer
     public void refresh ()
     {
-        evasive_at = System.currentTimeMillis () + ZreInterface.PEER_EVASIVE;
-        expired_at = System.currentTimeMillis () + ZreInterface.PEER_EXPIRED;
+        seen_at = System.currentTimeMillis ();
+        evasive_at = seen_at + ZreInterface.PEER_EVASIVE;
+        expired_at = seen_at + ZreInterface.PEER_EXPIRED;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Register heartbeat from peer, such as its beacon, and learn the
+    //  distribution of heartbeat intervals
+    public void beat ()
+    {
+        refresh ();
+        if (beat_at > 0) {
+            long interval = seen_at - beat_at;
+            int count = intervalCount;
+            if (count == HEARTBEATS) {
+                long oldest = intervals [intervalNext];
+                intervalSum -= oldest;
+                intervalSquares -= (double) oldest * oldest;
+            }
+            else
+                count++;
+            intervals [intervalNext] = interval;
+            intervalNext = (intervalNext + 1) % HEARTBEATS;
+            intervalSum += interval;
+            intervalSquares += (double) interval * interval;
+
+            double average = (double) intervalSum / count;
+            double variance = intervalSquares / count - average * average;
+            deviation = Math.sqrt (Math.max (variance, 0));
+            mean = average;
+            //  Publish the count last, so phi () on other threads never
+            //  sees it ahead of the mean and deviation
+            intervalCount = count;
+        }
+        beat_at = seen_at;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return phi, the suspicion that peer has failed: -log10 of chance a
+    //  heartbeat would still be due this long after the last activity.
+    //  Returns 0 until we have seen a few heartbeats. Safe from any thread.
+    public double phi (long now)
+    {
+        if (intervalCount < MIN_HEARTBEATS)
+            return 0;
+        double average = mean + ACCEPTABLE_PAUSE;
+        double sigma = Math.max (deviation, MIN_DEVIATION);
+        double y = (now - seen_at - average) / sigma;
+
+        //  Logistic approximation of the normal distribution
+        double e = Math.exp (-y * (1.5976 + 0.070566 * y * y));
+        if (y > 0)
+            return -Math.log10 (e / (1.0 + e));
+        else
+            return -Math.log10 (1.0 - 1.0 / (1.0 + e));
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if peer is being evasive and we should ping it
+    public boolean evasive (long now)
+    {
+        return now >= evasive_at || phi (now) >= PHI_EVASIVE;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if peer has expired
+    public boolean expired (long now)
+    {
+        return now >= expired_at || phi (now) >= PHI_EXPIRED;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if we should send a PING, because peer is evasive or
+    //  to measure round-trip time; we don't probe peers we evicted
+    public boolean pingDue (long now)
+    {
+        return evasive (now) || (!evicted && now >= probe_at);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Register PING sent to peer; we time the oldest unanswered one,
+    //  unless it has surely been lost
+    public void ping ()
+    {
+        long now = System.nanoTime ();
+        if (ping_sent == 0 || now - ping_sent > ZreInterface.PEER_EVASIVE * 1000000L)
+            ping_sent = now;
+        probe_at = System.currentTimeMillis () + RTT_INTERVAL;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Register PING_OK from peer and update smoothed RTT as TCP does
+    public void pingOk ()
+    {
+        if (ping_sent == 0)
+            return;
+        double sample = (System.nanoTime () - ping_sent) / 1000000.0;
+        ping_sent = 0;
+        rtt = rtt < 0 ? sample : rtt + (sample - rtt) / 8;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Register PING exchange as NTP does: we sent at t1 and got the reply
+    //  at t4, by our clock; peer got the ping at t2 and replied at t3, by
+    //  its clock. Of recent samples we believe the one with the shortest
+    //  round trip, as it had least room for one-way delays to differ.
+    public void clock (long t1, long t2, long t3, long t4)
+    {
+        if (t1 == 0 || t2 == 0)
+            return;                 //  Peer doesn't stamp its replies
+        long delay = (t4 - t1) - (t3 - t2);
+        if (delay < 0)
+            return;
+        int slot = clockCount++ % CLOCK_SAMPLES;
+        clockOffsets [slot] = ((t2 - t1) + (t3 - t4)) / 2;
+        clockDelays [slot] = delay;
+        int best = 0;
+        for (int sample = 1; sample < Math.min (clockCount, CLOCK_SAMPLES); sample++)
+            if (clockDelays [sample] < clockDelays [best])
+                best = sample;
+        offset = clockOffsets [best];
+        synced = true;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if we have measured the peer's clock offset.
+    //  Safe from any thread.
+    public boolean synced ()
+    {
+        return synced;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return peer's clock less ours, in usecs. Safe from any thread.
+    public long offset ()
+    {
+        return offset;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Hold trace stamps from peer for the next whisper or shout it sends
+    public void traced (ZreTrace.Stamps stamps)
+    {
+        traced = stamps;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return trace stamps for whisper or shout from peer, if any
+    public ZreTrace.Stamps takeTraced ()
+    {
+        ZreTrace.Stamps stamps = traced;
+        traced = null;
+        return stamps;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Register anycast sent to peer, which we count until peer whispers
+    //  back to us
+    public void anycast ()
+    {
+        outstanding++;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Register whisper from peer, taken as answer to oldest anycast
+    public void answered ()
+    {
+        if (outstanding > 0)
+            outstanding--;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return number of anycasts peer hasn't answered yet
+    public int outstanding ()
+    {
+        return outstanding;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send REQUEST to peer if fewer than REQUEST_WINDOW of our requests
+    //  await replies, else hold it until one is settled
+    public void request (ZreMsg msg)
+    {
+        if (requests.size () < REQUEST_WINDOW) {
+            requests.add (msg.correlation ());
+            send (msg);
+        }
+        else
+            queued.add (msg);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Register request as answered or given up, and send next one held
+    //  back by the window, if any
+    public void settled (long correlation)
+    {
+        if (!requests.remove (correlation)) {
+            Iterator <ZreMsg> it = queued.iterator ();
+            while (it.hasNext ()) {
+                ZreMsg msg = it.next ();
+                if (msg.correlation () == correlation) {
+                    it.remove ();
+                    msg.destroy ();
+                    break;
+                }
+            }
+            return;
+        }
+        ZreMsg next = queued.poll ();
+        if (next != null) {
+            requests.add (next.correlation ());
+            send (next);
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return smoothed round-trip time in msecs, -1 if not measured yet.
+    //  Safe from any thread.
+    public double rtt ()
+    {
+        return rtt;
     }
 
     //  ---------------------------------------------------------------------
@@ -201,7 +835,7 @@ public class ZrePeer
 
     public String header (String key, String defaultValue)
     {
-        if (headers.containsKey (key))
+        if (headers != null && headers.containsKey (key))
             return headers.get (key);
         
         return defaultValue;
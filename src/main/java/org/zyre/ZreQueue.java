@@ -0,0 +1,139 @@
+/*  =========================================================================
+    ZreQueue - credit-based work queue over group members
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+package org.zyre;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.zeromq.ZFrame;
+
+//  Workers give each producer credit, a number of jobs they will take
+//  from it, and give one more credit each time they finish a job. The
+//  producer keeps jobs here until some worker has credit, and then sends
+//  each job to the worker with most credit left, so that fast workers
+//  get more jobs and slow ones never get more than they asked for.
+//  Only members of the group may give credit. A worker's credit can beat
+//  news of its membership here, so we hold it until the worker joins.
+
+public class ZreQueue
+{
+    private final String name;                      //  Group name
+    private final Map <ZrePeer, Integer> credits;   //  Workers with credit
+    private final Map <ZrePeer, Integer> held;      //  Credit from non-members
+    private final Deque <ZFrame> jobs;              //  Jobs waiting for credit
+
+    //  ---------------------------------------------------------------------
+    //  Constructor
+    public ZreQueue (String name)
+    {
+        this.name = name;
+        credits = new LinkedHashMap <ZrePeer, Integer> ();
+        held = new LinkedHashMap <ZrePeer, Integer> ();
+        jobs = new ArrayDeque <ZFrame> ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Destroy queue and any jobs still waiting
+    public void destroy ()
+    {
+        for (ZFrame job : jobs)
+            job.destroy ();
+        jobs.clear ();
+        credits.clear ();
+        held.clear ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Add credit from worker and send any jobs it lets us send. Credit
+    //  from a peer not in the group waits until admit () or remove ().
+    public void credit (ZrePeer peer, boolean member, long credit)
+    {
+        Map <ZrePeer, Integer> target = member ? credits : held;
+        Integer current = target.get (peer);
+        long total = (current != null ? current : 0) + credit;
+        target.put (peer, (int) Math.min (total, Integer.MAX_VALUE));
+        if (member)
+            dispatch ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Take credit a worker gave before it joined the group
+    public void admit (ZrePeer peer)
+    {
+        Integer credit = held.remove (peer);
+        if (credit != null)
+            credit (peer, true, credit);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Forget worker and its credit, when it leaves or goes away
+    public void remove (ZrePeer peer)
+    {
+        credits.remove (peer);
+        held.remove (peer);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Queue job and send it at once if a worker has credit.
+    //  Takes ownership of the frame.
+    public void push (ZFrame content)
+    {
+        jobs.add (content);
+        dispatch ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return number of jobs waiting for credit
+    public int size ()
+    {
+        return jobs.size ();
+    }
+
+    //  Send waiting jobs while any worker has credit
+    private void dispatch ()
+    {
+        while (!jobs.isEmpty ()) {
+            ZrePeer worker = null;
+            int best = 0;
+            for (Map.Entry <ZrePeer, Integer> entry : credits.entrySet ()) {
+                if (entry.getValue () > best) {
+                    worker = entry.getKey ();
+                    best = entry.getValue ();
+                }
+            }
+            if (worker == null)
+                break;
+            credits.put (worker, best - 1);
+
+            ZreMsg msg = new ZreMsg (ZreMsg.JOB);
+            msg.setGroup (name);
+            msg.setContent (jobs.poll ());
+            worker.send (msg);
+        }
+    }
+}
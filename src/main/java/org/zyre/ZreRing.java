@@ -0,0 +1,125 @@
+/*  =========================================================================
+    ZreRing - consistent-hash ring of group members
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+package org.zyre;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+//  Each member of a group sits at a number of points (replicas) on a
+//  ring of 64-bit hashes. A key belongs to the member at the first point
+//  at or after the key's hash. When a member joins or leaves, only keys
+//  next to its own points change owner. The agent thread changes the
+//  ring as members come and go; any thread may look up owners. When the
+//  points per member change, we build a new ring and swap it in whole.
+
+public class ZreRing
+{
+    public static final int REPLICAS = 100;     //  Default points per member
+
+    private volatile ConcurrentSkipListMap <Long, String> points;
+    private volatile int replicas;
+
+    //  ---------------------------------------------------------------------
+    //  Constructor
+    public ZreRing (int replicas)
+    {
+        if (replicas <= 0)
+            throw new IllegalArgumentException ("Replicas must be positive");
+        points = new ConcurrentSkipListMap <Long, String> ();
+        this.replicas = replicas;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Add member to ring
+    public void add (String identity)
+    {
+        add (points, identity, replicas);
+    }
+
+    private static void add (Map <Long, String> points, String identity, int replicas)
+    {
+        for (int replica = 0; replica < replicas; replica++)
+            points.put (hash (identity, replica), identity);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Remove member from ring
+    public void remove (String identity)
+    {
+        for (int replica = 0; replica < replicas; replica++)
+            points.remove (hash (identity, replica), identity);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Change number of points per member, placing members again
+    public void setReplicas (int replicas, Collection <String> identities)
+    {
+        if (replicas <= 0)
+            throw new IllegalArgumentException ("Replicas must be positive");
+        ConcurrentSkipListMap <Long, String> placed = new ConcurrentSkipListMap <Long, String> ();
+        for (String identity : identities)
+            add (placed, identity, replicas);
+        this.replicas = replicas;
+        points = placed;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return identity of member that owns key, or null if ring is empty
+    public String owner (String key)
+    {
+        ConcurrentSkipListMap <Long, String> points = this.points;
+        Map.Entry <Long, String> point = points.ceilingEntry (hash (key, -1));
+        if (point == null)
+            point = points.firstEntry ();
+        return point != null ? point.getValue () : null;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if ring has no members
+    public boolean isEmpty ()
+    {
+        return points.isEmpty ();
+    }
+
+    //  FNV-1a over the characters, then a replica salt and the MurmurHash3
+    //  finalizer so that nearby strings land far apart
+    private static long hash (String value, int replica)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int index = 0; index < value.length (); index++) {
+            hash ^= value.charAt (index);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= (replica + 1) * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,245 @@
+/*  =========================================================================
+    ZreStats - cluster rollups of node STATS reports
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+package org.zyre;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+//  A collector feeds us the STATS reports that nodes send it now and then.
+//  We keep each node's reports for the last window, stamped with when
+//  they got here, since nodes' clocks may not agree. Node counters only
+//  grow, so rates come from the first and last report in the window; a
+//  node that restarts sends smaller counters, and we start it afresh.
+//  Nodes that send nothing for a window are gone. We roll nodes up per
+//  group they are in, and over the whole cluster.
+
+public class ZreStats
+{
+    private final long window;                  //  Msecs of reports we keep
+    private final Map <Integer, Deque <Sample>> nodes;
+
+    //  One report and when it arrived
+    private static class Sample
+    {
+        private final long at;
+        private final ZreLogMsg msg;
+
+        private Sample (long at, ZreLogMsg msg)
+        {
+            this.at = at;
+            this.msg = msg;
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Constructor
+    public ZreStats (long window)
+    {
+        this.window = window;
+        nodes = new HashMap <Integer, Deque <Sample>> ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Add STATS report that arrived at now, and take ownership of it.
+    //  Ignores null and other messages.
+    public void add (ZreLogMsg msg, long now)
+    {
+        if (msg == null || msg.id () != ZreLogMsg.STATS)
+            return;
+        Deque <Sample> samples = nodes.get (msg.node ());
+        if (samples == null) {
+            samples = new ArrayDeque <Sample> ();
+            nodes.put (msg.node (), samples);
+        }
+        else
+        if (!samples.isEmpty () && restarted (samples.getLast ().msg, msg))
+            samples.clear ();
+        samples.addLast (new Sample (now, msg));
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Drop reports older than the window, and nodes with no reports left.
+    //  We keep the last report before the window so rates span all of it.
+    public void expire (long now)
+    {
+        Iterator <Deque <Sample>> it = nodes.values ().iterator ();
+        while (it.hasNext ()) {
+            Deque <Sample> samples = it.next ();
+            if (samples.getLast ().at < now - window)
+                it.remove ();
+            else {
+                Sample first = samples.removeFirst ();
+                while (!samples.isEmpty () && samples.getFirst ().at < now - window)
+                    first = samples.removeFirst ();
+                samples.addFirst (first);
+            }
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return number of nodes we have reports from
+    public int size ()
+    {
+        return nodes.size ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return rollup for one node, or null if we don't know it
+    public Rollup node (int node)
+    {
+        Deque <Sample> samples = nodes.get (node);
+        if (samples == null)
+            return null;
+        Rollup rollup = new Rollup ();
+        rollup.add (samples);
+        return rollup;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return rollup over all nodes
+    public Rollup cluster ()
+    {
+        Rollup rollup = new Rollup ();
+        for (Deque <Sample> samples : nodes.values ())
+            rollup.add (samples);
+        return rollup;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return rollups per group, by group name; a node counts in each of
+    //  the groups its last report lists
+    public Map <String, Rollup> groups ()
+    {
+        Map <String, Rollup> groups = new TreeMap <String, Rollup> ();
+        for (Deque <Sample> samples : nodes.values ()) {
+            for (String name : samples.getLast ().msg.groups ()) {
+                Rollup rollup = groups.get (name);
+                if (rollup == null) {
+                    rollup = new Rollup ();
+                    groups.put (name, rollup);
+                }
+                rollup.add (samples);
+            }
+        }
+        return groups;
+    }
+
+    //  Counters went backwards, so node started again
+    private static boolean restarted (ZreLogMsg last, ZreLogMsg msg)
+    {
+        return msg.msgsin () < last.msgsin ()
+            || msg.msgsout () < last.msgsout ()
+            || msg.drops () < last.drops ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Sums over some nodes: rates are per second over the window, peers
+    //  and lag are as last reported, and lag is the worst of them.
+
+    public static class Rollup
+    {
+        private int nodes;
+        private long peers;
+        private double msgsIn;
+        private double bytesIn;
+        private double msgsOut;
+        private double bytesOut;
+        private double drops;
+        private long lag;
+
+        private void add (Deque <Sample> samples)
+        {
+            Sample first = samples.getFirst ();
+            Sample last = samples.getLast ();
+            nodes++;
+            peers += last.msg.peers ();
+            long lagged = 0;
+            for (Sample sample : samples)
+                lagged = Math.max (lagged, sample.msg.lag ());
+            lag = Math.max (lag, lagged);
+            if (last.at == first.at)
+                return;
+            double seconds = (last.at - first.at) / 1000.0;
+            msgsIn += (last.msg.msgsin () - first.msg.msgsin ()) / seconds;
+            bytesIn += (last.msg.bytesin () - first.msg.bytesin ()) / seconds;
+            msgsOut += (last.msg.msgsout () - first.msg.msgsout ()) / seconds;
+            bytesOut += (last.msg.bytesout () - first.msg.bytesout ()) / seconds;
+            drops += (last.msg.drops () - first.msg.drops ()) / seconds;
+        }
+
+        public int nodes ()
+        {
+            return nodes;
+        }
+
+        public long peers ()
+        {
+            return peers;
+        }
+
+        public double msgsIn ()
+        {
+            return msgsIn;
+        }
+
+        public double bytesIn ()
+        {
+            return bytesIn;
+        }
+
+        public double msgsOut ()
+        {
+            return msgsOut;
+        }
+
+        public double bytesOut ()
+        {
+            return bytesOut;
+        }
+
+        public double drops ()
+        {
+            return drops;
+        }
+
+        public long lag ()
+        {
+            return lag;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return String.format (
+                "nodes=%d peers=%d in=%.0f/s %.0fB/s out=%.0f/s %.0fB/s drops=%.1f/s lag=%dms",
+                nodes, peers, msgsIn, bytesIn, msgsOut, bytesOut, drops, lag);
+        }
+    }
+}
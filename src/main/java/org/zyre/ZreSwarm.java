@@ -0,0 +1,475 @@
+/*  =========================================================================
+    ZreSwarm - one file being distributed chunk by chunk across peers
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+package org.zyre;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.zeromq.ZFrame;
+
+//  A published file is cut into fixed-size chunks, each identified by
+//  its SHA-1 digest. Every node that holds a chunk serves it to the
+//  others, so the publisher only has to send each chunk a few times
+//  however large the group is.
+//
+//  While we fetch, we index the chunks we still need by how many peers
+//  hold them, so we find the rarest without looking at every chunk.
+//  Once we hold the whole file we drop what we knew about holders and
+//  keep no file open; we open it for each chunk we serve.
+
+public class ZreSwarm
+{
+    public static final int CHUNK_SIZE    = 256 * 1024;  //  Bytes per chunk
+    public static final int DIGEST_SIZE   = 20;          //  SHA-1 digest
+    public static final int MAX_INFLIGHT  = 8;           //  Fetches in flight per file
+    public static final int PEER_INFLIGHT = 2;           //  Fetches in flight per holder
+    public static final int FETCH_TIMEOUT = 5000;        //  Retry a fetch after this
+    public static final long MAX_FILESIZE = 1L << 32;    //  Largest file we accept
+
+    private final String name;                  //  Virtual name of file
+    private final String group;                 //  Group we distribute to, or ""
+    private final String pathname;              //  Where file lives locally
+    private final String origin;                //  Identity of publisher, or null
+    private final long filesize;                //  Size of file in bytes
+    private final int count;                    //  Number of chunks
+    private final byte [] digests;              //  Chunk digests, in order
+    private final BitSet have;                  //  Chunks we hold
+    private final int [] rarity;                //  Number of holders per chunk
+    private final TreeMap <Integer, BitSet> wanted;     //  Chunks to fetch, by rarity
+    private final Map <String, BitSet> holders;         //  Chunks each peer holds
+    private final Map <Integer, String> inflight;       //  Chunk -> peer fetching from
+    private final Map <Integer, Long> requested;        //  Chunk -> time of request
+    private final Map <String, Integer> load;           //  Fetches in flight per peer
+    private final Random random;
+    private RandomAccessFile file;
+
+    private ZreSwarm (String name, String group, String pathname, String origin,
+                      long filesize, byte [] digests, RandomAccessFile file)
+    {
+        this.name = name;
+        this.group = group;
+        this.pathname = pathname;
+        this.origin = origin;
+        this.filesize = filesize;
+        this.digests = digests;
+        this.file = file;
+
+        count = digests.length / DIGEST_SIZE;
+        have = new BitSet (count);
+        rarity = new int [count];
+        wanted = new TreeMap <Integer, BitSet> ();
+        holders = new HashMap <String, BitSet> ();
+        inflight = new HashMap <Integer, String> ();
+        requested = new HashMap <Integer, Long> ();
+        load = new HashMap <String, Integer> ();
+        random = new Random ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Construct swarm for a local file we publish; we hold every chunk
+    //  Returns null if the file cannot be read. This reads the whole file,
+    //  so the agent calls it on a worker thread and adds the swarm itself.
+    public static ZreSwarm newSeed (String name, String group, String pathname)
+    {
+        try {
+            RandomAccessFile file = new RandomAccessFile (pathname, "r");
+            long filesize = file.length ();
+            int count = chunks (filesize);
+            byte [] digests = new byte [count * DIGEST_SIZE];
+            byte [] buffer = new byte [CHUNK_SIZE];
+            for (int index = 0; index < count; index++) {
+                int size = chunkSize (filesize, index);
+                file.readFully (buffer, 0, size);
+                System.arraycopy (digest (buffer, size), 0,
+                                  digests, index * DIGEST_SIZE, DIGEST_SIZE);
+            }
+            file.close ();
+            ZreSwarm swarm = new ZreSwarm (
+                name, group, pathname, null, filesize, digests, null);
+            swarm.have.set (0, count);
+            return swarm;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Construct swarm for a file offered to us by origin; we hold nothing
+    //  Returns null if the file cannot be created
+    public static ZreSwarm newLeech (String name, String group, String pathname,
+                                     String origin, long filesize, byte [] digests,
+                                     Map <String, ZreSwarm> container)
+    {
+        if (filesize < 0 || filesize > MAX_FILESIZE
+        ||  digests.length != chunks (filesize) * DIGEST_SIZE)
+            return null;            //  Malformed offer
+        try {
+            File parent = new File (pathname).getParentFile ();
+            if (parent != null)
+                parent.mkdirs ();
+            RandomAccessFile file = new RandomAccessFile (pathname, "rw");
+            file.setLength (filesize);
+            ZreSwarm swarm = new ZreSwarm (
+                name, group, pathname, origin, filesize, digests, file);
+            for (int index = 0; index < swarm.count; index++)
+                swarm.want (index);
+            swarm.addSeed (origin);
+            container.put (name, swarm);
+            return swarm;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if a peer may use name for a file in our storage: a
+    //  plain file name, with no path that could lead out of it
+    public static boolean validName (String name)
+    {
+        return !name.isEmpty ()
+            && !name.equals (".") && !name.equals ("..")
+            && name.indexOf ('/') < 0 && name.indexOf ('\\') < 0
+            && name.indexOf (File.separatorChar) < 0
+            && !new File (name).isAbsolute ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Destroy swarm object
+    public void destroy ()
+    {
+        try {
+            if (file != null)
+                file.close ();
+        } catch (IOException e) {
+        }
+        file = null;
+        forget ();
+    }
+
+    public String name ()
+    {
+        return name;
+    }
+
+    public String group ()
+    {
+        return group;
+    }
+
+    public String pathname ()
+    {
+        return pathname;
+    }
+
+    public long filesize ()
+    {
+        return filesize;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return chunk digests as a frame, for the OFFER command
+    public ZFrame digests ()
+    {
+        return new ZFrame (digests);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true once we hold every chunk
+    public boolean complete ()
+    {
+        return have.cardinality () == count;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Register that a peer holds one chunk
+    public void addHolder (String identity, int index)
+    {
+        if (index < 0 || index >= count || file == null)
+            return;                 //  Bad index, or we're done fetching
+        BitSet chunks = holders.get (identity);
+        if (chunks == null) {
+            chunks = new BitSet (count);
+            holders.put (identity, chunks);
+        }
+        if (!chunks.get (index)) {
+            chunks.set (index);
+            unwant (index);
+            rarity [index]++;
+            want (index);
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Register that a peer holds the whole file
+    public void addSeed (String identity)
+    {
+        for (int index = 0; index < count; index++)
+            addHolder (identity, index);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Forget a peer that has left; its fetches will be reissued elsewhere
+    public void removePeer (String identity)
+    {
+        BitSet chunks = holders.remove (identity);
+        if (chunks != null) {
+            for (int index = chunks.nextSetBit (0); index >= 0;
+                     index = chunks.nextSetBit (index + 1)) {
+                unwant (index);
+                rarity [index]--;
+                want (index);
+            }
+        }
+        Iterator <Map.Entry <Integer, String>> it = inflight.entrySet ().iterator ();
+        while (it.hasNext ()) {
+            Map.Entry <Integer, String> entry = it.next ();
+            if (entry.getValue ().equals (identity)) {
+                requested.remove (entry.getKey ());
+                it.remove ();
+                want (entry.getKey ());
+            }
+        }
+        load.remove (identity);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Read one chunk we hold, returns null if we don't have it
+    public byte [] read (int index)
+    {
+        if (index < 0 || index >= count || !have.get (index))
+            return null;
+        byte [] data = new byte [chunkSize (filesize, index)];
+        RandomAccessFile input = file;
+        try {
+            if (input == null)
+                input = new RandomAccessFile (pathname, "r");
+            input.seek ((long) index * CHUNK_SIZE);
+            input.readFully (data);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                if (input != null && input != file)
+                    input.close ();
+            } catch (IOException e) {
+            }
+        }
+        return data;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Store one chunk received from a peer, after checking its digest
+    //  Returns true if the chunk was new and valid
+    public boolean store (int index, byte [] data)
+    {
+        if (index < 0 || index >= count || file == null)
+            return false;
+        String identity = inflight.remove (index);
+        requested.remove (index);
+        if (identity != null)
+            unload (identity);
+        want (index);
+
+        if (have.get (index)
+        ||  data.length != chunkSize (filesize, index)
+        ||  !Arrays.equals (digest (data, data.length),
+                            Arrays.copyOfRange (digests, index * DIGEST_SIZE,
+                                                (index + 1) * DIGEST_SIZE)))
+            return false;
+        try {
+            file.seek ((long) index * CHUNK_SIZE);
+            file.write (data);
+        } catch (IOException e) {
+            return false;
+        }
+        unwant (index);
+        have.set (index);
+        if (complete ()) {
+            //  We only serve chunks from now on
+            try {
+                file.close ();
+            } catch (IOException e) {
+            }
+            file = null;
+            forget ();
+        }
+        return true;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send FETCH requests until our window is full. Chunks are taken
+    //  rarest first, from the least loaded holder that has one, avoiding
+    //  the publisher whenever someone else has the chunk, and starting
+    //  at a random place so that peers spread out over the file.
+    public void fetch (Map <String, ZrePeer> peers)
+    {
+        while (inflight.size () < MAX_INFLIGHT) {
+            int chosen = -1;
+            String source = null;
+            for (BitSet chunks : wanted.tailMap (1).values ()) {
+                source = holder (chunks, peers);
+                if (source != null) {
+                    BitSet candidates = (BitSet) chunks.clone ();
+                    candidates.and (holders.get (source));
+                    chosen = candidates.nextSetBit (random.nextInt (count));
+                    if (chosen < 0)
+                        chosen = candidates.nextSetBit (0);
+                    break;
+                }
+            }
+            if (chosen < 0)
+                break;              //  Nothing we can fetch right now
+
+            ZreMsg msg = new ZreMsg (ZreMsg.FETCH);
+            msg.setName (name);
+            msg.setIndex (chosen);
+            peers.get (source).send (msg);
+
+            unwant (chosen);
+            inflight.put (chosen, source);
+            requested.put (chosen, System.currentTimeMillis ());
+            Integer current = load.get (source);
+            load.put (source, current == null ? 1 : current + 1);
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Drop fetches that got no answer in time, so they're reissued
+    public void expire (long now)
+    {
+        Iterator <Map.Entry <Integer, Long>> it = requested.entrySet ().iterator ();
+        while (it.hasNext ()) {
+            Map.Entry <Integer, Long> entry = it.next ();
+            if (now >= entry.getValue () + FETCH_TIMEOUT) {
+                String identity = inflight.remove (entry.getKey ());
+                if (identity != null)
+                    unload (identity);
+                it.remove ();
+                want (entry.getKey ());
+            }
+        }
+    }
+
+    //  Pick least loaded known peer holding any of the chunks, publisher
+    //  last
+    private String holder (BitSet chunks, Map <String, ZrePeer> peers)
+    {
+        String chosen = null;
+        int best = Integer.MAX_VALUE;
+        for (Map.Entry <String, BitSet> entry : holders.entrySet ()) {
+            String identity = entry.getKey ();
+            if (!entry.getValue ().intersects (chunks) || !peers.containsKey (identity))
+                continue;
+            Integer current = load.get (identity);
+            int weight = current == null ? 0 : current;
+            if (weight >= PEER_INFLIGHT)
+                continue;
+            if (identity.equals (origin))
+                weight += PEER_INFLIGHT;
+            if (weight < best) {
+                chosen = identity;
+                best = weight;
+            }
+        }
+        return chosen;
+    }
+
+    //  Index chunk as one to fetch, if we lack it and aren't fetching it
+    private void want (int index)
+    {
+        if (have.get (index) || inflight.containsKey (index))
+            return;
+        BitSet chunks = wanted.get (rarity [index]);
+        if (chunks == null) {
+            chunks = new BitSet (count);
+            wanted.put (rarity [index], chunks);
+        }
+        chunks.set (index);
+    }
+
+    //  Take chunk out of the index, before its rarity changes
+    private void unwant (int index)
+    {
+        BitSet chunks = wanted.get (rarity [index]);
+        if (chunks != null) {
+            chunks.clear (index);
+            if (chunks.isEmpty ())
+                wanted.remove (rarity [index]);
+        }
+    }
+
+    //  Drop what we kept for fetching
+    private void forget ()
+    {
+        wanted.clear ();
+        holders.clear ();
+        inflight.clear ();
+        requested.clear ();
+        load.clear ();
+    }
+
+    private void unload (String identity)
+    {
+        Integer current = load.get (identity);
+        if (current != null && current > 1)
+            load.put (identity, current - 1);
+        else
+            load.remove (identity);
+    }
+
+    //  Number of chunks needed for a file of this size
+    private static int chunks (long filesize)
+    {
+        return (int) ((filesize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    //  Size of given chunk, only the last one may be short
+    private static int chunkSize (long filesize, int index)
+    {
+        return (int) Math.min (CHUNK_SIZE, filesize - (long) index * CHUNK_SIZE);
+    }
+
+    private static byte [] digest (byte [] data, int size)
+    {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance ("SHA-1");
+            sha1.update (data, 0, size);
+            return sha1.digest ();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException (e);
+        }
+    }
+}
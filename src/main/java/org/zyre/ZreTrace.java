@@ -0,0 +1,263 @@
+/*  =========================================================================
+    ZreTrace - sampled hop latency of whispers and shouts
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+package org.zyre;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//  When tracing, the API stamps one in so many whispers and shouts it
+//  sends. The agent stamps the message again as it takes it off the pipe
+//  and as it sends it, and sends those stamps in a TRACE command just
+//  ahead of the message. The receiving agent stamps the message as it
+//  comes in, and the receiving API as the caller gets it. Stamps are
+//  each node's clock in usecs; we correct the sender's with the clock
+//  offset each peer measures from its TIMED-PING exchanges, NTP-style.
+//
+//  The receiver keeps a histogram per sending peer and stage:
+//
+//      QUEUE   - from sending API to sending agent
+//      SEND    - from sending agent taking message to sending it
+//      WIRE    - from send to receiving agent, offset corrected
+//      DELIVER - from receiving agent to caller getting message
+//      TOTAL   - from sending API to caller, offset corrected
+//
+//  Until we know a peer's offset we skip its WIRE and TOTAL stages.
+//  DELIVER and TOTAL need the caller to use ZreInterface.recv ().
+
+public class ZreTrace
+{
+    public static final int QUEUE = 0;
+    public static final int SEND = 1;
+    public static final int WIRE = 2;
+    public static final int DELIVER = 3;
+    public static final int TOTAL = 4;
+    public static final String [] STAGES = {"QUEUE", "SEND", "WIRE", "DELIVER", "TOTAL"};
+    private static final int PENDING_MAX = 1024;        //  Deliveries we wait for
+
+    //  Our clock in usecs: wall clock when we loaded, moved on by nanoTime
+    private static final long BASE_MILLIS = System.currentTimeMillis ();
+    private static final long BASE_NANOS = System.nanoTime ();
+
+    private volatile int oneIn;             //  Sampling, 0 is off
+    private int sampled;                    //  Sends since last sample
+    private long delivered;                 //  Deliveries caller got
+    private final ConcurrentMap <String, Histogram []> histograms;
+    private final Queue <Stamps> pending;   //  Traced deliveries in order
+
+    //  Stamps of one traced message
+    public static class Stamps
+    {
+        private final long api;             //  Sender clock
+        private final long dequeue;         //  Sender clock
+        private final long sent;            //  Sender clock
+        private long inbox;                 //  Our clock
+        private long offset;                //  Sender clock less ours
+        private boolean synced;             //  Offset is known
+        private String identity;            //  Sending peer
+        private long delivery;              //  Number of delivery to caller
+
+        public Stamps (long api, long dequeue, long sent)
+        {
+            this.api = api;
+            this.dequeue = dequeue;
+            this.sent = sent;
+        }
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Constructor
+    public ZreTrace ()
+    {
+        histograms = new ConcurrentHashMap <String, Histogram []> ();
+        pending = new ArrayBlockingQueue <Stamps> (PENDING_MAX);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return our clock in usecs
+    public static long now ()
+    {
+        return BASE_MILLIS * 1000 + (System.nanoTime () - BASE_NANOS) / 1000;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Trace one in so many whispers and shouts we send; 0 is off
+    public void setSampling (int oneIn)
+    {
+        this.oneIn = oneIn;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return true if API should trace the message it sends now. Only
+    //  call from the API thread.
+    public boolean sample ()
+    {
+        int every = oneIn;
+        if (every <= 0)
+            return false;
+        if (++sampled < every)
+            return false;
+        sampled = 0;
+        return true;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Agent got traced message from peer, which it passes to the caller
+    //  as the numbered delivery. Offset is peer's, if synced.
+    public void received (String identity, Stamps stamps, long delivery,
+                          boolean synced, long offset)
+    {
+        stamps.inbox = now ();
+        stamps.identity = identity;
+        stamps.delivery = delivery;
+        stamps.synced = synced;
+        stamps.offset = offset;
+        Histogram [] stages = stages (identity);
+        stages [QUEUE].record (stamps.dequeue - stamps.api);
+        stages [SEND].record (stamps.sent - stamps.dequeue);
+        if (synced)
+            stages [WIRE].record (stamps.inbox - stamps.sent + offset);
+        pending.offer (stamps);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Caller got a whisper or shout; finish its trace if it has one.
+    //  Only call from the API thread.
+    public void delivered ()
+    {
+        delivered++;
+        Stamps stamps = pending.peek ();
+        while (stamps != null && stamps.delivery < delivered) {
+            pending.poll ();            //  Caller didn't go through recv ()
+            stamps = pending.peek ();
+        }
+        if (stamps == null || stamps.delivery != delivered)
+            return;
+        pending.poll ();
+        long now = now ();
+        Histogram [] stages = stages (stamps.identity);
+        stages [DELIVER].record (now - stamps.inbox);
+        if (stamps.synced)
+            stages [TOTAL].record (now - stamps.api + stamps.offset);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return histogram for peer and stage, or null if we traced nothing
+    //  from that peer
+    public Histogram histogram (String identity, int stage)
+    {
+        Histogram [] stages = histograms.get (identity);
+        return stages != null ? stages [stage] : null;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Return identities of peers we traced messages from
+    public Iterable <String> peers ()
+    {
+        return Collections.unmodifiableSet (histograms.keySet ());
+    }
+
+    private Histogram [] stages (String identity)
+    {
+        Histogram [] stages = histograms.get (identity);
+        if (stages == null) {
+            stages = new Histogram [STAGES.length];
+            for (int stage = 0; stage < stages.length; stage++)
+                stages [stage] = new Histogram ();
+            Histogram [] racing = histograms.putIfAbsent (identity, stages);
+            if (racing != null)
+                stages = racing;
+        }
+        return stages;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Latencies in usecs, in power of two buckets: bucket n holds values
+    //  below 2^n and not below 2^(n-1). Safe from any thread.
+
+    public static class Histogram
+    {
+        private final AtomicLongArray buckets = new AtomicLongArray (64);
+        private final AtomicLong count = new AtomicLong ();
+        private final AtomicLong sum = new AtomicLong ();
+        private final AtomicLong max = new AtomicLong ();
+
+        //  Record one latency; clock error may make it negative, which
+        //  we take as zero
+        public void record (long usecs)
+        {
+            if (usecs < 0)
+                usecs = 0;
+            buckets.incrementAndGet (64 - Long.numberOfLeadingZeros (usecs));
+            count.incrementAndGet ();
+            sum.addAndGet (usecs);
+            long highest = max.get ();
+            while (usecs > highest && !max.compareAndSet (highest, usecs))
+                highest = max.get ();
+        }
+
+        public long count ()
+        {
+            return count.get ();
+        }
+
+        public double mean ()
+        {
+            long n = count.get ();
+            return n > 0 ? (double) sum.get () / n : 0;
+        }
+
+        public long max ()
+        {
+            return max.get ();
+        }
+
+        //  Return upper bound of the bucket holding the given fraction
+        //  of latencies, e.g. 0.99, or 0 if we have none
+        public long percentile (double fraction)
+        {
+            long wanted = (long) Math.ceil (count.get () * fraction);
+            long seen = 0;
+            for (int bucket = 0; bucket < 64; bucket++) {
+                seen += buckets.get (bucket);
+                if (seen >= wanted && seen > 0)
+                    return bucket == 0 ? 0 : Math.min (max.get (), (1L << bucket) - 1);
+            }
+            return max.get ();
+        }
+
+        @Override
+        public String toString ()
+        {
+            return String.format ("n=%d mean=%.0fus p50=%dus p99=%dus max=%dus",
+                count (), mean (), percentile (0.5), percentile (0.99), max ());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*  =========================================================================
+    TestZreCompressor - compression test
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+public class TestZreCompressor
+{
+    private static String json (int count)
+    {
+        StringBuilder builder = new StringBuilder ("[");
+        for (int index = 0; index < count; index++)
+            builder.append (String.format ("{\"id\":%d,\"name\":\"node\",\"state\":\"ready\"},", index));
+        return builder.append ("{}]").toString ();
+    }
+
+    @Test
+    public void
+    testDeflate ()
+    {
+        ZreCompressor compressor = new ZreCompressor ();
+        compressor.setThreshold (100);
+
+        ZFrame content = new ZFrame (json (100));
+        assertFalse (compressor.wants (new ZFrame ("short")));
+        assertTrue (compressor.wants (content));
+        assertTrue (compressor.wants (new ZFrame (new byte [ZreCompressor.MAX_RAWSIZE])));
+        assertFalse (compressor.wants (new ZFrame (new byte [ZreCompressor.MAX_RAWSIZE + 1])));
+
+        ZFrame packed = compressor.deflate (content);
+        assertNotNull (packed);
+        assertTrue (packed.size () < content.size ());
+        assertEquals (1, compressor.messages ());
+        assertTrue (compressor.ratio () > 2.0);
+
+        ZreMsg msg = ZreCompressor.compressed (null, content.size (), packed);
+        assertEquals ("", msg.group ());
+        ZFrame inflated = compressor.inflate (msg);
+        assertTrue (inflated.hasSameData (content));
+
+        //  Sizes a peer could never have packed are refused
+        for (long rawsize : new long [] { 0, 0x80000000L, 0xffffffffL,
+                                          (long) packed.size () * 2000 }) {
+            msg.setRawsize (rawsize);
+            assertNull (compressor.inflate (msg));
+        }
+
+        //  Content that doesn't shrink is sent as is
+        byte [] noise = new byte [1000];
+        new Random ().nextBytes (noise);
+        assertNull (compressor.deflate (new ZFrame (noise)));
+
+        compressor.destroy ();
+    }
+
+    @Test
+    public void
+    testWhisper () throws Exception
+    {
+        String payload = json (500);
+
+        //  Compressed content crosses the wire only between processes
+        ZreInterface inf1 = new ZreInterface ();
+        inf1.setShortcut (false);
+        ZreInterface inf2 = new ZreInterface ();
+        inf2.setShortcut (false);
+        inf1.setCompression (256);
+
+        ZMsg incoming = inf1.recv ();
+        assertEquals ("ENTER", incoming.popString ());
+        String peer = incoming.popString ();
+        incoming = inf2.recv ();
+        assertEquals ("ENTER", incoming.popString ());
+
+        //  Once we hear from the peer we have its HELLO headers
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add (incoming.popString ());
+        outgoing.add ("HELLO");
+        inf2.whisper (outgoing);
+        assertEquals ("WHISPER", inf1.recv ().popString ());
+
+        outgoing = new ZMsg ();
+        outgoing.add (peer);
+        outgoing.add (payload);
+        inf1.whisper (outgoing);
+
+        incoming = inf2.recv ();
+        assertEquals ("WHISPER", incoming.popString ());
+        incoming.popString ();
+        assertEquals (payload, incoming.popString ());
+        assertEquals (1, inf1.compression ().messages ());
+        assertTrue (inf1.compression ().packedBytes () < payload.length ());
+
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+}
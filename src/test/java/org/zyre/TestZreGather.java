@@ -0,0 +1,192 @@
+/*  =========================================================================
+    TestZreGather - scatter-gather test
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+
+
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+public class TestZreGather
+{
+    @Test
+    public void
+    testFirstK ()
+    {
+        ZreGather gather = new ZreGather (1, 2, 1000);
+        gather.expect (Arrays.asList ("A", "B", "C"));
+        assertFalse (gather.reply ("D", new ZFrame ("stranger")));
+        assertFalse (gather.reply ("A", new ZFrame ("one")));
+        assertFalse (gather.reply ("A", new ZFrame ("again")));
+        assertTrue (gather.reply ("C", new ZFrame ("two")));
+        assertTrue (gather.isDone ());
+        assertFalse (gather.expired ());
+
+        ZreGather quorum = new ZreGather (2, ZreGather.QUORUM, 1000);
+        quorum.expect (Arrays.asList ("A", "B", "C"));
+        assertFalse (quorum.lost ("A"));
+        assertTrue (quorum.lost ("B"));
+        assertTrue (quorum.failed ());
+
+        ZreGather empty = new ZreGather (3, ZreGather.ALL, 1000);
+        empty.expect (Arrays.<String> asList ());
+        assertTrue (empty.isDone ());
+    }
+
+    //  Answer next request with our name
+    private static void answer (ZreInterface inf, String name)
+    {
+        answer (inf, "QUERY", name);
+    }
+
+    private static void answer (ZreInterface inf, String group, String name)
+    {
+        while (true) {
+            ZMsg incoming = inf.recv ();
+            if (incoming.popString ().equals ("REQUEST")) {
+                String peer = incoming.popString ();
+                assertEquals (group, incoming.popString ());
+                long correlation = Long.parseLong (incoming.popString ());
+                assertEquals ("PING", incoming.popString ());
+                ZMsg outgoing = new ZMsg ();
+                outgoing.add (name);
+                inf.reply (peer, correlation, outgoing);
+                return;
+            }
+            incoming.destroy ();
+        }
+    }
+
+    @Test
+    public void
+    testScatter () throws Exception
+    {
+        String group = "QUERY";
+        ZreInterface inf1 = new ZreInterface ();
+        ZreInterface inf2 = new ZreInterface ();
+        inf1.join (group);
+        inf2.join (group);
+
+        ZreInterface inf = new ZreInterface ();
+        int joined = 0;
+        while (joined < 2) {
+            ZMsg incoming = inf.recv ();
+            if (incoming.popString ().equals ("JOIN"))
+                joined++;
+            incoming.destroy ();
+        }
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add ("PING");
+        ZreGather gather = inf.scatter (group, outgoing, ZreGather.ALL, 5000);
+        answer (inf1, "ONE");
+        answer (inf2, "TWO");
+        Map <String, ZFrame> replies = gather.get (5, TimeUnit.SECONDS);
+        assertEquals (2, replies.size ());
+        assertFalse (gather.expired ());
+
+        //  When a member doesn't answer we stop waiting at the deadline
+        outgoing = new ZMsg ();
+        outgoing.add ("PING");
+        gather = inf.scatter (group, outgoing, ZreGather.ALL, 500);
+        answer (inf1, "ONE");
+        replies = gather.get (5, TimeUnit.SECONDS);
+        assertTrue (gather.expired ());
+        assertEquals (1, replies.size ());
+        assertEquals ("ONE", replies.values ().iterator ().next ().toString ());
+
+        inf.destroy ();
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
+    @Test
+    public void
+    testRequest () throws Exception
+    {
+        ZreInterface inf1 = new ZreInterface ();
+        ZreInterface inf = new ZreInterface ();
+        String peer = null;
+        while (peer == null) {
+            ZMsg incoming = inf.recv ();
+            if (incoming.popString ().equals ("ENTER"))
+                peer = incoming.popString ();
+            incoming.destroy ();
+        }
+        //  Send more requests than fit the window at once
+        int count = ZrePeer.REQUEST_WINDOW * 2;
+        ZreGather [] requests = new ZreGather [count];
+        for (int index = 0; index < count; index++) {
+            ZMsg outgoing = new ZMsg ();
+            outgoing.add ("PING");
+            requests [index] = inf.request (peer, outgoing, 5000);
+        }
+        for (int index = 0; index < count; index++)
+            answer (inf1, "", "PONG");
+        for (ZreGather request : requests) {
+            Map <String, ZFrame> replies = request.get (5, TimeUnit.SECONDS);
+            assertEquals ("PONG", replies.get (peer).toString ());
+        }
+
+        //  Cancelled requests give up their places in the window
+        for (int index = 0; index < ZrePeer.REQUEST_WINDOW; index++) {
+            ZMsg outgoing = new ZMsg ();
+            outgoing.add ("PING");
+            requests [index] = inf.request (peer, outgoing, 60000);
+        }
+        int arrived = 0;
+        while (arrived < ZrePeer.REQUEST_WINDOW) {
+            ZMsg incoming = inf1.recv ();
+            if (incoming.popString ().equals ("REQUEST"))
+                arrived++;
+            incoming.destroy ();
+        }
+        for (int index = 0; index < ZrePeer.REQUEST_WINDOW; index++)
+            assertTrue (requests [index].cancel (false));
+        ZMsg last = new ZMsg ();
+        last.add ("PING");
+        ZreGather after = inf.request (peer, last, 60000);
+        answer (inf1, "", "PONG");
+        assertEquals ("PONG", after.get (5, TimeUnit.SECONDS).get (peer).toString ());
+        assertTrue (requests [0].isCancelled ());
+
+        //  Requests to peers we don't know fail at once
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add ("PING");
+        ZreGather request = inf.request ("nobody", outgoing, 5000);
+        assertTrue (request.get (1, TimeUnit.SECONDS).isEmpty ());
+        assertTrue (request.failed ());
+
+        inf.destroy ();
+        inf1.destroy ();
+    }
+}
@@ -28,18 +28,40 @@ package org.zyre;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
 import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Poller;
+import org.zeromq.ZMQ.Socket;
 import org.zeromq.ZMsg;
 
 public class TestZreInterface
 {
     
+    //  Most tests here exercise the wire protocol, so their nodes talk
+    //  over TCP even though they share this process
+    private static ZreInterface wired ()
+    {
+        ZreInterface inf = new ZreInterface ();
+        inf.setShortcut (false);
+        return inf;
+    }
+
     private static class ZrePing extends Thread
     {
         @Override
         public void run ()
         {
-            ZreInterface inf = new ZreInterface ();
+            ZreInterface inf = wired ();
             
             while (true) {
                 ZMsg incoming = inf.recv ();
@@ -113,7 +135,7 @@ public class TestZreInterface
         ZrePing ping = new ZrePing ();
         ping.start ();
 
-        ZreInterface inf = new ZreInterface ();
+        ZreInterface inf = wired ();
         
         ZMsg incoming = inf.recv ();
         
@@ -150,7 +172,7 @@ public class TestZreInterface
         ZrePing ping = new ZrePing ();
         ping.start ();
 
-        ZreInterface inf = new ZreInterface ();
+        ZreInterface inf = wired ();
         inf.join (group);
         
         ZMsg incoming = inf.recv ();
@@ -201,7 +223,7 @@ public class TestZreInterface
         ZrePing ping2 = new ZrePing ();
         ping2.start ();
 
-        ZreInterface inf = new ZreInterface ();
+        ZreInterface inf = wired ();
         
         assertEquals ("ENTER", inf.recv ().popString ());
         assertEquals ("ENTER", inf.recv ().popString ());
@@ -229,6 +251,305 @@ public class TestZreInterface
         inf.destroy ();
     }
     
+    @Test
+    public void 
+    testBatching () throws Exception
+    {
+        ZreInterface inf1 = wired ();
+        ZreInterface inf2 = wired ();
+        inf1.setBatching (500, 1024);
+
+        ZMsg incoming = inf1.recv ();
+        assertEquals ("ENTER", incoming.popString ());
+        String peer = incoming.popString ();
+        incoming = inf2.recv ();
+        assertEquals ("ENTER", incoming.popString ());
+
+        //  Once we hear from the peer we know it takes batches
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add (incoming.popString ());
+        outgoing.add ("HELLO");
+        inf2.whisper (outgoing);
+        assertEquals ("WHISPER", inf1.recv ().popString ());
+
+        for (int count = 0; count < 200; count++) {
+            outgoing = new ZMsg ();
+            outgoing.add (peer);
+            outgoing.add (String.valueOf (count));
+            inf1.whisper (outgoing);
+        }
+        for (int count = 0; count < 200; count++) {
+            incoming = inf2.recv ();
+            assertEquals ("WHISPER", incoming.popString ());
+            incoming.popString ();
+            assertEquals (String.valueOf (count), incoming.popString ());
+        }
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
+    @Test
+    public void 
+    testGroupIds () throws Exception
+    {
+        String group = "org.zyre.test.group-ids.with-a-long-namespaced-name";
+        ZreInterface inf1 = wired ();
+        ZreInterface inf2 = wired ();
+        inf2.join (group);
+
+        ZMsg incoming = inf1.recv ();
+        assertEquals ("ENTER", incoming.popString ());
+        String peer = incoming.popString ();
+        incoming = inf1.recv ();
+        assertEquals ("JOIN", incoming.popString ());
+        assertEquals (peer, incoming.popString ());
+
+        //  First shout binds the ID, the rest carry only the ID
+        for (int count = 0; count < 10; count++) {
+            ZMsg outgoing = new ZMsg ();
+            outgoing.add (group);
+            outgoing.add (String.valueOf (count));
+            inf1.shout (outgoing);
+        }
+        assertEquals ("ENTER", inf2.recv ().popString ());
+        for (int count = 0; count < 10; count++) {
+            incoming = inf2.recv ();
+            assertEquals ("SHOUT", incoming.popString ());
+            incoming.popString ();
+            assertEquals (group, incoming.popString ());
+            assertEquals (String.valueOf (count), incoming.popString ());
+        }
+
+        //  Names too long for a command fail on the caller's thread
+        char [] chars = new char [256];
+        Arrays.fill (chars, 'x');
+        String tooLong = new String (chars);
+        try {
+            inf1.join (tooLong);
+            fail ();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            inf1.leaveAll (Arrays.asList (group, tooLong));
+            fail ();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            ZMsg outgoing = new ZMsg ();
+            outgoing.add (tooLong);
+            outgoing.add ("Hello");
+            inf1.shout (outgoing);
+            fail ();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            inf1.setHeader ("X-LONG", "%s", tooLong);
+            fail ();
+        } catch (IllegalArgumentException e) {
+        }
+        //  And the node carries on
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add (group);
+        outgoing.add ("After");
+        inf1.shout (outgoing);
+        incoming = event (inf2, "SHOUT");
+        incoming.popString ();
+        assertEquals (group, incoming.popString ());
+        assertEquals ("After", incoming.popString ());
+
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
+    @Test
+    public void 
+    testMultiFrame () throws Exception
+    {
+        String group = "TEST";
+        ZreInterface inf1 = wired ();
+        ZreInterface inf2 = wired ();
+        inf2.join (group);
+
+        ZMsg incoming = inf1.recv ();
+        assertEquals ("ENTER", incoming.popString ());
+        String peer = incoming.popString ();
+        assertEquals ("JOIN", inf1.recv ().popString ());
+        assertEquals ("ENTER", inf2.recv ().popString ());
+
+        //  Frames after the content are the caller's, traced or not, and
+        //  the agent must not take them for anything of its own
+        for (int oneIn = 0; oneIn < 2; oneIn++) {
+            inf1.setTracing (oneIn);
+            ZMsg outgoing = new ZMsg ();
+            outgoing.add (peer);
+            outgoing.add ("WHISPER " + oneIn);
+            outgoing.add ("not a number");
+            outgoing.add ("12");
+            inf1.whisper (outgoing);
+            outgoing = new ZMsg ();
+            outgoing.add (group);
+            outgoing.add ("SHOUT " + oneIn);
+            outgoing.add ("not a number");
+            outgoing.add ("12");
+            inf1.shout (outgoing);
+
+            incoming = inf2.recv ();
+            assertEquals ("WHISPER", incoming.popString ());
+            incoming.popString ();
+            assertEquals ("WHISPER " + oneIn, incoming.popString ());
+            incoming = inf2.recv ();
+            assertEquals ("SHOUT", incoming.popString ());
+            incoming.popString ();
+            assertEquals (group, incoming.popString ());
+            assertEquals ("SHOUT " + oneIn, incoming.popString ());
+        }
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
+    @Test
+    public void 
+    testManyGroups () throws Exception
+    {
+        //  More groups than a full HELLO can carry, so the peer must
+        //  fetch them after our compact HELLO
+        ZreInterface inf1 = wired ();
+        for (int count = 0; count < 300; count++)
+            inf1.join ("GROUP-" + count);
+
+        ZreInterface inf2 = wired ();
+        ZMsg incoming = inf2.recv ();
+        assertEquals ("ENTER", incoming.popString ());
+        String peer = incoming.popString ();
+
+        Set <String> groups = new HashSet <String> ();
+        while (groups.size () < 300) {
+            incoming = inf2.recv ();
+            assertEquals ("JOIN", incoming.popString ());
+            assertEquals (peer, incoming.popString ());
+            assertTrue (groups.add (incoming.popString ()));
+        }
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
+    @Test
+    public void 
+    testJoinAll () throws Exception
+    {
+        ZreInterface inf1 = wired ();
+        ZreInterface inf2 = wired ();
+
+        assertEquals ("ENTER", inf1.recv ().popString ());
+        ZMsg incoming = inf2.recv ();
+        assertEquals ("ENTER", incoming.popString ());
+        String peer = incoming.popString ();
+
+        //  Once we hear from the peer we know it takes packed groups
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add (peer);
+        outgoing.add ("HELLO");
+        inf2.whisper (outgoing);
+        assertEquals ("WHISPER", inf1.recv ().popString ());
+
+        List <String> groups = new ArrayList <String> ();
+        for (int count = 0; count < 500; count++)
+            groups.add ("GROUP-" + count);
+        inf1.joinAll (groups);
+        inf1.leaveAll (groups);
+        for (String event : new String [] {"JOIN", "LEAVE"}) {
+            for (String group : groups) {
+                incoming = inf2.recv ();
+                assertEquals (event, incoming.popString ());
+                assertEquals (peer, incoming.popString ());
+                assertEquals (group, incoming.popString ());
+            }
+        }
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
+    @Test
+    public void 
+    testHealth () throws Exception
+    {
+        ZreInterface inf1 = wired ();
+        ZreInterface inf2 = wired ();
+
+        ZMsg incoming = inf1.recv ();
+        assertEquals ("ENTER", incoming.popString ());
+        String peer = incoming.popString ();
+        assertEquals (-1, inf1.rtt ("UNKNOWN"), 0);
+
+        //  We ping new peers to measure round-trip time
+        for (int count = 0; count < 50 && inf1.rtt (peer) < 0; count++)
+            Thread.sleep (100);
+        assertTrue (inf1.rtt (peer) >= 0);
+        assertTrue (inf1.rtt (peer) < 1000);
+
+        //  Steady beacons keep suspicion low
+        Thread.sleep (4 * ZreInterface.PING_INTERVAL);
+        assertTrue (inf1.phi (peer) >= 0);
+        assertTrue (inf1.phi (peer) < ZrePeer.PHI_EVASIVE);
+
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
+    //  Count whispers until we have the number expected
+    private static int whispers (ZreInterface inf, int expected)
+    {
+        int count = 0;
+        while (count < expected) {
+            ZMsg incoming = inf.recv ();
+            if (incoming.popString ().equals ("WHISPER"))
+                count++;
+            incoming.destroy ();
+        }
+        return count;
+    }
+
+    @Test
+    public void 
+    testAnycast () throws Exception
+    {
+        String group = "WORKERS";
+        ZreInterface inf1 = wired ();
+        ZreInterface inf2 = wired ();
+        inf1.join (group);
+        inf2.join (group);
+
+        ZreInterface inf = wired ();
+        int joined = 0;
+        while (joined < 2) {
+            ZMsg incoming = inf.recv ();
+            if (incoming.popString ().equals ("JOIN"))
+                joined++;
+            incoming.destroy ();
+        }
+        //  Round robin shares work evenly, other strategies reach someone
+        for (int count = 0; count < 10; count++) {
+            ZMsg outgoing = new ZMsg ();
+            outgoing.add ("JOB");
+            inf.anycast (group, outgoing);
+        }
+        assertEquals (5, whispers (inf1, 5));
+        assertEquals (5, whispers (inf2, 5));
+
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add ("JOB");
+        inf.anycast (group, ZreGroup.LEAST_OUTSTANDING, outgoing);
+        outgoing = new ZMsg ();
+        outgoing.add ("JOB");
+        inf.anycast (group, ZreGroup.LEAST_OUTSTANDING, outgoing);
+        assertEquals (1, whispers (inf1, 1));
+        assertEquals (1, whispers (inf2, 1));
+
+        inf.destroy ();
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
     @Test
     public void 
     testExit () throws Exception
@@ -236,33 +557,549 @@ public class TestZreInterface
         ZrePing ping = new ZrePing ();
         ping.start ();
 
-        ZreInterface inf = new ZreInterface ();
-        
-        ZMsg incoming = inf.recv ();
-        
-        String event = incoming.popString ();
-        assertEquals ("ENTER", event);
-        String peer = incoming.popString ();
-        
-        ZMsg outgoing = new ZMsg();
-        outgoing.add (peer);
-        outgoing.add ("QUIT");
-        inf.whisper (outgoing);
-        
-        outgoing = new ZMsg();
-        outgoing.add (peer);
-        outgoing.add ("QUIT");
-        inf.whisper (outgoing);
+        ZreInterface inf = wired ();
         
-        ping.join ();
+        //  Nodes of earlier tests may still beacon for a moment, so we
+        //  tell each peer that enters to quit until the ping node goes
+        String peer = null;
+        while (ping.isAlive ()) {
+            ZMsg incoming = inf.recv ();
+            
+            String event = incoming.popString ();
+            if (!event.equals ("ENTER"))
+                continue;
+            peer = incoming.popString ();
+            
+            ZMsg outgoing = new ZMsg();
+            outgoing.add (peer);
+            outgoing.add ("QUIT");
+            inf.whisper (outgoing);
+            
+            outgoing = new ZMsg();
+            outgoing.add (peer);
+            outgoing.add ("QUIT");
+            inf.whisper (outgoing);
+            
+            ping.join (1000);
+        }
         
         // will take EXPIRED_PERIOD milliseconds
-        incoming = inf.recv ();
-        
-        event = incoming.popString ();
-        assertEquals ("EXIT", event);
-        assertEquals (peer, incoming.popString ());
+        while (true) {
+            ZMsg incoming = inf.recv ();
+            
+            String event = incoming.popString ();
+            if (event.equals ("EXIT") && peer.equals (incoming.popString ()))
+                break;
+        }
         
         inf.destroy ();
     }
+
+    //  Wait for event of given type from peers
+    private static ZMsg event (ZreInterface inf, String type)
+    {
+        while (true) {
+            ZMsg incoming = inf.recv ();
+            if (incoming.popString ().equals (type))
+                return incoming;
+            incoming.destroy ();
+        }
+    }
+
+    @Test
+    public void 
+    testLeader () throws Exception
+    {
+        String group = "ELECT";
+        ZreInterface inf1 = wired ();
+        ZreInterface inf2 = wired ();
+        inf1.elect (group);
+        inf2.elect (group);
+        event (inf1, "JOIN").destroy ();
+        event (inf2, "JOIN").destroy ();
+
+        //  Both agree on the leader, and only the leader says it leads
+        assertNotNull (inf1.leader (group));
+        assertEquals (inf1.leader (group), inf2.leader (group));
+        assertTrue (inf1.isLeader (group) ^ inf2.isLeader (group));
+
+        //  When the leader leaves, the other member takes over
+        ZreInterface leader = inf1.isLeader (group) ? inf1 : inf2;
+        ZreInterface follower = leader == inf1 ? inf2 : inf1;
+        String old = follower.leader (group);
+        leader.leave (group);
+        ZMsg incoming = event (follower, "LEADER");
+        assertNotEquals (old, incoming.popString ());
+        assertEquals (group, incoming.popString ());
+        assertTrue (follower.isLeader (group));
+
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
+    @Test
+    public void 
+    testTrace () throws Exception
+    {
+        String group = "TRACED";
+        ZreInterface inf1 = wired ();
+        ZreInterface inf2 = wired ();
+        inf1.join (group);
+        inf2.join (group);
+        String sender = null;
+        while (sender == null) {
+            ZMsg incoming = event (inf2, "JOIN");
+            String identity = incoming.popString ();
+            if (group.equals (incoming.popString ()))
+                sender = identity;
+            incoming.destroy ();
+        }
+        event (inf1, "JOIN").destroy ();
+
+        //  Receiver times every stage once PINGs have measured offset
+        inf1.setTracing (1);
+        ZreTrace trace = inf2.tracing ();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            ZMsg outgoing = new ZMsg ();
+            outgoing.add (group);
+            outgoing.add ("Hello");
+            inf1.shout (outgoing);
+            ZMsg incoming = event (inf2, "SHOUT");
+            assertEquals (sender, incoming.popString ());
+            assertEquals (group, incoming.popString ());
+            assertEquals ("Hello", incoming.popString ());
+            incoming.destroy ();
+            ZreTrace.Histogram total = trace.histogram (sender, ZreTrace.TOTAL);
+            if (total != null && total.count () > 0)
+                break;
+            Thread.sleep (100);
+        }
+        for (int stage = ZreTrace.QUEUE; stage <= ZreTrace.TOTAL; stage++)
+            assertTrue (trace.histogram (sender, stage).count () > 0);
+        ZreTrace.Histogram total = trace.histogram (sender, ZreTrace.TOTAL);
+        assertTrue (total.percentile (0.5) <= total.max ());
+        assertTrue (total.max () < 1000000);
+
+        //  Both nodes share one clock, so the offset is small
+        assertTrue (Math.abs (inf2.clockOffset (sender)) < 100000);
+
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
+    @Test
+    public void 
+    testEviction () throws Exception
+    {
+        ZreInterface inf1 = wired ();
+        ZreInterface inf2 = wired ();
+        inf1.setConnections (0, 200);
+        inf2.setConnections (0, 200);
+        inf1.join ("IDLE");
+        inf2.join ("IDLE");
+        String peer2 = null;
+        while (peer2 == null) {
+            ZMsg incoming = event (inf1, "JOIN");
+            String identity = incoming.popString ();
+            if ("IDLE".equals (incoming.popString ()))
+                peer2 = identity;
+            incoming.destroy ();
+        }
+        String peer1 = null;
+        while (peer1 == null) {
+            ZMsg incoming = event (inf2, "JOIN");
+            String identity = incoming.popString ();
+            if ("IDLE".equals (incoming.popString ()))
+                peer1 = identity;
+            incoming.destroy ();
+        }
+
+        //  Once idle, each closes its connection to the other
+        for (int attempt = 0; attempt < 50 && inf1.connected (peer2); attempt++)
+            Thread.sleep (100);
+        assertFalse (inf1.connected (peer2));
+
+        //  Whispers and shouts still get through, over new connections
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add (peer2);
+        outgoing.add ("Hello");
+        inf1.whisper (outgoing);
+        ZMsg incoming = event (inf2, "WHISPER");
+        assertEquals (peer1, incoming.popString ());
+        assertEquals ("Hello", incoming.popString ());
+        incoming.destroy ();
+
+        for (int count = 0; count < 2; count++) {
+            outgoing = new ZMsg ();
+            outgoing.add ("IDLE");
+            outgoing.add ("World");
+            inf2.shout (outgoing);
+            incoming = event (inf1, "SHOUT");
+            assertEquals (peer2, incoming.popString ());
+            assertEquals ("IDLE", incoming.popString ());
+            assertEquals ("World", incoming.popString ());
+            incoming.destroy ();
+        }
+        //  And peers kept their group membership throughout
+        assertTrue (inf2.connected (peer1));
+        Set <String> owners = new HashSet <String> ();
+        for (int key = 0; key < 100; key++)
+            owners.add (inf1.owner ("IDLE", "key-" + key));
+        assertTrue (owners.contains (peer2));
+
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
+    //  Count SHOUT events from sender until none comes for a while
+    private static int shouts (ZreInterface inf, String sender)
+    {
+        Poller poller = new Poller (1);
+        poller.register (inf.handle (), Poller.POLLIN);
+        int count = 0;
+        while (poller.poll (500) > 0) {
+            ZMsg incoming = inf.recv ();
+            if (incoming.popString ().equals ("SHOUT")
+            &&  incoming.popString ().equals (sender))
+                count++;
+            incoming.destroy ();
+        }
+        return count;
+    }
+
+    @Test
+    public void 
+    testRelay () throws Exception
+    {
+        String group = "RELAYED";
+        ZreInterface sender = wired ();
+        ZreInterface [] members = new ZreInterface [4];
+        for (int index = 0; index < members.length; index++) {
+            members [index] = wired ();
+            members [index].join (group);
+        }
+        //  Wait until everyone knows every member, and the sender
+        sender.join ("SENDER");
+        for (int joined = 0; joined < members.length; ) {
+            ZMsg incoming = event (sender, "JOIN");
+            incoming.popString ();
+            if (group.equals (incoming.popString ()))
+                joined++;
+            incoming.destroy ();
+        }
+        String origin = null;
+        for (ZreInterface member : members) {
+            origin = null;
+            int joined = 0;
+            while (origin == null || joined < members.length - 1) {
+                ZMsg incoming = event (member, "JOIN");
+                String identity = incoming.popString ();
+                String name = incoming.popString ();
+                if (group.equals (name))
+                    joined++;
+                else
+                if (name.equals ("SENDER"))
+                    origin = identity;
+                incoming.destroy ();
+            }
+        }
+
+        //  With fan-out of 1 the shout goes down a chain, and each member
+        //  gets it once, from the sender
+        sender.setRelay (group, 1);
+        for (int count = 0; count < 3; count++) {
+            ZMsg outgoing = new ZMsg ();
+            outgoing.add (group);
+            outgoing.add ("Hello");
+            sender.shout (outgoing);
+        }
+        for (ZreInterface member : members)
+            assertEquals (3, shouts (member, origin));
+
+        sender.destroy ();
+        for (ZreInterface member : members)
+            member.destroy ();
+    }
+
+    @Test
+    public void 
+    testMulticast () throws Exception
+    {
+        ZreInterface inf1 = wired ();
+        ZreInterface inf2 = wired ();
+        inf1.setMulticast ("SMALL", true);
+        inf2.setMulticast ("SMALL", true);
+        inf1.join ("SMALL");
+        inf2.join ("SMALL");
+        ZMsg incoming = event (inf1, "JOIN");
+        incoming.destroy ();
+        incoming = event (inf2, "JOIN");
+        String peer1 = incoming.popString ();
+        incoming.destroy ();
+
+        //  Small shouts go by multicast, large ones over TCP as before
+        byte [] large = new byte [ZreMulticast.MTU + 1];
+        for (int count = 0; count < 3; count++) {
+            ZMsg outgoing = new ZMsg ();
+            outgoing.add ("SMALL");
+            outgoing.add ("Hello");
+            inf1.shout (outgoing);
+        }
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add ("SMALL");
+        outgoing.add (large);
+        inf1.shout (outgoing);
+
+        int small = 0;
+        int big = 0;
+        while (small + big < 4) {
+            incoming = event (inf2, "SHOUT");
+            assertEquals (peer1, incoming.popString ());
+            assertEquals ("SMALL", incoming.popString ());
+            if (incoming.peekLast ().size () == large.length)
+                big++;
+            else {
+                assertEquals ("Hello", incoming.popString ());
+                small++;
+            }
+            incoming.destroy ();
+        }
+        assertEquals (3, small);
+        assertEquals (1, big);
+        assertEquals (0, shouts (inf2, peer1));
+
+        //  Once a member doesn't listen, small shouts go over TCP too
+        ZreInterface inf3 = wired ();
+        inf3.join ("SMALL");
+        event (inf1, "JOIN").destroy ();
+        for (int count = 0; count < 3; count++) {
+            outgoing = new ZMsg ();
+            outgoing.add ("SMALL");
+            outgoing.add ("Hello");
+            inf1.shout (outgoing);
+        }
+        assertEquals (3, shouts (inf3, peer1));
+        assertEquals (3, shouts (inf2, peer1));
+
+        inf1.destroy ();
+        inf2.destroy ();
+        inf3.destroy ();
+    }
+
+    @Test
+    public void 
+    testShortcut () throws Exception
+    {
+        ZreInterface inf1 = new ZreInterface ();
+        ZreInterface inf2 = new ZreInterface ();
+        ZreInterface inf3 = new ZreInterface ();
+        inf3.setShortcut (false);
+        inf1.join ("LOCAL");
+        inf2.join ("LOCAL");
+        inf3.join ("LOCAL");
+        Set <String> members = new HashSet <String> ();
+        while (members.size () < 2) {
+            ZMsg incoming = event (inf1, "JOIN");
+            String identity = incoming.popString ();
+            if ("LOCAL".equals (incoming.popString ()))
+                members.add (identity);
+            incoming.destroy ();
+        }
+        //  Nodes in this process talk through memory, unless one opts out
+        int shortcuts = 0;
+        for (String member : members)
+            if (inf1.shortcut (member))
+                shortcuts++;
+        assertEquals (1, shortcuts);
+
+        //  Either way, peers get the same events
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add ("LOCAL");
+        outgoing.add ("Hello");
+        inf1.shout (outgoing);
+        String peer1 = null;
+        for (ZreInterface inf : new ZreInterface [] { inf2, inf3 }) {
+            ZMsg incoming = event (inf, "SHOUT");
+            String sender = incoming.popString ();
+            if (peer1 == null)
+                peer1 = sender;
+            assertEquals (peer1, sender);
+            assertEquals ("LOCAL", incoming.popString ());
+            assertEquals ("Hello", incoming.popString ());
+            incoming.destroy ();
+        }
+        outgoing = new ZMsg ();
+        outgoing.add (peer1);
+        outgoing.add ("World");
+        inf2.whisper (outgoing);
+        assertTrue (inf2.shortcut (peer1));
+        ZMsg incoming = event (inf1, "WHISPER");
+        incoming.popString ();
+        assertEquals ("World", incoming.popString ());
+        incoming.destroy ();
+
+        inf1.destroy ();
+        inf2.destroy ();
+        inf3.destroy ();
+    }
+
+    //  Peer that speaks ZRE on raw sockets, so we see which socket each
+    //  command comes in on. It announces a control lane if asked to.
+    private static class RawPeer
+    {
+        private final ZContext ctx;
+        private final ZreUdp udp;
+        private final UUID uuid;
+        private final String identity;
+        private final Socket inbox;         //  Gets commands in order
+        private final Socket control;       //  Gets heartbeats, or null
+        private final int port;
+        private int controlPort;
+        private Socket mailbox;             //  To node's inbox
+        private Socket lane;                //  To node's control lane
+        private int sequence;
+
+        private RawPeer (boolean laned)
+        {
+            ctx = new ZContext ();
+            udp = new ZreUdp (ZreInterface.PING_PORT_NUMBER);
+            uuid = UUID.randomUUID ();
+            identity = uuid.toString ().replace ("-", "").toUpperCase ();
+            inbox = ctx.createSocket (ZMQ.ROUTER);
+            port = inbox.bindToRandomPort ("tcp://*", 0xc000, 0xffff);
+            if (laned) {
+                control = ctx.createSocket (ZMQ.ROUTER);
+                controlPort = control.bindToRandomPort ("tcp://*", 0xc000, 0xffff);
+            }
+            else
+                control = null;
+        }
+
+        private void destroy ()
+        {
+            ctx.destroy ();
+            udp.destroy ();
+        }
+
+        //  Beacon until the node says HELLO, then say HELLO back
+        private void handshake () throws Exception
+        {
+            while (true) {
+                udp.send (new ZreInterface.Beacon (uuid, port).getBuffer ());
+                ZreMsg hello = recv (inbox, 500);
+                if (hello == null)
+                    continue;
+                assertEquals (ZreMsg.HELLO, hello.id ());
+                String endpoint = hello.ipaddress () + ":";
+                mailbox = socket ("tcp://" + endpoint + hello.mailbox ());
+                Map <String, String> headers = new HashMap <String, String> ();
+                if (control != null) {
+                    headers.put (ZrePeer.CONTROL_HEADER, String.valueOf (controlPort));
+                    lane = socket ("tcp://" + endpoint
+                                   + hello.headers ().get (ZrePeer.CONTROL_HEADER));
+                }
+                ZreMsg reply = new ZreMsg (ZreMsg.HELLO);
+                reply.setIpaddress (udp.host ());
+                reply.setMailbox (port);
+                reply.setGroups (new ArrayList <String> ());
+                reply.setHeaders (headers);
+                send (reply);
+                hello.destroy ();
+                return;
+            }
+        }
+
+        private Socket socket (String endpoint)
+        {
+            Socket socket = ctx.createSocket (ZMQ.DEALER);
+            socket.setIdentity (identity.getBytes ());
+            socket.connect (endpoint);
+            return socket;
+        }
+
+        //  Send command in order with data
+        private void send (ZreMsg msg)
+        {
+            msg.setSequence (++sequence);
+            assertTrue (msg.send (mailbox));
+        }
+
+        //  Send heartbeat on the node's control lane
+        private void sendControl (ZreMsg msg)
+        {
+            msg.setSequence (0);
+            assertTrue (msg.send (lane));
+        }
+
+        //  Return next command of type from socket, or null on timeout;
+        //  we keep beaconing meanwhile so the node doesn't expire us
+        private ZreMsg recv (Socket socket, int id, long timeout) throws Exception
+        {
+            long deadline = System.currentTimeMillis () + timeout;
+            for (long left = timeout; left > 0; left = deadline - System.currentTimeMillis ()) {
+                udp.send (new ZreInterface.Beacon (uuid, port).getBuffer ());
+                ZreMsg msg = recv (socket, Math.min (left, 500));
+                if (msg != null && msg.id () == id)
+                    return msg;
+                if (msg != null)
+                    msg.destroy ();
+            }
+            return null;
+        }
+
+        private ZreMsg recv (Socket socket, long timeout)
+        {
+            Poller poller = new Poller (1);
+            poller.register (socket, Poller.POLLIN);
+            if (poller.poll (timeout) > 0)
+                return ZreMsg.recv (socket);
+            return null;
+        }
+    }
+
+    @Test
+    public void 
+    testControlLane () throws Exception
+    {
+        //  Node probes each peer every five seconds, so wait for longer
+        final long PING_WAIT = 12000;
+        ZreInterface inf = wired ();
+        RawPeer laned = new RawPeer (true);
+        RawPeer plain = new RawPeer (false);
+        try {
+            laned.handshake ();
+            plain.handshake ();
+
+            //  Fill the laned peer's mailbox, which it never reads; the node
+            //  still pings it, and answers its pings, on the control lane
+            byte [] bulk = new byte [64 * 1024];
+            for (int count = 0; count < 256; count++) {
+                ZMsg outgoing = new ZMsg ();
+                outgoing.add (laned.identity);
+                outgoing.add (bulk);
+                inf.whisper (outgoing);
+            }
+            ZreMsg ping = laned.recv (laned.control, ZreMsg.PING, PING_WAIT);
+            assertNotNull (ping);
+            ping.destroy ();
+            laned.sendControl (new ZreMsg (ZreMsg.PING));
+            ZreMsg pingOK = laned.recv (laned.control, ZreMsg.PING_OK, PING_WAIT);
+            assertNotNull (pingOK);
+            pingOK.destroy ();
+
+            //  A peer without a control lane gets heartbeats with its data
+            ping = plain.recv (plain.inbox, ZreMsg.PING, PING_WAIT);
+            assertNotNull (ping);
+            ping.destroy ();
+            plain.send (new ZreMsg (ZreMsg.PING));
+            pingOK = plain.recv (plain.inbox, ZreMsg.PING_OK, PING_WAIT);
+            assertNotNull (pingOK);
+            pingOK.destroy ();
+        }
+        finally {
+            inf.destroy ();
+            laned.destroy ();
+            plain.destroy ();
+        }
+    }
 }
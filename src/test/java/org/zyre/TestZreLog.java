@@ -0,0 +1,226 @@
+/*  =========================================================================
+    TestZreLog - async log publisher test
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Poller;
+import org.zeromq.ZMQ.Socket;
+
+public class TestZreLog
+{
+    @Test
+    public void
+    testPublish ()
+    {
+        ZContext ctx = new ZContext ();
+        Socket collector = ctx.createSocket (ZMQ.SUB);
+        collector.subscribe ("".getBytes ());
+        int port = collector.bindToRandomPort ("tcp://127.0.0.1");
+
+        ZreLog log = new ZreLog ("127.0.0.1:5670");
+        log.connect (String.format ("tcp://127.0.0.1:%d", port));
+
+        //  Publisher connects in the background, so repeat until heard
+        Poller poller = new Poller (1);
+        poller.register (collector, Poller.POLLIN);
+        ZreLogMsg msg = null;
+        for (int attempt = 0; attempt < 50 && msg == null; attempt++) {
+            log.info (ZreLogMsg.ZRE_LOG_MSG_EVENT_JOIN, null, "GLOBAL");
+            if (poller.poll (100) > 0)
+                msg = ZreLogMsg.recv (collector);
+        }
+        assertNotNull (msg);
+        assertEquals (ZreLogMsg.ZRE_LOG_MSG_LEVEL_INFO, msg.level ());
+        assertEquals (ZreLogMsg.ZRE_LOG_MSG_EVENT_JOIN, msg.event ());
+        assertEquals ("GLOBAL", msg.data ());
+        msg.destroy ();
+        while (poller.poll (200) > 0)
+            ZreLogMsg.recv (collector).destroy ();
+
+        //  Events go out in the order we record them
+        for (int count = 0; count < 100; count++)
+            log.info (ZreLogMsg.ZRE_LOG_MSG_EVENT_ENTER, "peer", String.valueOf (count));
+        for (int count = 0; count < 100; count++) {
+            assertTrue (poller.poll (1000) > 0);
+            msg = ZreLogMsg.recv (collector);
+            assertEquals ("peer".hashCode () & 0xffff, msg.peer ());
+            assertEquals (String.valueOf (count), msg.data ());
+            msg.destroy ();
+        }
+        assertEquals (0, log.dropped ());
+
+        log.destroy ();
+        ctx.destroy ();
+    }
+
+    @Test
+    public void
+    testCollector ()
+    {
+        ZContext ctx = new ZContext ();
+        Socket collector = ctx.createSocket (ZMQ.SUB);
+        collector.subscribe ("".getBytes ());
+        int port = collector.bindToRandomPort ("tcp://127.0.0.1");
+        ZreInterface logger = new ZreInterface ();
+        logger.setHeader (ZreLog.COLLECTOR_HEADER, "tcp://127.0.0.1:%d", port);
+
+        //  A node wires its log to the collector once it sees the header
+        ZreInterface inf = new ZreInterface ();
+        Poller poller = new Poller (1);
+        poller.register (collector, Poller.POLLIN);
+        ZreLogMsg msg = null;
+        for (int attempt = 0; attempt < 50 && msg == null; attempt++) {
+            inf.join ("LOGGED");
+            inf.leave ("LOGGED");
+            while (msg == null && poller.poll (100) > 0) {
+                msg = ZreLogMsg.recv (collector);
+                if (!"LOGGED".equals (msg.data ())) {
+                    msg.destroy ();
+                    msg = null;
+                }
+            }
+        }
+        assertNotNull (msg);
+        msg.destroy ();
+
+        //  Callers can't name a level we don't have
+        for (int level : new int [] { -1, 0, ZreLogMsg.ZRE_LOG_MSG_LEVEL_INFO + 1 }) {
+            try {
+                inf.setLogLimits (level, 1, 0);
+                fail ();
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        inf.setLogLimits (ZreLogMsg.ZRE_LOG_MSG_LEVEL_INFO, 1, 0);
+
+        inf.destroy ();
+        logger.destroy ();
+        ctx.destroy ();
+    }
+
+    @Test
+    public void
+    testStats ()
+    {
+        ZContext ctx = new ZContext ();
+        Socket collector = ctx.createSocket (ZMQ.SUB);
+        collector.subscribe (ZreLog.statsTopic ());
+        int port = collector.bindToRandomPort ("tcp://127.0.0.1");
+
+        ZreLog log = new ZreLog ("127.0.0.1:5670");
+        log.connect (String.format ("tcp://127.0.0.1:%d", port));
+        Poller poller = new Poller (1);
+        poller.register (collector, Poller.POLLIN);
+
+        //  We get STATS reports, stamped with node, and no LOG events
+        ZreLogMsg msg = null;
+        for (int attempt = 0; attempt < 50 && msg == null; attempt++) {
+            log.info (ZreLogMsg.ZRE_LOG_MSG_EVENT_JOIN, null, "GLOBAL");
+            ZreLogMsg stats = new ZreLogMsg (ZreLogMsg.STATS);
+            stats.setPeers (3);
+            stats.setMsgsin (1000);
+            stats.appendGroups ("GLOBAL");
+            log.stats (stats);
+            if (poller.poll (100) > 0)
+                msg = ZreLogMsg.recv (collector);
+        }
+        assertNotNull (msg);
+        assertEquals (ZreLogMsg.STATS, msg.id ());
+        assertEquals (log.node (), msg.node ());
+        assertEquals (3, msg.peers ());
+        assertEquals (1000, msg.msgsin ());
+        assertEquals ("GLOBAL", msg.groups ().get (0));
+        assertTrue (msg.time () > 0);
+        msg.destroy ();
+
+        log.destroy ();
+        ctx.destroy ();
+    }
+
+    //  Count LOG messages until none comes for a while
+    private static int drain (Socket collector)
+    {
+        Poller poller = new Poller (1);
+        poller.register (collector, Poller.POLLIN);
+        int count = 0;
+        while (poller.poll (300) > 0) {
+            ZreLogMsg.recv (collector).destroy ();
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void
+    testLimits ()
+    {
+        ZContext ctx = new ZContext ();
+        Socket collector = ctx.createSocket (ZMQ.SUB);
+        collector.subscribe (ZreLog.topic (ZreLogMsg.ZRE_LOG_MSG_LEVEL_WARNING, -1, -1));
+        int port = collector.bindToRandomPort ("tcp://127.0.0.1");
+
+        ZreLog log = new ZreLog ("127.0.0.1:5670");
+        log.connect (String.format ("tcp://127.0.0.1:%d", port));
+        Poller poller = new Poller (1);
+        poller.register (collector, Poller.POLLIN);
+        boolean heard = false;
+        for (int attempt = 0; attempt < 50 && !heard; attempt++) {
+            log.warning (ZreLogMsg.ZRE_LOG_MSG_EVENT_EXIT, null, "");
+            heard = poller.poll (100) > 0;
+        }
+        assertTrue (heard);
+        drain (collector);
+
+        //  We get only the level we subscribed to
+        for (int count = 0; count < 10; count++) {
+            log.info (ZreLogMsg.ZRE_LOG_MSG_EVENT_JOIN, null, "");
+            log.warning (ZreLogMsg.ZRE_LOG_MSG_EVENT_EXIT, null, "");
+        }
+        assertEquals (10, drain (collector));
+
+        //  Sampling keeps one in so many
+        log.setSampling (ZreLogMsg.ZRE_LOG_MSG_LEVEL_WARNING, 5);
+        for (int count = 0; count < 100; count++)
+            log.warning (ZreLogMsg.ZRE_LOG_MSG_EVENT_EXIT, null, "");
+        assertEquals (20, drain (collector));
+
+        //  Rate limit allows a second's worth at once, then no more
+        log.setSampling (ZreLogMsg.ZRE_LOG_MSG_LEVEL_WARNING, 1);
+        log.setRate (ZreLogMsg.ZRE_LOG_MSG_LEVEL_WARNING, 10);
+        for (int count = 0; count < 100; count++)
+            log.warning (ZreLogMsg.ZRE_LOG_MSG_EVENT_EXIT, null, "");
+        int sent = drain (collector);
+        assertTrue (sent >= 10 && sent <= 12);
+
+        log.destroy ();
+        ctx.destroy ();
+    }
+}
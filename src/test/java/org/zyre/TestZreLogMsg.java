@@ -41,7 +41,7 @@ public class TestZreLogMsg
         self.setNode ((byte) 123);
         self.setPeer ((byte) 123);
         self.setTime ((byte) 123);
-        self.setData ("Life is short but Now lasts for ever");
+        self.setData ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
         self.send (output);
     
         self = ZreLogMsg.recv (input);
@@ -51,7 +51,37 @@ public class TestZreLogMsg
         assertEquals (self.node (), 123);
         assertEquals (self.peer (), 123);
         assertEquals (self.time (), 123);
-        assertEquals (self.data (), "Life is short but Now lasts for ever");
+        assertEquals (self.data (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.destroy ();
+
+        self = new ZreLogMsg (ZreLogMsg.STATS);
+        self.setNode ((byte) 123);
+        self.setTime ((byte) 123);
+        self.setPeers ((byte) 123);
+        self.setMsgsin ((byte) 123);
+        self.setBytesin ((byte) 123);
+        self.setMsgsout ((byte) 123);
+        self.setBytesout ((byte) 123);
+        self.setDrops ((byte) 123);
+        self.setLag ((byte) 123);
+        self.appendGroups ("Name: %s", "Brutus");
+        self.appendGroups ("Age: %d", 43);
+        self.send (output);
+    
+        self = ZreLogMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.node (), 123);
+        assertEquals (self.time (), 123);
+        assertEquals (self.peers (), 123);
+        assertEquals (self.msgsin (), 123);
+        assertEquals (self.bytesin (), 123);
+        assertEquals (self.msgsout (), 123);
+        assertEquals (self.bytesout (), 123);
+        assertEquals (self.drops (), 123);
+        assertEquals (self.lag (), 123);
+        assertEquals (self.groups ().size (), 2);
+        assertEquals (self.groups ().get (0), "Name: Brutus");
+        assertEquals (self.groups ().get (1), "Age: 43");
         self.destroy ();
 
         ctx.destroy ();
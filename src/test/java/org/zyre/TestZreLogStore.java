@@ -0,0 +1,108 @@
+/*  =========================================================================
+    TestZreLogStore - log store test
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TestZreLogStore
+{
+    private static void delete (File file)
+    {
+        File [] files = file.listFiles ();
+        if (files != null)
+            for (File child : files)
+                delete (child);
+        file.delete ();
+    }
+
+    //  Append events with times from..to, swapping each pair so that times
+    //  are not quite in order, as from nodes with different clocks
+    private static void append (ZreLogStore store, int from, int to) throws Exception
+    {
+        ByteBuffer buffer = ByteBuffer.allocate (ZreLogStore.RECORD_MAX);
+        for (int count = from; count < to; count++) {
+            ZreLogMsg msg = new ZreLogMsg (ZreLogMsg.LOG);
+            msg.setLevel (ZreLogMsg.ZRE_LOG_MSG_LEVEL_INFO);
+            msg.setEvent (ZreLogMsg.ZRE_LOG_MSG_EVENT_JOIN);
+            msg.setTime (count % 2 == 0 ? count + 1 : count - 1);
+            msg.setData ("event " + count);
+            buffer.clear ();
+            int size = msg.encode (buffer);
+            assertTrue (store.append (buffer.array (), size));
+            msg.destroy ();
+        }
+    }
+
+    private static int count (ZreLogStore.Cursor cursor, long since) throws Exception
+    {
+        int count = 0;
+        ZreLogMsg msg;
+        while ((msg = cursor.next ()) != null) {
+            assertTrue (msg.time () >= since);
+            msg.destroy ();
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void
+    testStore () throws Exception
+    {
+        File directory = new File (System.getProperty ("java.io.tmpdir"),
+                                   "zre-log-store-" + System.nanoTime ());
+        //  Small segments so that we roll over many times
+        ZreLogStore store = new ZreLogStore (directory, 16 * 1024);
+        append (store, 0, 2000);
+        assertFalse (store.append (new byte [4], 4));
+        store.flush ();
+        assertTrue (directory.list ().length > 2);
+
+        ZreLogStore.Cursor all = new ZreLogStore.Cursor (directory, Long.MIN_VALUE);
+        ZreLogMsg first = all.next ();
+        assertEquals ("event 0", first.data ());
+        first.destroy ();
+        assertEquals (1999, count (all, Long.MIN_VALUE));
+        assertEquals (500, count (new ZreLogStore.Cursor (directory, 1500), 1500));
+
+        //  After a restart we carry on where we left off, and readers that
+        //  caught up see new events
+        store.destroy ();
+        store = new ZreLogStore (directory, 16 * 1024);
+        append (store, 2000, 2100);
+        assertEquals (100, count (all, Long.MIN_VALUE));
+        assertEquals (600, count (new ZreLogStore.Cursor (directory, 1500), 1500));
+        store.destroy ();
+
+        delete (directory);
+    }
+}
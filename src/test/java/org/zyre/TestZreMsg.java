@@ -37,7 +37,7 @@ public class TestZreMsg
 
         self = new ZreMsg (ZreMsg.HELLO);
         self.setSequence ((byte) 123);
-        self.setIpaddress ("Life is short but Now lasts for ever");
+        self.setIpaddress ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
         self.setMailbox ((byte) 123);
         self.appendGroups ("Name: %s", "Brutus");
         self.appendGroups ("Age: %d", 43);
@@ -49,7 +49,7 @@ public class TestZreMsg
         self = ZreMsg.recv (input);
         assert (self != null);
         assertEquals (self.sequence (), 123);
-        assertEquals (self.ipaddress (), "Life is short but Now lasts for ever");
+        assertEquals (self.ipaddress (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
         assertEquals (self.mailbox (), 123);
         assertEquals (self.groups ().size (), 2);
         assertEquals (self.groups ().get (0), "Name: Brutus");
@@ -73,40 +73,40 @@ public class TestZreMsg
 
         self = new ZreMsg (ZreMsg.SHOUT);
         self.setSequence ((byte) 123);
-        self.setGroup ("Life is short but Now lasts for ever");
+        self.setGroup ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
         self.setContent (new ZFrame ("Captcha Diem"));
         self.send (output);
     
         self = ZreMsg.recv (input);
         assert (self != null);
         assertEquals (self.sequence (), 123);
-        assertEquals (self.group (), "Life is short but Now lasts for ever");
+        assertEquals (self.group (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
         assertTrue (self.content ().streq ("Captcha Diem"));
         self.destroy ();
 
         self = new ZreMsg (ZreMsg.JOIN);
         self.setSequence ((byte) 123);
-        self.setGroup ("Life is short but Now lasts for ever");
+        self.setGroup ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
         self.setStatus ((byte) 123);
         self.send (output);
     
         self = ZreMsg.recv (input);
         assert (self != null);
         assertEquals (self.sequence (), 123);
-        assertEquals (self.group (), "Life is short but Now lasts for ever");
+        assertEquals (self.group (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
         assertEquals (self.status (), 123);
         self.destroy ();
 
         self = new ZreMsg (ZreMsg.LEAVE);
         self.setSequence ((byte) 123);
-        self.setGroup ("Life is short but Now lasts for ever");
+        self.setGroup ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
         self.setStatus ((byte) 123);
         self.send (output);
     
         self = ZreMsg.recv (input);
         assert (self != null);
         assertEquals (self.sequence (), 123);
-        assertEquals (self.group (), "Life is short but Now lasts for ever");
+        assertEquals (self.group (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
         assertEquals (self.status (), 123);
         self.destroy ();
 
@@ -128,6 +128,293 @@ public class TestZreMsg
         assertEquals (self.sequence (), 123);
         self.destroy ();
 
+        self = new ZreMsg (ZreMsg.OFFER);
+        self.setSequence ((byte) 123);
+        self.setGroup ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setName ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setFilesize ((byte) 123);
+        self.setChunks (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.group (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.name (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.filesize (), 123);
+        assertTrue (self.chunks ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.HAVE);
+        self.setSequence ((byte) 123);
+        self.setName ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setIndex ((byte) 123);
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.name (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.index (), 123);
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.FETCH);
+        self.setSequence ((byte) 123);
+        self.setName ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setIndex ((byte) 123);
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.name (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.index (), 123);
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.CHUNK);
+        self.setSequence ((byte) 123);
+        self.setName ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setIndex ((byte) 123);
+        self.setContent (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.name (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.index (), 123);
+        assertTrue (self.content ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.COMPRESSED);
+        self.setSequence ((byte) 123);
+        self.setGroup ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setEncoding ((byte) 123);
+        self.setRawsize ((byte) 123);
+        self.setContent (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.group (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.encoding (), 123);
+        assertEquals (self.rawsize (), 123);
+        assertTrue (self.content ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.BATCH);
+        self.setSequence ((byte) 123);
+        self.setContent (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertTrue (self.content ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.BIND);
+        self.setSequence ((byte) 123);
+        self.setGroup ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setGroupid ((byte) 123);
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.group (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.groupid (), 123);
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.SHOUT_ID);
+        self.setSequence ((byte) 123);
+        self.setGroupid ((byte) 123);
+        self.setContent (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.groupid (), 123);
+        assertTrue (self.content ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.GET_GROUPS);
+        self.setSequence ((byte) 123);
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.GROUPS);
+        self.setSequence ((byte) 123);
+        self.setStatus ((byte) 123);
+        self.setContent (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.status (), 123);
+        assertTrue (self.content ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.JOIN_MANY);
+        self.setSequence ((byte) 123);
+        self.setStatus ((byte) 123);
+        self.setContent (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.status (), 123);
+        assertTrue (self.content ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.LEAVE_MANY);
+        self.setSequence ((byte) 123);
+        self.setStatus ((byte) 123);
+        self.setContent (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.status (), 123);
+        assertTrue (self.content ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.REQUEST);
+        self.setSequence ((byte) 123);
+        self.setGroup ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setCorrelation ((byte) 123);
+        self.setContent (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.group (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.correlation (), 123);
+        assertTrue (self.content ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.REPLY);
+        self.setSequence ((byte) 123);
+        self.setCorrelation ((byte) 123);
+        self.setContent (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.correlation (), 123);
+        assertTrue (self.content ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.CREDIT);
+        self.setSequence ((byte) 123);
+        self.setGroup ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setCredit ((byte) 123);
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.group (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.credit (), 123);
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.JOB);
+        self.setSequence ((byte) 123);
+        self.setGroup ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setContent (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.group (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertTrue (self.content ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.TRACE);
+        self.setSequence ((byte) 123);
+        self.setApi ((byte) 123);
+        self.setDequeue ((byte) 123);
+        self.setSent ((byte) 123);
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.api (), 123);
+        assertEquals (self.dequeue (), 123);
+        assertEquals (self.sent (), 123);
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.RELAY);
+        self.setSequence ((byte) 123);
+        self.setGroup ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setOrigin ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setLimit ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setFanout ((byte) 123);
+        self.setContent (new ZFrame ("Captcha Diem"));
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.group (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.origin (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.limit (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.fanout (), 123);
+        assertTrue (self.content ().streq ("Captcha Diem"));
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.TIMED_PING);
+        self.setSequence ((byte) 123);
+        self.setStamp ((byte) 123);
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.stamp (), 123);
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.TIMED_PING_OK);
+        self.setSequence ((byte) 123);
+        self.setStamp ((byte) 123);
+        self.setReceived ((byte) 123);
+        self.setSent ((byte) 123);
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.stamp (), 123);
+        assertEquals (self.received (), 123);
+        assertEquals (self.sent (), 123);
+        self.destroy ();
+
+        self = new ZreMsg (ZreMsg.LISTEN);
+        self.setSequence ((byte) 123);
+        self.setGroup ("Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        self.setListening ((byte) 123);
+        self.send (output);
+    
+        self = ZreMsg.recv (input);
+        assert (self != null);
+        assertEquals (self.sequence (), 123);
+        assertEquals (self.group (), "Life is short but Now lasts for ever, \u00e9t\u00e9 \u2603");
+        assertEquals (self.listening (), 123);
+        self.destroy ();
+
         ctx.destroy ();
         System.out.printf ("OK\n");
     }
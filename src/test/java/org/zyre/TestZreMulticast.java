@@ -0,0 +1,122 @@
+/*  =========================================================================
+    TestZreRing - consistent-hash ring test
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.zeromq.ZMsg;
+
+public class TestZreMulticast
+{
+    private static final int PORT = 19993;
+
+    //  Receive next shout on b, letting a answer NAKs meanwhile
+    private static ZMsg recv (ZreMulticast a, ZreMulticast b) throws Exception
+    {
+        for (int attempt = 0; attempt < 200; attempt++) {
+            a.recv ();
+            ZMsg msg = b.recv ();
+            if (msg != null)
+                return msg;
+            Thread.sleep (10);
+        }
+        return null;
+    }
+
+    private static void check (ZMsg msg, String content)
+    {
+        assertNotNull (msg);
+        assertEquals ("A", msg.popString ());
+        assertEquals ("GROUP", msg.popString ());
+        assertEquals (content, msg.popString ());
+        msg.destroy ();
+    }
+
+    @Test
+    public void
+    testRepair () throws Exception
+    {
+        //  Works on loopback, so test doesn't need a network
+        ZreMulticast a = new ZreMulticast ("A", PORT, "127.0.0.1");
+        ZreMulticast b = new ZreMulticast ("B", PORT, "127.0.0.1");
+        b.join ("GROUP");
+
+        assertTrue (a.send ("GROUP", "one".getBytes ()));
+        check (recv (a, b), "one");
+        assertFalse (a.send ("GROUP", new byte [ZreMulticast.MTU + 1]));
+
+        //  Packet b doesn't hear is repaired once b sees the gap
+        a.send ("GROUP", "two".getBytes ());
+        Thread.sleep (100);
+        assertNotNull (b.handle ().receive (ByteBuffer.allocate (2048)));
+        a.send ("GROUP", "three".getBytes ());
+        check (recv (a, b), "three");
+        check (recv (a, b), "two");
+        assertEquals (1, a.repaired ());
+
+        //  Nothing comes twice
+        b.repair ();
+        assertNull (recv (a, b));
+
+        a.destroy ();
+        b.destroy ();
+    }
+
+    @Test
+    public void
+    testGroups () throws Exception
+    {
+        //  "Aa" and "BB" hash alike, so they share an address
+        assertEquals (ZreMulticast.address ("Aa"), ZreMulticast.address ("BB"));
+        ZreMulticast a = new ZreMulticast ("A", PORT, "127.0.0.1");
+        ZreMulticast b = new ZreMulticast ("B", PORT, "127.0.0.1");
+        b.join ("Aa");
+
+        //  Shouts to a group b doesn't listen to are no gap in the other
+        a.send ("Aa", "one".getBytes ());
+        for (int count = 0; count < 3; count++)
+            a.send ("BB", "other".getBytes ());
+        a.send ("Aa", "two".getBytes ());
+        for (String content : new String [] {"one", "two"}) {
+            ZMsg msg = recv (a, b);
+            assertNotNull (msg);
+            assertEquals ("A", msg.popString ());
+            assertEquals ("Aa", msg.popString ());
+            assertEquals (content, msg.popString ());
+            msg.destroy ();
+        }
+        b.repair ();
+        assertNull (recv (a, b));
+        assertEquals (0, a.repaired ());
+
+        a.destroy ();
+        b.destroy ();
+    }
+}
@@ -0,0 +1,125 @@
+/*  =========================================================================
+    TestZreQueue - credit-based work queue test
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.zeromq.ZMQ.Poller;
+import org.zeromq.ZMsg;
+
+public class TestZreQueue
+{
+    //  Collect producers of JOB events until none comes for a while
+    private static List <String> jobs (ZreInterface worker, long wait)
+    {
+        List <String> producers = new ArrayList <String> ();
+        Poller poller = new Poller (1);
+        poller.register (worker.handle (), Poller.POLLIN);
+        while (poller.poll (wait) > 0) {
+            ZMsg incoming = worker.recv ();
+            if (incoming.popString ().equals ("JOB")) {
+                producers.add (incoming.popString ());
+                assertEquals ("WORK", incoming.popString ());
+                assertEquals ("JOB", incoming.popString ());
+            }
+            incoming.destroy ();
+        }
+        return producers;
+    }
+
+    @Test
+    public void
+    testCredit () throws Exception
+    {
+        String group = "WORK";
+        ZreInterface slow = new ZreInterface ();
+        ZreInterface fast = new ZreInterface ();
+        slow.serve (group, 1);
+        fast.serve (group, 3);
+
+        ZreInterface producer = new ZreInterface ();
+        int joined = 0;
+        while (joined < 2) {
+            ZMsg incoming = producer.recv ();
+            if (incoming.popString ().equals ("JOIN"))
+                joined++;
+            incoming.destroy ();
+        }
+        for (int index = 0; index < 8; index++) {
+            ZMsg outgoing = new ZMsg ();
+            outgoing.add ("JOB");
+            producer.push (group, outgoing);
+        }
+        //  Workers get no more jobs than they gave credit for
+        List <String> slowJobs = jobs (slow, 500);
+        List <String> fastJobs = jobs (fast, 500);
+        assertEquals (1, slowJobs.size ());
+        assertEquals (3, fastJobs.size ());
+        String producerId = slowJobs.get (0);
+
+        //  Each finished job brings another, until all are done
+        int finished = 0;
+        while (finished < 8) {
+            for (String peer : slowJobs)
+                slow.done (peer, group);
+            for (String peer : fastJobs)
+                fast.done (peer, group);
+            finished += slowJobs.size () + fastJobs.size ();
+            slowJobs = jobs (slow, 500);
+            fastJobs = jobs (fast, 500);
+            assertTrue (slowJobs.size () <= 1);
+            assertTrue (fastJobs.size () <= 3);
+        }
+        assertEquals (8, finished);
+
+        //  A worker that left gets no jobs, even if it gives credit
+        slow.leave (group);
+        while (true) {
+            ZMsg incoming = producer.recv ();
+            boolean left = incoming.popString ().equals ("LEAVE");
+            incoming.destroy ();
+            if (left)
+                break;
+        }
+        slow.done (producerId, group);
+        for (int index = 0; index < 4; index++) {
+            ZMsg outgoing = new ZMsg ();
+            outgoing.add ("JOB");
+            producer.push (group, outgoing);
+        }
+        assertEquals (0, jobs (slow, 500).size ());
+        assertEquals (3, jobs (fast, 500).size ());
+
+        producer.destroy ();
+        slow.destroy ();
+        fast.destroy ();
+    }
+}
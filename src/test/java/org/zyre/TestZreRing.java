@@ -0,0 +1,203 @@
+/*  =========================================================================
+    TestZreRing - consistent-hash ring test
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+
+
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.zeromq.ZMQ.Poller;
+import org.zeromq.ZMsg;
+
+public class TestZreRing
+{
+    private static final int KEYS = 10000;
+
+    @Test
+    public void
+    testOwners ()
+    {
+        ZreRing ring = new ZreRing (ZreRing.REPLICAS);
+        assertNull (ring.owner ("key"));
+        for (String identity : new String [] {"A", "B", "C", "D"})
+            ring.add (identity);
+
+        //  Keys spread over all members
+        Map <String, String> owners = new HashMap <String, String> ();
+        Map <String, Integer> counts = new HashMap <String, Integer> ();
+        for (int key = 0; key < KEYS; key++) {
+            String owner = ring.owner ("key-" + key);
+            owners.put ("key-" + key, owner);
+            Integer count = counts.get (owner);
+            counts.put (owner, count == null ? 1 : count + 1);
+        }
+        assertEquals (4, counts.size ());
+        for (int count : counts.values ())
+            assertTrue (count > KEYS / 8);
+
+        //  Only keys of the member that left change owner
+        ring.remove ("C");
+        for (Map.Entry <String, String> entry : owners.entrySet ()) {
+            String owner = ring.owner (entry.getKey ());
+            if (entry.getValue ().equals ("C"))
+                assertFalse (owner.equals ("C"));
+            else
+                assertEquals (entry.getValue (), owner);
+        }
+        //  And they come back when it joins again
+        ring.add ("C");
+        for (Map.Entry <String, String> entry : owners.entrySet ())
+            assertEquals (entry.getValue (), ring.owner (entry.getKey ()));
+
+        ring.setReplicas (10, Arrays.asList ("A"));
+        assertEquals ("A", ring.owner ("key-0"));
+
+        //  A ring with no points per member would hold no one
+        try {
+            ring.setReplicas (0, Arrays.asList ("A"));
+            fail ();
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals ("A", ring.owner ("key-0"));
+    }
+
+    @Test
+    public void
+    testWhisperToOwner () throws Exception
+    {
+        String group = "SHARDS";
+        ZreInterface inf1 = new ZreInterface ();
+        ZreInterface inf2 = new ZreInterface ();
+        inf1.join (group);
+        inf2.join (group);
+
+        ZreInterface inf = new ZreInterface ();
+        int joined = 0;
+        while (joined < 2) {
+            ZMsg incoming = inf.recv ();
+            if (incoming.popString ().equals ("JOIN"))
+                joined++;
+            incoming.destroy ();
+        }
+        //  The owner gets the key and says so; we know which member that
+        //  is only from its reply
+        String owner = inf.owner (group, "user:42");
+        assertNotNull (owner);
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add ("GET");
+        inf.whisperToOwner (group, "user:42", outgoing);
+
+        ZreInterface [] members = new ZreInterface [] {inf1, inf2};
+        Poller poller = new Poller (2);
+        for (ZreInterface member : members)
+            poller.register (member.handle (), Poller.POLLIN);
+        boolean answered = false;
+        while (!answered) {
+            assertTrue (poller.poll (5000) > 0);
+            for (int index = 0; index < members.length; index++) {
+                if (!poller.pollin (index))
+                    continue;
+                ZMsg incoming = members [index].recv ();
+                if (incoming.popString ().equals ("WHISPER")) {
+                    outgoing = new ZMsg ();
+                    outgoing.add (incoming.popString ());
+                    outgoing.add ("MINE");
+                    members [index].whisper (outgoing);
+                    answered = true;
+                }
+                incoming.destroy ();
+            }
+        }
+        while (true) {
+            ZMsg incoming = inf.recv ();
+            if (incoming.popString ().equals ("WHISPER")) {
+                assertEquals (owner, incoming.popString ());
+                assertEquals ("MINE", incoming.popString ());
+                break;
+            }
+        }
+
+        inf.destroy ();
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+
+    //  Return identity of peer that joins group, as inf sees it
+    private static String joined (ZreInterface inf, String group)
+    {
+        while (true) {
+            ZMsg incoming = inf.recv ();
+            String event = incoming.popString ();
+            String identity = incoming.popString ();
+            if (event.equals ("JOIN") && group.equals (incoming.popString ())) {
+                incoming.destroy ();
+                return identity;
+            }
+            incoming.destroy ();
+        }
+    }
+
+    @Test
+    public void
+    testAgreement () throws Exception
+    {
+        String group = "AGREED";
+        ZreInterface inf1 = new ZreInterface ();
+        ZreInterface inf2 = new ZreInterface ();
+        inf1.join (group);
+        inf2.join (group);
+        String peer2 = joined (inf1, group);
+        String peer1 = joined (inf2, group);
+
+        //  Members are on their own rings, so they agree on every owner
+        String mine = null;
+        for (int key = 0; key < 1000; key++) {
+            String owner = inf1.owner (group, "key-" + key);
+            assertEquals (owner, inf2.owner (group, "key-" + key));
+            assertTrue (owner.equals (peer1) || owner.equals (peer2));
+            if (mine == null && owner.equals (peer1))
+                mine = "key-" + key;
+        }
+        //  And we get whispers for keys we own ourselves
+        assertNotNull (mine);
+        ZMsg outgoing = new ZMsg ();
+        outgoing.add ("GET");
+        inf1.whisperToOwner (group, mine, outgoing);
+        ZMsg incoming = inf1.recv ();
+        assertEquals ("WHISPER", incoming.popString ());
+        assertEquals (peer1, incoming.popString ());
+        assertEquals ("GET", incoming.popString ());
+        incoming.destroy ();
+
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+}
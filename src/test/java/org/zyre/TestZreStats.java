@@ -0,0 +1,102 @@
+/*  =========================================================================
+    TestZreRing - consistent-hash ring test
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestZreStats
+{
+    //  Make STATS report as a node would send it
+    private static ZreLogMsg report (int node, long msgsIn, long drops, int lag, String ... groups)
+    {
+        ZreLogMsg msg = new ZreLogMsg (ZreLogMsg.STATS);
+        msg.setNode (node);
+        msg.setPeers (2);
+        msg.setMsgsin (msgsIn);
+        msg.setBytesin (msgsIn * 100);
+        msg.setMsgsout (msgsIn / 2);
+        msg.setDrops (drops);
+        msg.setLag (lag);
+        for (String group : groups)
+            msg.appendGroups (group);
+        return msg;
+    }
+
+    @Test
+    public void
+    testRollup ()
+    {
+        ZreStats stats = new ZreStats (60000);
+
+        //  Rates come from first and last report of each node
+        stats.add (report (1, 0, 0, 5, "A"), 0);
+        stats.add (report (1, 1000, 10, 20, "A"), 5000);
+        stats.add (report (1, 2000, 20, 5, "A"), 10000);
+        stats.add (report (2, 500, 0, 1, "A", "B"), 0);
+        stats.add (report (2, 1500, 0, 2, "A", "B"), 10000);
+        stats.add (new ZreLogMsg (ZreLogMsg.LOG), 10000);
+        assertEquals (2, stats.size ());
+
+        ZreStats.Rollup node = stats.node (1);
+        assertEquals (1, node.nodes ());
+        assertEquals (200.0, node.msgsIn (), 0.01);
+        assertEquals (20000.0, node.bytesIn (), 0.01);
+        assertEquals (100.0, node.msgsOut (), 0.01);
+        assertEquals (2.0, node.drops (), 0.01);
+        assertEquals (20, node.lag ());
+        assertNull (stats.node (3));
+
+        ZreStats.Rollup cluster = stats.cluster ();
+        assertEquals (2, cluster.nodes ());
+        assertEquals (4, cluster.peers ());
+        assertEquals (300.0, cluster.msgsIn (), 0.01);
+        assertEquals (20, cluster.lag ());
+
+        Map <String, ZreStats.Rollup> groups = stats.groups ();
+        assertEquals (2, groups.size ());
+        assertEquals (2, groups.get ("A").nodes ());
+        assertEquals (1, groups.get ("B").nodes ());
+        assertEquals (100.0, groups.get ("B").msgsIn (), 0.01);
+
+        //  A node that restarts starts afresh
+        stats.add (report (2, 100, 0, 1, "B"), 12000);
+        assertEquals (0.0, stats.node (2).msgsIn (), 0.01);
+        assertEquals (1, stats.groups ().get ("A").nodes ());
+
+        //  Old reports age out, and nodes that go quiet are dropped
+        stats.add (report (2, 700, 0, 1, "B"), 15000);
+        stats.expire (71000);
+        assertEquals (1, stats.size ());
+        assertEquals (200.0, stats.node (2).msgsIn (), 0.01);
+        stats.expire (80000);
+        assertEquals (0, stats.size ());
+    }
+}
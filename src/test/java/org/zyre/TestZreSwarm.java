@@ -0,0 +1,178 @@
+/*  =========================================================================
+    TestZreSwarm - swarm distribution test
+
+    -------------------------------------------------------------------------
+    Copyright (c) 1991-2012 iMatix Corporation <www.imatix.com>
+    Copyright other contributors as noted in the AUTHORS file.
+
+    This file is part of ZyRE, the ZeroMQ Realtime Experience framework:
+    http://zyre.org.
+
+    This is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This software is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+    =========================================================================
+*/
+
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.zeromq.ZMsg;
+
+public class TestZreSwarm
+{
+    //  Size that gives a short last chunk
+    private static final int FILE_SIZE = 3 * ZreSwarm.CHUNK_SIZE + 1234;
+
+    private static File createFile () throws IOException
+    {
+        File file = File.createTempFile ("zyre", ".bin");
+        file.deleteOnExit ();
+        byte [] data = new byte [FILE_SIZE];
+        new Random ().nextBytes (data);
+        FileOutputStream output = new FileOutputStream (file);
+        output.write (data);
+        output.close ();
+        return file;
+    }
+
+    private static byte [] readFile (String pathname) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile (pathname, "r");
+        byte [] data = new byte [(int) file.length ()];
+        file.readFully (data);
+        file.close ();
+        return data;
+    }
+
+    @Test
+    public void
+    testChunks () throws Exception
+    {
+        File source = createFile ();
+        File target = File.createTempFile ("zyre", ".bin");
+        target.deleteOnExit ();
+
+        ZreSwarm seed = ZreSwarm.newSeed ("model", "", source.getPath ());
+        assertNotNull (seed);
+        assertTrue (seed.complete ());
+        assertEquals (FILE_SIZE, seed.filesize ());
+
+        Map <String, ZreSwarm> leeches = new HashMap <String, ZreSwarm> ();
+        ZreSwarm leech = ZreSwarm.newLeech ("model", "", target.getPath (), "ORIGIN",
+                seed.filesize (), seed.digests ().getData (), leeches);
+        assertNotNull (leech);
+        assertFalse (leech.complete ());
+        assertNull (leech.read (0));
+
+        //  Corrupted chunks are refused
+        byte [] chunk = seed.read (1);
+        chunk [0]++;
+        assertFalse (leech.store (1, chunk));
+        chunk [0]--;
+
+        //  Chunks may arrive in any order
+        for (int index : new int [] {3, 1, 0, 2}) {
+            assertTrue (leech.store (index, seed.read (index)));
+            assertFalse (leech.store (index, seed.read (index)));
+        }
+        assertTrue (leech.complete ());
+        assertTrue (Arrays.equals (readFile (source.getPath ()),
+                                   readFile (target.getPath ())));
+
+        //  A finished swarm keeps serving chunks, and serves them after
+        //  it's destroyed too, since it holds no file open
+        assertTrue (Arrays.equals (seed.read (2), leech.read (2)));
+        leech.addHolder ("LATE", 0);
+        leech.destroy ();
+        assertTrue (Arrays.equals (seed.read (3), leech.read (3)));
+        seed.destroy ();
+
+        //  Offers may not reach outside storage, nor claim huge files
+        assertTrue (ZreSwarm.validName ("model.bin"));
+        assertFalse (ZreSwarm.validName (""));
+        assertFalse (ZreSwarm.validName (".."));
+        assertFalse (ZreSwarm.validName ("../model.bin"));
+        assertFalse (ZreSwarm.validName ("/tmp/model.bin"));
+        assertFalse (ZreSwarm.validName ("dir\\model.bin"));
+        long huge = ZreSwarm.MAX_FILESIZE + 1;
+        byte [] digests = new byte [(int) ((huge + ZreSwarm.CHUNK_SIZE - 1)
+                                           / ZreSwarm.CHUNK_SIZE * ZreSwarm.DIGEST_SIZE)];
+        assertNull (ZreSwarm.newLeech ("huge", "", target.getPath (), "ORIGIN",
+                                       huge, digests, leeches));
+        assertNull (ZreSwarm.newLeech ("negative", "", target.getPath (), "ORIGIN",
+                                       -1, new byte [0], leeches));
+        assertEquals (FILE_SIZE, target.length ());
+    }
+
+    //  Wait for a DELIVER event and return the delivered pathname
+    private static String deliver (ZreInterface inf)
+    {
+        while (true) {
+            ZMsg incoming = inf.recv ();
+            String event = incoming.popString ();
+            if (event.equals ("DELIVER")) {
+                assertEquals ("model.bin", incoming.popString ());
+                return incoming.popString ();
+            }
+            incoming.destroy ();
+        }
+    }
+
+    @Test
+    public void
+    testPublishGroup () throws Exception
+    {
+        String group = "SWARM";
+        File source = createFile ();
+
+        ZreInterface inf1 = new ZreInterface ();
+        ZreInterface inf2 = new ZreInterface ();
+        inf1.join (group);
+        inf2.join (group);
+
+        ZreInterface inf = new ZreInterface ();
+        int joined = 0;
+        while (joined < 2) {
+            ZMsg incoming = inf.recv ();
+            if (incoming.popString ().equals ("JOIN"))
+                joined++;
+            incoming.destroy ();
+        }
+        inf.publish (source.getPath (), "model.bin", group);
+
+        byte [] expected = readFile (source.getPath ());
+        String pathname1 = deliver (inf1);
+        String pathname2 = deliver (inf2);
+        assertFalse (pathname1.equals (pathname2));
+        assertTrue (Arrays.equals (expected, readFile (pathname1)));
+        assertTrue (Arrays.equals (expected, readFile (pathname2)));
+        new File (pathname1).delete ();
+        new File (pathname2).delete ();
+
+        inf.destroy ();
+        inf1.destroy ();
+        inf2.destroy ();
+    }
+}